@@ -0,0 +1,158 @@
+// File: AdmissionControl.java
+// This file contains the AdmissionControl class, which protects the AggregationServer from
+// overload. It caps the number of open client connections and limits how many requests each
+// client (by origin address) may send per second with a token bucket. Work that is not admitted
+// is answered with "503 Service Unavailable" and a Retry-After header instead of being queued,
+// so a burst of clients slows down instead of exhausting threads, memory or file descriptors.
+
+package com.weather.app;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdmissionControl {
+    private static final int MAX_TRACKED_CLIENTS = 10_000; // Idle buckets are dropped beyond this many clients.
+    private static final int REJECT_DRAIN_MILLIS = 100; // How long a rejected connection's request is read before closing.
+
+    private final int maxConnections; // 0 for no limit.
+    private final double requestsPerSecond; // Per client; 0 for no limit.
+    private final double burst; // Requests a client may send at once after being idle.
+    private final int retryAfterSeconds; // Sent when the connection limit is reached.
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>(); // Origin -> its token bucket.
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong rateLimitedRequests = new AtomicLong();
+    private final AtomicLong nextEviction = new AtomicLong(System.nanoTime()); // Earliest time of the next eviction pass.
+    private final ExecutorService rejecter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(256), ConnectionEngine.namedThreads("reject")); // Answers connections over the limit.
+
+    // Tokens a client has left; one is taken per request and they refill at requestsPerSecond.
+    private static class Bucket {
+        private double tokens;
+        private long lastRefill;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+    }
+
+    public AdmissionControl(int maxConnections, double requestsPerSecond, double burst, int retryAfterSeconds) {
+        this.maxConnections = maxConnections;
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = Math.max(1, burst);
+        this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+    }
+
+    // Reserves a slot for a newly accepted connection. Returns false if the limit is reached, in
+    // which case the caller rejects the connection and must not call connectionClosed().
+    public boolean tryOpenConnection() {
+        if (openConnections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            openConnections.decrementAndGet();
+            rejectedConnections.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    // Frees the slot of a connection admitted by tryOpenConnection().
+    public void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    // Takes a token for one request from the given client. Returns 0 if the request may proceed,
+    // otherwise the number of seconds until the client has a token again.
+    public int tryAcquire(String origin) {
+        if (requestsPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long due = nextEviction.get();
+        if (buckets.size() > MAX_TRACKED_CLIENTS && now - due >= 0 && nextEviction.compareAndSet(due, now + refillNanos())) {
+            evictIdle(now);
+        }
+        Bucket bucket = buckets.computeIfAbsent(origin, key -> new Bucket(burst, now));
+        synchronized (bucket) {
+            bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.lastRefill) / 1e9 * requestsPerSecond);
+            bucket.lastRefill = now;
+            if (bucket.tokens >= 1) {
+                bucket.tokens--;
+                return 0;
+            }
+            rateLimitedRequests.incrementAndGet();
+            return (int) Math.max(1, Math.ceil((1 - bucket.tokens) / requestsPerSecond));
+        }
+    }
+
+    // Drops the buckets of clients that have been idle long enough to be full again; they are
+    // recreated full on their next request, so nothing changes for them. A pass runs at most once
+    // per refill time, so a crowd of active clients does not make every request scan all buckets.
+    private void evictIdle(long now) {
+        long refillNanos = refillNanos();
+        buckets.values().removeIf(bucket -> {
+            synchronized (bucket) {
+                return now - bucket.lastRefill >= refillNanos;
+            }
+        });
+    }
+
+    // Time an empty bucket takes to fill up again.
+    private long refillNanos() {
+        return (long) (burst / requestsPerSecond * 1e9);
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    public long getRateLimitedRequests() {
+        return rateLimitedRequests.get();
+    }
+
+    public int getTrackedClients() {
+        return buckets.size();
+    }
+
+    // Answers a connection that was not admitted with a 503 and closes it. This runs on a single
+    // thread with a short queue; when even that is full the connection is just closed.
+    public void rejectConnection(Socket socket) {
+        try {
+            rejecter.execute(() -> {
+                try (socket) {
+                    socket.setSoTimeout(REJECT_DRAIN_MILLIS);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + retryAfterSeconds
+                            + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    socket.shutdownOutput();
+                    // Read what the client already sent, so closing does not reset the connection
+                    // before it has read the response.
+                    InputStream in = socket.getInputStream();
+                    byte[] discard = new byte[8192];
+                    for (int total = 0; total < 65_536; ) {
+                        int read = in.read(discard);
+                        if (read < 0) break;
+                        total += read;
+                    }
+                } catch (IOException e) {
+                    // The client has gone away or sent nothing more.
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ConnectionEngine.closeQuietly(socket);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+// File: AggregationRouter.java
+// This file contains the AggregationRouter class, which lets an AggregationServer act as a router
+// in front of several aggregation nodes instead of storing data itself. Stations are spread over
+// the nodes by a HashRing: a PUT or PATCH goes to the node that owns its station, a batch PUT is
+// split by owner, "?id=" GETs ask only the owners, and a full GET asks every node and merges the
+// answers. Requests to different nodes run in parallel on reused keep-alive connections.
+
+package com.weather.app;
+
+import com.google.gson.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class AggregationRouter implements Closeable {
+    private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private final HashRing ring;
+    private final LamportClock lamportClock;
+    private final Map<String, Queue<PersistentConnection>> idleConnections = new ConcurrentHashMap<>(); // Node -> open connections not in use.
+    private final ExecutorService scatter = Executors.newCachedThreadPool(ConnectionEngine.namedThreads("router"));
+
+    public AggregationRouter(HashRing ring, LamportClock lamportClock) {
+        this.ring = ring;
+        this.lamportClock = lamportClock;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    // Answers one request by forwarding it to the nodes that hold the data. The request line and
+    // headers have already been read; the body, if any, is still on the connection. Without any
+    // nodes the request is answered with 503, which writers retry.
+    public void handleRequest(ClientConnection connection, String method, String path, Map<String, String> headers) throws IOException {
+        int contentLength = AggregationServer.bodyLength(connection, headers);
+        if (contentLength < 0) {
+            return; // Already answered.
+        }
+        byte[] body = contentLength > 0 ? Arrays.copyOf(connection.readBody(contentLength), contentLength) : new byte[0];
+        if (ring.getNodes().isEmpty()) {
+            System.out.println("Routing failed: no aggregation nodes");
+            AggregationServer.sendOverloaded(connection, AggregationServer.RETRY_AFTER_SECONDS);
+            return;
+        }
+        try {
+            if ("PUT".equalsIgnoreCase(method) || "PATCH".equalsIgnoreCase(method)) {
+                routeWrite(connection, method.toUpperCase(), headers, body);
+            } else if ("GET".equalsIgnoreCase(method)) {
+                routeGet(connection, path, headers);
+            } else {
+                AggregationServer.sendEmptyResponse(connection, "400 Bad Request");
+            }
+        } catch (IOException e) {
+            // A node is down or timed out; writers retry on 503.
+            System.out.println("Routing failed: " + e.getMessage());
+            AggregationServer.sendOverloaded(connection, AggregationServer.RETRY_AFTER_SECONDS);
+        }
+    }
+
+    // Forwards a write to the owner of its station. Empty PUTs are content-server keep-alives and go
+    // to every node, as the sender's stations may be on any of them.
+    private void routeWrite(ClientConnection connection, String method, Map<String, String> headers, byte[] body) throws IOException {
+        if (body.length == 0) {
+            if (!method.equals("PUT")) {
+                AggregationServer.sendEmptyResponse(connection, "400 Bad Request");
+                return;
+            }
+            for (PersistentConnection.Response response : scatter(ring.getNodes(), node -> request(connection, "PUT /weather.json", null, null))) {
+                if (response.statusCode >= 300) {
+                    relay(connection, response);
+                    return;
+                }
+            }
+            AggregationServer.sendEmptyResponse(connection, "204 No Content");
+            return;
+        }
+
+        String contentType = headers.getOrDefault("Content-Type", "application/json");
+        if (method.equals("PUT") && (AggregationServer.isNdjson(contentType) || AggregationServer.firstNonWhitespace(body, 0, body.length) == '[')) {
+            routeBatch(connection, body, AggregationServer.isNdjson(contentType));
+            return;
+        }
+        JsonObject station = AggregationServer.parseJsonObject(body, body.length);
+        if (station == null) {
+            System.out.println("Invalid JSON received: " + new String(body, StandardCharsets.UTF_8));
+            AggregationServer.sendEmptyResponse(connection, "500 Internal Server Error");
+            return;
+        }
+        String node = ring.nodeFor(station.get("id").getAsString());
+        relay(connection, forward(node, request(connection, method + " /weather.json", contentType, body)));
+    }
+
+    // Splits a batch PUT by owner, sends the parts in parallel and merges the per-entry statuses
+    // back into request order. Invalid entries are answered here and not forwarded.
+    private void routeBatch(ClientConnection connection, byte[] body, boolean ndjson) throws IOException {
+        List<JsonElement> elements = ndjson ? AggregationServer.parseNdjson(body, body.length) : AggregationServer.parseJsonArray(body, body.length);
+        if (elements == null) {
+            System.out.println("Invalid JSON array received: " + new String(body, StandardCharsets.UTF_8));
+            AggregationServer.sendEmptyResponse(connection, "500 Internal Server Error");
+            return;
+        }
+        JsonElement[] statuses = new JsonElement[elements.size()];
+        Map<String, JsonArray> parts = new LinkedHashMap<>(); // Node -> its entries.
+        Map<String, List<Integer>> positions = new HashMap<>(); // Node -> request index of each of its entries.
+        for (int i = 0; i < elements.size(); i++) {
+            JsonObject station = AggregationServer.validEntry(elements.get(i));
+            if (station == null) {
+                JsonObject status = new JsonObject();
+                status.addProperty("index", i);
+                status.addProperty("status", 500);
+                status.addProperty("error", "Invalid JSON");
+                statuses[i] = status;
+            } else {
+                String node = ring.nodeFor(station.get("id").getAsString());
+                parts.computeIfAbsent(node, key -> new JsonArray()).add(station);
+                positions.computeIfAbsent(node, key -> new ArrayList<>()).add(i);
+            }
+        }
+
+        List<String> nodes = new ArrayList<>(parts.keySet());
+        List<PersistentConnection.Response> responses = scatter(nodes, node -> request(connection, "PUT /weather.json",
+                "application/json", parts.get(node).toString().getBytes(StandardCharsets.UTF_8)));
+        int code = parts.isEmpty() ? 500 : 200;
+        for (int n = 0; n < nodes.size(); n++) {
+            PersistentConnection.Response response = responses.get(n);
+            List<Integer> indexes = positions.get(nodes.get(n));
+            JsonArray nodeStatuses = response.statusCode < 300 ? JsonParser.parseString(new String(response.body, StandardCharsets.UTF_8)).getAsJsonArray() : null;
+            for (int j = 0; j < indexes.size(); j++) {
+                if (nodeStatuses != null) {
+                    statuses[indexes.get(j)] = nodeStatuses.get(j);
+                } else {
+                    JsonObject status = new JsonObject();
+                    status.addProperty("index", indexes.get(j));
+                    status.addProperty("status", response.statusCode);
+                    statuses[indexes.get(j)] = status;
+                }
+            }
+            if (response.statusCode >= 300) {
+                code = Math.max(code, response.statusCode);
+            } else if (response.statusCode == 201 && code == 200) {
+                code = 201; // Some node created its first file.
+            }
+        }
+
+        JsonArray merged = new JsonArray();
+        for (JsonElement status : statuses) {
+            merged.add(status);
+        }
+        byte[] response = merged.toString().getBytes(StandardCharsets.UTF_8);
+        PrintWriter out = connection.getWriter();
+        AggregationServer.writeStatus(connection, code + " " + reason(code));
+        out.println("Content-Type: application/json");
+        out.println("Content-Length: " + response.length);
+        out.println();
+        connection.writeBody(response);
+    }
+
+    // Answers "?id=a,b,c" from the owners of the listed stations and a full GET from all nodes, by
+    // merging the JSON arrays they return. Change feeds and event streams are per node and are
+    // not routed.
+    private void routeGet(ClientConnection connection, String path, Map<String, String> headers) throws IOException {
+        Map<String, String> query = AggregationServer.parseQuery(path);
+        if (query.containsKey("since") || headers.getOrDefault("Accept", "").contains("text/event-stream")) {
+            AggregationServer.sendEmptyResponse(connection, "501 Not Implemented");
+            return;
+        }
+        Map<String, List<String>> idsByNode = new LinkedHashMap<>();
+        String ids = query.get("id");
+        if (ids != null) {
+            for (String id : ids.split(",")) {
+                idsByNode.computeIfAbsent(ring.nodeFor(id.trim()), key -> new ArrayList<>()).add(id.trim());
+            }
+        } else {
+            for (String node : ring.getNodes()) {
+                idsByNode.put(node, null);
+            }
+        }
+
+        List<String> nodes = new ArrayList<>(idsByNode.keySet());
+        List<PersistentConnection.Response> responses = scatter(nodes, node -> {
+            List<String> nodeIds = idsByNode.get(node);
+            return request(connection, "GET /weather.json" + (nodeIds == null ? "" : "?id=" + String.join(",", nodeIds)), null, null);
+        });
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        merged.write('[');
+        for (PersistentConnection.Response response : responses) {
+            if (response.statusCode == 404) continue; // None of the stations are on that node.
+            if (response.statusCode != 200) {
+                relay(connection, response);
+                return;
+            }
+            int end = response.body.length - 1; // Compact arrays from the nodes are joined without decoding them.
+            while (end > 0 && response.body[end] != ']') end--;
+            if (end > 1) {
+                if (merged.size() > 1) merged.write(',');
+                merged.write(response.body, 1, end - 1);
+            }
+        }
+        merged.write(']');
+        if (ids != null && merged.size() == 2) {
+            AggregationServer.sendEmptyResponse(connection, "404 Not Found");
+            return;
+        }
+
+        byte[] jsonResponse = AggregationServer.wantsCompactJson(headers) ? merged.toByteArray()
+                : PRETTY_GSON.toJson(JsonParser.parseString(merged.toString(StandardCharsets.UTF_8))).getBytes(StandardCharsets.UTF_8);
+        boolean gzip = AggregationServer.acceptsGzip(headers) && jsonResponse.length >= AggregationServer.GZIP_MIN_BYTES;
+        if (gzip) {
+            jsonResponse = AggregationServer.gzip(jsonResponse);
+        }
+        PrintWriter out = connection.getWriter();
+        AggregationServer.writeStatus(connection, "200 OK");
+        out.println("Content-Type: application/json");
+        if (gzip) {
+            out.println("Content-Encoding: gzip");
+        }
+        out.println("Content-Length: " + jsonResponse.length);
+        out.println("Vary: Accept, Accept-Encoding");
+        out.println();
+        connection.writeBody(jsonResponse);
+    }
+
+    // A request to a node: the request text, and the node only sees the client's address in
+    // X-Forwarded-For, which it records as the data's origin so expiry still works per content server.
+    private String request(ClientConnection connection, String requestLine, String contentType, byte[] body) {
+        StringBuilder request = new StringBuilder(requestLine).append(" HTTP/1.1\r\n")
+                .append("User-Agent: AggregationRouter/1.0\r\n")
+                .append("Accept: application/json; format=compact\r\n")
+                .append("Connection: keep-alive\r\n")
+                .append("X-Forwarded-For: ").append(connection.getOrigin()).append("\r\n")
+                .append("Lamport-Clock: ").append(connection.getClock()).append("\r\n");
+        if (contentType != null) {
+            request.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        request.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n\r\n");
+        if (body != null) {
+            request.append(new String(body, StandardCharsets.UTF_8));
+        }
+        return request.toString();
+    }
+
+    // Sends a request to a node on an idle keep-alive connection if there is one, and returns the
+    // complete response. A reused connection the node has closed meanwhile is replaced once.
+    PersistentConnection.Response forward(String node, String request) throws IOException {
+        if (node == null) {
+            throw new IOException("No aggregation nodes"); // The last node was removed meanwhile.
+        }
+        Queue<PersistentConnection> idle = idleConnections.computeIfAbsent(node, key -> new ConcurrentLinkedQueue<>());
+        PersistentConnection nodeConnection = idle.poll();
+        boolean reused = nodeConnection != null;
+        if (!reused) {
+            int separator = node.lastIndexOf(':');
+            nodeConnection = new PersistentConnection(node.substring(0, separator), Integer.parseInt(node.substring(separator + 1)));
+        }
+        PersistentConnection.Response response;
+        try {
+            nodeConnection.write(request);
+            response = nodeConnection.readResponse();
+        } catch (IOException e) {
+            if (!reused) throw e;
+            response = null;
+        }
+        if (response == null && reused) {
+            nodeConnection.close();
+            nodeConnection.write(request);
+            response = nodeConnection.readResponse();
+        }
+        if (response == null) {
+            nodeConnection.close();
+            throw new EOFException("Node " + node + " closed the connection");
+        }
+        String clock = response.headers.get("Lamport-Clock");
+        if (clock != null) {
+            lamportClock.update(Long.parseLong(clock));
+        }
+        if (response.isKeepAlive()) {
+            idle.offer(nodeConnection);
+        } else {
+            nodeConnection.close();
+        }
+        return response;
+    }
+
+    // Sends one request per node in parallel and returns the responses in node order.
+    private List<PersistentConnection.Response> scatter(List<String> nodes, java.util.function.Function<String, String> requestFor) throws IOException {
+        if (nodes.size() == 1) {
+            return List.of(forward(nodes.get(0), requestFor.apply(nodes.get(0))));
+        }
+        List<Future<PersistentConnection.Response>> pending = new ArrayList<>();
+        for (String node : nodes) {
+            pending.add(scatter.submit(() -> forward(node, requestFor.apply(node))));
+        }
+        List<PersistentConnection.Response> responses = new ArrayList<>();
+        try {
+            for (Future<PersistentConnection.Response> response : pending) {
+                responses.add(response.get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Routing interrupted");
+        }
+        return responses;
+    }
+
+    // Passes a node's response on to the client with the router's own status headers.
+    private static void relay(ClientConnection connection, PersistentConnection.Response response) throws IOException {
+        PrintWriter out = connection.getWriter();
+        AggregationServer.writeStatus(connection, response.statusLine.substring(response.statusLine.indexOf(' ') + 1));
+        for (String header : new String[] { "Content-Type", "Content-Encoding", "Retry-After", "Primary" }) {
+            if (response.headers.containsKey(header)) {
+                out.println(header + ": " + response.headers.get(header));
+            }
+        }
+        if (!response.statusLine.contains(" 204")) {
+            out.println("Content-Length: " + response.body.length);
+        }
+        out.println();
+        connection.writeBody(response.body);
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 503: return "Service Unavailable";
+            default: return code >= 500 ? "Internal Server Error" : "Error";
+        }
+    }
+
+    @Override
+    public void close() {
+        scatter.shutdownNow();
+        for (Queue<PersistentConnection> idle : idleConnections.values()) {
+            PersistentConnection nodeConnection;
+            while ((nodeConnection = idle.poll()) != null) {
+                ConnectionEngine.closeQuietly(nodeConnection);
+            }
+        }
+    }
+}
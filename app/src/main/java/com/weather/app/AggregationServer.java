@@ -7,9 +7,13 @@ package com.weather.app;
 import com.google.gson.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
 
 public class AggregationServer {
     // Constant variables defining server configurations.
@@ -17,11 +21,102 @@ public class AggregationServer {
     public static final String DATA_FILE = "weatherData.json"; // Filename to store weather data.
     public static final String TEMP_FILE = "weatherData.tmp"; // Temporary file used for writing data.
     private static final long EXPIRATION_TIME_MILLIS = 30_000; // Expiration time for data in milliseconds (30 seconds).
+    public static final long EXPIRY_PRECISION_MILLIS = Long.getLong("weather.expiry.precision", ExpiryIndex.DEFAULT_PRECISION_MILLIS); // How late expired data may be removed.
+    public static final String COMMIT_FILE = "weatherData.commit.tmp"; // Temporary file owned by the persistence writer.
+    public static final long COMMIT_DELAY_MILLIS = Long.getLong("weather.commit.delay", 2); // Maximum time a commit waits to group more PUTs.
+    public static final long COMPACT_BYTES = Long.getLong("weather.wal.compact.bytes", 1 << 20); // Log size that triggers compaction into a snapshot.
+    public static final long COMPACT_INTERVAL_MILLIS = Long.getLong("weather.wal.compact.interval", 60_000); // Idle time after which the log is compacted.
+    public static final boolean BINARY_SNAPSHOT = "binary".equalsIgnoreCase(System.getProperty("weather.snapshot.format", "json")); // Snapshot format: json or binary.
+    public static final String SNAPSHOT_FILE = BINARY_SNAPSHOT ? "weatherData.snapshot" : DATA_FILE; // File the log is compacted into.
+    public static final int SHARDS = Math.max(1, Integer.getInteger("weather.shards", 1)); // Store shards, each persisted in its own files.
+    public static final List<String> SHARD_DIRS = shardDirectories(System.getProperty("weather.shard.dirs", "")); // Directories the shard files are spread over.
+    public static final int MAX_BODY_BYTES = Integer.getInteger("weather.max.body", 16 << 20); // Largest request body accepted.
+    public static final int GZIP_MIN_BYTES = 256; // Smaller bodies are sent uncompressed even if gzip is accepted.
+    public static final String ENGINE = System.getProperty("weather.engine", ConnectionEngine.THREAD); // Connection engine: thread, virtual or nio.
+    public static final int WORKER_THREADS = Integer.getInteger("weather.workers", Math.max(4, Runtime.getRuntime().availableProcessors() * 2)); // Worker pool size for the nio engine.
+    public static final int KEEP_ALIVE_TIMEOUT_MILLIS = Integer.getInteger("weather.keepalive.timeout", 5_000); // Idle time before a persistent connection is closed.
+    public static final int KEEP_ALIVE_MAX_REQUESTS = Integer.getInteger("weather.keepalive.max", 100); // Requests served on one connection before it is closed.
+    public static final int MAX_SUBSCRIBERS = Integer.getInteger("weather.push.max", 20_000); // Open event streams allowed at once.
+    public static final long PUSH_HEARTBEAT_MILLIS = Long.getLong("weather.push.heartbeat", 15_000); // Idle time before subscribers get a keep-alive comment.
+    public static final long PUSH_WRITE_TIMEOUT_MILLIS = Long.getLong("weather.push.write.timeout", 10_000); // Longest a write to one subscriber may block.
+    public static final String REPLICATE_FROM = System.getProperty("weather.replicate.from"); // host:port of the primary when running as a backup.
+    public static final String ROUTE_NODES = System.getProperty("weather.route.nodes"); // Comma-separated host:port of the nodes when running as a router.
+    public static final int VIRTUAL_NODES = Integer.getInteger("weather.route.vnodes", HashRing.DEFAULT_VIRTUAL_NODES); // Ring points per node.
+    public static final Set<String> TRUSTED_ROUTERS = trustedRouters(System.getProperty("weather.trusted.routers", "")); // IPs whose X-Forwarded-For is honoured.
+    public static final int MAX_CONNECTIONS = Integer.getInteger("weather.max.connections", 4_096); // Open client connections allowed at once (0 for no limit).
+    public static final int WORK_QUEUE_SIZE = Integer.getInteger("weather.queue.size", 1_024); // Connections waiting for an nio worker.
+    public static final double RATE_LIMIT = Double.parseDouble(System.getProperty("weather.rate.limit", "500")); // Requests per second per client (0 for no limit).
+    public static final double RATE_BURST = Double.parseDouble(System.getProperty("weather.rate.burst", String.valueOf(RATE_LIMIT * 2))); // Requests a client may send at once.
+    public static final int RETRY_AFTER_SECONDS = Integer.getInteger("weather.retry.after", 1); // Retry-After sent when the connection limit is reached.
+    public static final int READ_THREADS = Integer.getInteger("weather.lanes.read.threads", Math.max(4, Runtime.getRuntime().availableProcessors() * 2)); // Threads serving GETs.
+    public static final int READ_QUEUE_SIZE = Integer.getInteger("weather.lanes.read.queue", 1_024); // GETs waiting for a read thread.
+    public static final int WRITE_THREADS = Integer.getInteger("weather.lanes.write.threads", 16); // Threads serving PUTs and other writes.
+    public static final int WRITE_QUEUE_SIZE = Integer.getInteger("weather.lanes.write.queue", 1_024); // Writes waiting for a write thread.
+    public static final int CHANGE_LOG_SIZE = Integer.getInteger("weather.changelog.size", ChangeLog.DEFAULT_CAPACITY); // Changes kept for "?since=" requests.
     public static final LamportClock lamportClock = new LamportClock(); // Instance of LamportClock for concurrency control.
 
     // Data structures to store weather data and timestamps from content servers.
-    public static final Map<String, JsonObject> weatherData = new ConcurrentHashMap<>(); // Map to store weather data by ID.
+    public static final WeatherStore weatherData = new WeatherStore(EXPIRY_PRECISION_MILLIS, SHARDS); // Map to store weather data by ID.
     public static final Map<String, Long> serverTimestamps = new ConcurrentHashMap<>(); // Map to store last update timestamps of content servers.
+    public static final ChangeLog changeLog = new ChangeLog(lamportClock, CHANGE_LOG_SIZE); // Recent updates and removals, by Lamport clock.
+    public static final SubscriptionDispatcher subscriptions = new SubscriptionDispatcher(AggregationServer::encodeStation,
+            MAX_SUBSCRIBERS, SubscriptionDispatcher.DEFAULT_BACKLOG, 2, PUSH_HEARTBEAT_MILLIS, PUSH_WRITE_TIMEOUT_MILLIS); // Pushes changes to event streams.
+
+    // One writer per shard that logs updates to weatherData, committing the events of concurrent PUTs together.
+    public static final ShardedPersistence persistence = new ShardedPersistence(weatherData, SNAPSHOT_FILE, BINARY_SNAPSHOT, COMMIT_FILE,
+            PersistenceWriter.walFileFor(DATA_FILE), SHARD_DIRS, COMMIT_DELAY_MILLIS, COMPACT_BYTES, COMPACT_INTERVAL_MILLIS);
+    public static final AdmissionControl admission = new AdmissionControl(MAX_CONNECTIONS, RATE_LIMIT, RATE_BURST, RETRY_AFTER_SECONDS); // Connection cap and per-client rate limit.
+    public static final RequestLanes lanes = new RequestLanes(READ_THREADS, READ_QUEUE_SIZE, WRITE_THREADS, WRITE_QUEUE_SIZE); // Separate executors for reads and writes.
+
+    // Counters and latency histograms served on GET /metrics. Each request phase has its own histogram.
+    public static final Metrics metrics = new Metrics();
+    private static final Metrics.Histogram HEADER_PARSE_TIME = phase("header_parse"); // Request headers, after the request line.
+    private static final Metrics.Histogram CLOCK_TIME = phase("clock"); // Updating the Lamport clock.
+    private static final Metrics.Histogram BODY_READ_TIME = phase("body_read");
+    private static final Metrics.Histogram JSON_PARSE_TIME = phase("json_parse");
+    private static final Metrics.Histogram STORE_UPDATE_TIME = phase("store_update"); // Store, change log and event streams.
+    private static final Metrics.Histogram PERSISTENCE_TIME = phase("persistence"); // Waiting for the group commit to be durable.
+    private static final Metrics.Histogram ENCODE_TIME = phase("encode"); // Building a GET body (or taking it from the cache).
+    private static final Metrics.Histogram RESPONSE_WRITE_TIME = phase("response_write");
+    private static final Metrics.Histogram READ_REQUEST_TIME = metrics.histogram("weather_request_seconds",
+            "Time from the request line to the end of the response.", "lane=\"read\"");
+    private static final Metrics.Histogram WRITE_REQUEST_TIME = metrics.histogram("weather_request_seconds",
+            "Time from the request line to the end of the response.", "lane=\"write\"");
+    private static final Metrics.Histogram EXPIRY_SWEEP_TIME = metrics.histogram("weather_expiry_sweep_seconds",
+            "Duration of the sweeps that remove expired stations.", "");
+    private static final LongAdder EXPIRED_STATIONS = metrics.counter("weather_expired_stations_total",
+            "Stations removed because their content server went quiet.", "");
+
+    static {
+        metrics.gauge("weather_store_stations", "Stations currently held.", "", () -> weatherData.size());
+        metrics.gauge("weather_connections_open", "Client connections currently open.", "", () -> admission.getOpenConnections());
+        metrics.counter("weather_connections_rejected_total", "Connections refused because the connection limit was reached.", "",
+                () -> admission.getRejectedConnections());
+        metrics.counter("weather_requests_rate_limited_total", "Requests refused because their client exceeded its rate.", "",
+                () -> admission.getRateLimitedRequests());
+        metrics.gauge("weather_rate_limit_clients", "Clients with a rate-limit bucket.", "", () -> admission.getTrackedClients());
+        metrics.gauge("weather_subscribers", "Open event streams.", "", () -> subscriptions.getSubscriberCount());
+        metrics.gauge("weather_lamport_clock", "Current Lamport clock value.", "", () -> lamportClock.getClock());
+        metrics.counter("weather_persistence_commits_total", "Group commits written to the log.", "", () -> persistence.getCommitCount());
+        metrics.counter("weather_persistence_compactions_total", "Log compactions into a snapshot.", "", () -> persistence.getCompactionCount());
+        metrics.counter("weather_persistence_compaction_failures_total", "Log compactions that failed and were retried later.", "",
+                () -> persistence.getFailedCompactionCount());
+        for (RequestLanes.Lane lane : List.of(lanes.getReadLane(), lanes.getWriteLane())) {
+            String labels = "lane=\"" + lane.getName() + "\"";
+            metrics.gauge("weather_lane_queue_depth", "Requests waiting for a lane thread.", labels, lane::getQueueDepth);
+            metrics.gauge("weather_lane_active_threads", "Lane threads serving a request.", labels, lane::getActiveCount);
+            metrics.counter("weather_lane_completed_total", "Requests served by the lane.", labels, lane::getCompletedCount);
+            metrics.counter("weather_lane_rejected_total", "Requests refused because the lane's queue was full.", labels, lane::getRejectedCount);
+            metrics.gauge("weather_lane_wait_seconds_max", "Longest time a request waited for a lane thread.", labels,
+                    () -> lane.getMaxWaitMillis() / 1000);
+        }
+    }
+
+    private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create(); // Gson instances are thread-safe.
+    private static final ResponseCache responseCache = new ResponseCache(); // Encoded body of the last full GET.
+    private static boolean recovered; // Set once the persisted state has been loaded.
+    private static volatile ReplicationFollower follower; // Set while this server is a backup of a primary.
+    private static volatile AggregationRouter router; // Set while this server routes requests to other nodes.
 
     public static void main(String[] args) throws IOException {
         int port = DEFAULT_PORT; // Initialize port with the default value.
@@ -35,136 +130,438 @@ public class AggregationServer {
             }
         }
 
-        // Schedule a task to clean up expired entries periodically every 10 seconds.
+        // Restore the state persisted by a previous run before accepting requests.
+        synchronized (AggregationServer.class) {
+            if (!recovered && ROUTE_NODES != null) {
+                startRouting(Arrays.asList(ROUTE_NODES.split(","))); // A router keeps no data of its own.
+                recovered = true;
+            }
+            if (!recovered) {
+                loadPersistedData();
+                recovered = true;
+                if (REPLICATE_FROM != null) {
+                    startFollowing(REPLICATE_FROM);
+                }
+            }
+        }
+
+        // Schedule a task to clean up expired entries; each run only visits what is due.
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-        scheduler.scheduleAtFixedRate(AggregationServer::cleanExpiredData, 10, 10, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(AggregationServer::cleanExpiredData, EXPIRY_PRECISION_MILLIS, EXPIRY_PRECISION_MILLIS, TimeUnit.MILLISECONDS);
 
-        // Start the server socket to listen for client connections on the specified port.
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server is running on port " + port);
+        // Listen for client connections using the execution engine selected at startup.
+        try (ConnectionEngine engine = ConnectionEngine.create(ENGINE, WORKER_THREADS, WORK_QUEUE_SIZE)) {
+            engine.serve(port);
+        }
+    }
 
-            while (true) {
-                // Accept client connections and handle each client in a separate thread.
-                Socket clientSocket = serverSocket.accept();
-                new Thread(() -> handleClient(clientSocket)).start();
-            }
+    // Decides whether an accepted connection may be served. A connection over the limit is
+    // answered with 503 and Retry-After and closed; an admitted one must later be released with
+    // connectionClosed().
+    public static boolean admitConnection(Socket clientSocket) {
+        if (admission.tryOpenConnection()) {
+            return true;
         }
+        System.out.println("Rejecting connection from " + clientSocket.getInetAddress() + ": " + MAX_CONNECTIONS + " connections open");
+        admission.rejectConnection(clientSocket);
+        return false;
     }
 
-    // Method to handle communication with an individual client.
+    // Releases the slot of an admitted connection once it is closed or handed to a subscription.
+    public static void connectionClosed() {
+        admission.connectionClosed();
+    }
+
+    // Method to handle communication with an individual client, which has been admitted.
     public static void handleClient(Socket clientSocket) {
-        try (Socket socket = clientSocket;
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-            // Read the request type (e.g., "GET /" or "PUT /data").
-            String requestType = in.readLine();
-            System.out.println("Received request: " + requestType);
-
-            // Parse the request to extract the method and path.
-            String[] requestParts = requestType.split(" ", 2);
-            String method = requestParts.length >= 1 ? requestParts[0] : "";
-            String path = requestParts.length >= 2 ? requestParts[1] : "";
-
-            // Read headers and extract the Lamport-Clock value if provided.
-            Map<String, String> headers = new HashMap<>();
-            String line;
-            int clientLamportClock = 0;
-
-            while ((line = in.readLine()) != null && !line.isEmpty()) {
-                int separatorIndex = line.indexOf(":");
-                if (separatorIndex != -1) {
-                    String headerName = line.substring(0, separatorIndex).trim();
-                    String headerValue = line.substring(separatorIndex + 1).trim();
-                    headers.put(headerName, headerValue);
-
-                    if (headerName.equalsIgnoreCase("Lamport-Clock")) {
-                        clientLamportClock = Integer.parseInt(headerValue);
-                    }
+        try (ClientConnection connection = new ClientConnection(clientSocket)) {
+            clientSocket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MILLIS); // Close persistent connections left idle.
+            serveConnection(connection, null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            connectionClosed();
+        }
+    }
+
+    // Serves requests on the connection until it should be closed. If park is given, the loop stops
+    // as soon as no further (pipelined) input is buffered and the open connection is handed to park,
+    // which waits for the next request without holding this thread. Returns true if it was parked
+    // or became an event stream, in which case the caller must not close it.
+    public static boolean serveConnection(ClientConnection connection, Consumer<ClientConnection> park) throws IOException {
+        try {
+            while (handleRequest(connection)) {
+                if (park != null && !connection.hasBufferedInput()) {
+                    park.accept(connection);
+                    return true;
                 }
             }
+        } catch (SocketTimeoutException e) {
+            System.out.println("Closing idle connection from " + connection.getOrigin());
+        }
+        return connection.isDetached();
+    }
 
-            // Update the server's Lamport clock based on the received value.
-            lamportClock.update(clientLamportClock);
+    // Reads and answers a single request. Returns true if the connection should stay open.
+    public static boolean handleRequest(ClientConnection connection) throws IOException {
+        // Read the request type (e.g., "GET /" or "PUT /data"), skipping blank lines left between pipelined requests.
+        String requestType = connection.readLine();
+        while (requestType != null && requestType.isEmpty()) {
+            requestType = connection.readLine();
+        }
+        if (requestType == null) {
+            return false; // The client closed the connection.
+        }
+        System.out.println("Received request: " + requestType);
+        long received = System.nanoTime();
 
-            // Handle different types of HTTP methods: PUT or GET.
-            if ("PUT".equalsIgnoreCase(method)) {
-                handlePutRequest(in, out, clientSocket.getInetAddress().toString(), headers);
-            } else if ("GET".equalsIgnoreCase(method)) {
-                handleGetRequest(out, headers);
-            } else {
-                // Return a 400 Bad Request response if the method is not supported.
-                out.println("HTTP/1.1 400 Bad Request");
-                out.println("Lamport-Clock: " + lamportClock.getClock());
-                out.println();
+        // Parse the request to extract the method and path (e.g., "GET /weather.json?id=IDS60901 HTTP/1.1").
+        String[] requestParts = requestType.split(" ", 3);
+        String method = requestParts.length >= 1 ? requestParts[0] : "";
+        String path = requestParts.length >= 2 ? requestParts[1] : "";
+        RequestLanes.Lane lane = lanes.laneFor(method); // Reads and writes run on separate executors.
+
+        // Read headers and extract the Lamport-Clock value if provided.
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER); // Header names are case-insensitive.
+        String line;
+        long clientLamportClock = 0;
+        boolean invalidClock = false;
+
+        while ((line = connection.readLine()) != null && !line.isEmpty()) {
+            int separatorIndex = line.indexOf(":");
+            if (separatorIndex != -1) {
+                String headerName = line.substring(0, separatorIndex).trim();
+                String headerValue = line.substring(separatorIndex + 1).trim();
+                headers.put(headerName, headerValue);
+
+                if (headerName.equalsIgnoreCase("Lamport-Clock")) {
+                    try {
+                        clientLamportClock = Long.parseLong(headerValue);
+                    } catch (NumberFormatException e) {
+                        invalidClock = true;
+                    }
+                }
             }
+        }
+        connection.beginRequest(headers, KEEP_ALIVE_MAX_REQUESTS, TRUSTED_ROUTERS);
+        long parsed = HEADER_PARSE_TIME.recordSince(received);
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        // Update the server's Lamport clock based on the received value and tick for handling the
+        // request, in one atomic step. The response carries the value of this request.
+        connection.setClock(lamportClock.updateAndTick(clientLamportClock));
+        CLOCK_TIME.recordSince(parsed);
+        if (invalidClock) {
+            discardBody(connection, headers);
+            sendEmptyResponse(connection, "400 Bad Request");
+            return connection.isKeepAlive();
         }
+
+        // A client over its request rate is asked to come back later. Clients are told apart by the
+        // socket's peer address; only a trusted router may name the client it forwards for, so a
+        // made-up X-Forwarded-For does not get a fresh bucket.
+        int retryAfter = admission.tryAcquire(connection.getOrigin());
+        if (retryAfter > 0) {
+            discardBody(connection, headers);
+            sendOverloaded(connection, retryAfter);
+            return connection.isKeepAlive();
+        }
+
+        // The rest runs on the request's lane while this thread waits, so slow disk-bound writes
+        // only occupy write-lane threads. A full lane answers 503.
+        Boolean keepAlive = lanes.run(lane, () -> dispatchRequest(connection, method, path, headers));
+        if (keepAlive == null) {
+            discardBody(connection, headers);
+            sendOverloaded(connection, RETRY_AFTER_SECONDS);
+            return connection.isKeepAlive();
+        }
+        (lane == lanes.getReadLane() ? READ_REQUEST_TIME : WRITE_REQUEST_TIME).recordSince(received);
+        return keepAlive;
+    }
+
+    // Answers a request whose request line and headers have been read, by method and path.
+    // Returns true if the connection should stay open.
+    private static boolean dispatchRequest(ClientConnection connection, String method, String path, Map<String, String> headers) throws IOException {
+        // Every server, whatever its role, answers for its own metrics.
+        if ("GET".equalsIgnoreCase(method) && path.equals("/metrics")) {
+            handleMetricsRequest(connection);
+            return connection.isKeepAlive();
+        }
+
+        // A router passes the request on to the nodes that own the data.
+        AggregationRouter activeRouter = router;
+        if (activeRouter != null) {
+            activeRouter.handleRequest(connection, method, path, headers);
+            return connection.isKeepAlive();
+        }
+
+        // Handle different types of HTTP methods: PUT or GET. A backup refuses writes.
+        ReplicationFollower backupOf = follower;
+        if (backupOf != null && ("PUT".equalsIgnoreCase(method) || "PATCH".equalsIgnoreCase(method))) {
+            rejectWrite(connection, headers, backupOf);
+        } else if ("POST".equalsIgnoreCase(method) && path.equals("/promote")) {
+            handlePromoteRequest(connection);
+        } else if ("PUT".equalsIgnoreCase(method)) {
+            handlePutRequest(connection, headers);
+        } else if ("PATCH".equalsIgnoreCase(method)) {
+            handlePatchRequest(connection, headers);
+        } else if ("GET".equalsIgnoreCase(method)) {
+            handleGetRequest(connection, path, headers);
+        } else {
+            // Return a 400 Bad Request response if the method is not supported.
+            sendEmptyResponse(connection, "400 Bad Request");
+        }
+        return connection.isKeepAlive();
     }
 
     // Handles PUT requests to update or create new weather data entries.
-    public static void handlePutRequest(BufferedReader in, PrintWriter out, String contentServer, Map<String, String> headers) throws IOException {
-        lamportClock.tick(); // Increment the Lamport clock for the PUT request.
+    public static void handlePutRequest(ClientConnection connection, Map<String, String> headers) throws IOException {
+        int contentLength = bodyLength(connection, headers);
+        String contentServer = connection.getOrigin();
 
-        int contentLength = Integer.parseInt(headers.getOrDefault("Content-Length", "0"));
+        if (contentLength < 0) {
+            return; // Already answered.
+        }
 
-        // If no content is provided, respond with a 204 No Content status.
+        // If no content is provided, respond with a 204 No Content status. Content servers send such
+        // empty PUTs as keep-alives, so they still keep the sender's data from expiring.
         if (contentLength == 0) {
-            out.println("HTTP/1.1 204 No Content");
-            out.println("Lamport-Clock: " + lamportClock.getClock());
-            out.println();
+            recordContact(contentServer);
+            sendEmptyResponse(connection, "204 No Content");
             return;
         }
 
-        // Read the content of the request body.
-        char[] bodyData = new char[contentLength];
-        in.read(bodyData, 0, contentLength);
-        String jsonData = new String(bodyData);
+        // Read exactly Content-Length bytes of body. The whole body must be consumed so that the
+        // next request on a persistent connection starts at the right place.
+        long started = System.nanoTime();
+        byte[] body = connection.readBody(contentLength);
+        long read = BODY_READ_TIME.recordSince(started);
 
-        // Validate the JSON data.
-        if (!isValidJson(jsonData)) {
-            System.out.println("Invalid JSON received: " + jsonData);
-            out.println("HTTP/1.1 500 Internal Server Error");
-            out.println("Lamport-Clock: " + lamportClock.getClock());
-            out.println();
+        // A JSON array or NDJSON body carries many stations that are applied as one batch.
+        boolean ndjson = isNdjson(headers.getOrDefault("Content-Type", ""));
+        if (ndjson || firstNonWhitespace(body, 0, contentLength) == '[') {
+            handleBatchPut(connection, body, contentLength, ndjson, read);
             return;
         }
 
-        // Parse and add metadata to the JSON object.
-        JsonObject jsonObject = JsonParser.parseString(jsonData).getAsJsonObject();
+        // Validate and decode the JSON data in a single pass over the bytes.
+        JsonObject jsonObject = parseJsonObject(body, contentLength);
+        long decoded = JSON_PARSE_TIME.recordSince(read);
+        if (jsonObject == null) {
+            System.out.println("Invalid JSON received: " + new String(body, 0, contentLength, StandardCharsets.UTF_8));
+            sendEmptyResponse(connection, "500 Internal Server Error");
+            return;
+        }
+
+        // Add metadata to the JSON object.
         jsonObject.addProperty("origin", contentServer);
         jsonObject.addProperty("timestamp", Instant.now().toEpochMilli());
 
         // Extract the ID from the JSON object and store it in the weatherData map.
         String entryId = jsonObject.get("id").getAsString();
         weatherData.put(entryId, jsonObject);
-        serverTimestamps.put(contentServer, Instant.now().toEpochMilli());
+        recordChange(entryId, false);
+        recordContact(contentServer);
+        long stored = STORE_UPDATE_TIME.recordSince(decoded);
 
-        // Attempt to write the data to a temporary file and commit it to the final file.
-        boolean isNewFile = !new File(DATA_FILE).exists();
-        try {
-            writeToTempFile(weatherData);
-            if (commitTempFile()) {
-                // Respond with a 201 Created or 200 OK status depending on whether it's a new file.
-                if (isNewFile) {
-                    out.println("HTTP/1.1 201 Created");
+        // Log the update and wait until the group commit that includes it is durable, then acknowledge it.
+        boolean isNewFile = !persistence.hasPersistedData();
+        boolean committed = persistence.commitPut(jsonObject);
+        PERSISTENCE_TIME.recordSince(stored);
+        if (committed) {
+            // Respond with a 201 Created or 200 OK status depending on whether it's a new file.
+            sendEmptyResponse(connection, isNewFile ? "201 Created" : "200 OK");
+        } else {
+            sendEmptyResponse(connection, "500 Internal Server Error");
+        }
+    }
+
+    // Handles PATCH requests, which carry only the "id" and the fields that changed. The fields are
+    // merged into the stored entry (a null value removes a field), which answers 404 if it does not
+    // exist so the sender can fall back to a full PUT.
+    public static void handlePatchRequest(ClientConnection connection, Map<String, String> headers) throws IOException {
+        int contentLength = bodyLength(connection, headers);
+        if (contentLength < 0) {
+            return; // Already answered.
+        }
+        if (contentLength == 0) {
+            sendEmptyResponse(connection, "400 Bad Request");
+            return;
+        }
+        long started = System.nanoTime();
+        byte[] body = connection.readBody(contentLength);
+        long read = BODY_READ_TIME.recordSince(started);
+        JsonObject patch = parseJsonObject(body, contentLength);
+        long decoded = JSON_PARSE_TIME.recordSince(read);
+        if (patch == null) {
+            System.out.println("Invalid JSON received: " + new String(body, 0, contentLength, StandardCharsets.UTF_8));
+            sendEmptyResponse(connection, "500 Internal Server Error");
+            return;
+        }
+
+        String contentServer = connection.getOrigin();
+        long timestamp = Instant.now().toEpochMilli();
+        JsonObject merged = weatherData.update(patch.get("id").getAsString(), current -> {
+            for (Map.Entry<String, JsonElement> field : patch.entrySet()) {
+                if (field.getValue().isJsonNull()) {
+                    current.remove(field.getKey());
                 } else {
-                    out.println("HTTP/1.1 200 OK");
+                    current.add(field.getKey(), field.getValue());
                 }
-                out.println("Lamport-Clock: " + lamportClock.getClock());
-                out.println();
+            }
+            current.addProperty("origin", contentServer);
+            current.addProperty("timestamp", timestamp);
+            return current;
+        });
+        if (merged == null) {
+            sendEmptyResponse(connection, "404 Not Found");
+            return;
+        }
+        recordChange(merged.get("id").getAsString(), false);
+        recordContact(contentServer);
+        long stored = STORE_UPDATE_TIME.recordSince(decoded);
+        boolean committed = persistence.commitPut(merged);
+        PERSISTENCE_TIME.recordSince(stored);
+        sendEmptyResponse(connection, committed ? "200 OK" : "500 Internal Server Error");
+    }
+
+    // Handles a PUT whose body is a JSON array (or NDJSON lines) of station objects. Valid entries
+    // are applied together, so a GET sees either none or all of them, and are logged with a single
+    // commit. Invalid entries are skipped. The response body lists the status of every entry.
+    private static void handleBatchPut(ClientConnection connection, byte[] body, int contentLength, boolean ndjson, long read) throws IOException {
+        List<JsonElement> elements = ndjson ? parseNdjson(body, contentLength) : parseJsonArray(body, contentLength);
+        long decoded = JSON_PARSE_TIME.recordSince(read);
+        if (elements == null) {
+            System.out.println("Invalid JSON array received: " + new String(body, 0, contentLength, StandardCharsets.UTF_8));
+            sendEmptyResponse(connection, "500 Internal Server Error");
+            return;
+        }
+
+        // Validate every entry and add the metadata; the last entry wins if an ID repeats.
+        String contentServer = connection.getOrigin();
+        long timestamp = Instant.now().toEpochMilli();
+        Map<String, JsonObject> batch = new LinkedHashMap<>();
+        JsonArray statuses = new JsonArray();
+        for (int i = 0; i < elements.size(); i++) {
+            JsonObject jsonObject = validEntry(elements.get(i));
+            JsonObject status = new JsonObject();
+            if (jsonObject == null) {
+                status.addProperty("index", i);
+                status.addProperty("status", 500);
+                status.addProperty("error", "Invalid JSON");
             } else {
-                out.println("HTTP/1.1 500 Internal Server Error");
-                out.println("Lamport-Clock: " + lamportClock.getClock());
-                out.println();
+                jsonObject.addProperty("origin", contentServer);
+                jsonObject.addProperty("timestamp", timestamp);
+                String entryId = jsonObject.get("id").getAsString();
+                status.addProperty("id", entryId);
+                status.addProperty("status", batch.containsKey(entryId) || weatherData.containsKey(entryId) ? 200 : 201);
+                batch.remove(entryId); // Keep the batch in request order.
+                batch.put(entryId, jsonObject);
             }
-        } catch (IOException e) {
-            System.out.println("File write error: " + e.getMessage());
-            out.println("HTTP/1.1 500 Internal Server Error");
-            out.println("Lamport-Clock: " + lamportClock.getClock());
-            out.println();
+            statuses.add(status);
+        }
+
+        boolean committed = true;
+        boolean isNewFile = !persistence.hasPersistedData();
+        if (!batch.isEmpty()) {
+            weatherData.putAll(batch);
+            for (String entryId : batch.keySet()) {
+                recordChange(entryId, false);
+            }
+            recordContact(contentServer);
+            long stored = STORE_UPDATE_TIME.recordSince(decoded);
+            committed = persistence.commitPuts(batch.values());
+            PERSISTENCE_TIME.recordSince(stored);
+        }
+
+        String status = !committed || batch.isEmpty() ? "500 Internal Server Error" : isNewFile ? "201 Created" : "200 OK";
+        byte[] response = statuses.toString().getBytes(StandardCharsets.UTF_8);
+        long writing = System.nanoTime();
+        PrintWriter out = connection.getWriter();
+        writeStatus(connection, status);
+        out.println("Content-Type: application/json");
+        out.println("Content-Length: " + response.length);
+        out.println();
+        connection.writeBody(response);
+        RESPONSE_WRITE_TIME.recordSince(writing);
+    }
+
+    // Records a change that has been applied to weatherData in the change log, and passes it on to
+    // the event streams.
+    private static void recordChange(String id, boolean removed) {
+        long clock = removed ? changeLog.recordRemoval(id) : changeLog.recordUpdate(id);
+        subscriptions.publish(id, clock);
+    }
+
+    // Records that a content server has been heard from, which keeps all of its data alive.
+    private static void recordContact(String contentServer) {
+        long lastContact = Instant.now().toEpochMilli();
+        serverTimestamps.put(contentServer, lastContact);
+        weatherData.touch(contentServer, lastContact);
+    }
+
+    // Checks whether a Content-Type names newline-delimited JSON.
+    static boolean isNdjson(String contentType) {
+        String mediaType = contentType.split(";", 2)[0].trim();
+        return mediaType.equalsIgnoreCase("application/x-ndjson") || mediaType.equalsIgnoreCase("application/ndjson");
+    }
+
+    // Returns the first byte that is not JSON whitespace, or -1 if there is none.
+    static int firstNonWhitespace(byte[] body, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = body[i];
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return b;
+            }
+        }
+        return -1;
+    }
+
+    // Decodes a UTF-8 body as a JSON array, or returns null if it is not one.
+    static List<JsonElement> parseJsonArray(byte[] body, int length) {
+        JsonElement jsonElement = parseJson(body, 0, length);
+        if (jsonElement == null || !jsonElement.isJsonArray()) {
+            return null;
+        }
+        return jsonElement.getAsJsonArray().asList();
+    }
+
+    // Decodes a UTF-8 body with one JSON value per line. A line that is not valid JSON becomes a
+    // null element, so it is reported as an invalid entry without rejecting the others.
+    static List<JsonElement> parseNdjson(byte[] body, int length) {
+        List<JsonElement> elements = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || body[i] == '\n') {
+                if (firstNonWhitespace(body, start, i - start) != -1) {
+                    elements.add(parseJson(body, start, i - start));
+                }
+                start = i + 1;
+            }
+        }
+        return elements;
+    }
+
+    // Decodes a UTF-8 request body as a JSON object with an "id". Returns null if the body is not
+    // valid JSON, not an object, or has no id.
+    public static JsonObject parseJsonObject(byte[] body, int length) {
+        return validEntry(parseJson(body, 0, length));
+    }
+
+    // Returns the element as a station object if it is an object with an "id", otherwise null.
+    static JsonObject validEntry(JsonElement jsonElement) {
+        if (jsonElement == null || !jsonElement.isJsonObject()) {
+            return null;
+        }
+        JsonElement id = jsonElement.getAsJsonObject().get("id");
+        return id != null && id.isJsonPrimitive() ? jsonElement.getAsJsonObject() : null;
+    }
+
+    // Decodes part of a UTF-8 body in a single pass, or returns null if it is not valid JSON.
+    private static JsonElement parseJson(byte[] body, int offset, int length) {
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(body, offset, length), StandardCharsets.UTF_8)) {
+            return JsonParser.parseReader(reader);
+        } catch (JsonParseException | IOException e) {
+            return null; // Return null if JSON is invalid.
         }
     }
 
@@ -178,77 +575,491 @@ public class AggregationServer {
         }
     }
 
-    // Handles GET requests to retrieve and send weather data.
-    public static void handleGetRequest(PrintWriter out, Map<String, String> headers) throws IOException {
-        lamportClock.tick(); // Increment the Lamport clock for the GET request.
+    // Makes this server a router for the given nodes (host:port). Stations are assigned to the
+    // nodes by consistent hashing, so the same nodes must be listed on every router.
+    public static void startRouting(List<String> nodes) {
+        List<String> trimmed = new ArrayList<>();
+        for (String node : nodes) {
+            if (!node.isBlank()) trimmed.add(node.trim());
+        }
+        router = new AggregationRouter(new HashRing(trimmed, VIRTUAL_NODES), lamportClock);
+        System.out.println("Routing to nodes " + trimmed);
+    }
+
+    // Stops routing; the server answers requests from its own store again.
+    public static void stopRouting() {
+        AggregationRouter current = router;
+        router = null;
+        if (current != null) {
+            current.close();
+        }
+    }
 
-        // Convert the weather data to JSON format.
-        String jsonResponse = weatherData.isEmpty() ? "[]" : convertToJson(weatherData);
+    // Makes this server a backup of the primary at host:port. Its data follows the primary's, it
+    // answers GETs, and it refuses writes until it is promoted.
+    public static void startFollowing(String primary) {
+        String[] parts = primary.split(":");
+        follower = new ReplicationFollower(parts[0], Integer.parseInt(parts[1]), weatherData, lamportClock,
+                AggregationServer::applyReplicated, 1_000);
+        follower.start();
+        System.out.println("Replicating from primary " + primary);
+    }
+
+    // Records a change received from the primary like a local one: in the change log, on the event
+    // streams (so backups can be chained) and in the local files, without waiting for the commit.
+    private static void applyReplicated(String id, JsonObject value) {
+        recordChange(id, value == null);
+        if (value == null) {
+            persistence.logExpire(id);
+        } else {
+            persistence.logPut(value);
+        }
+    }
+
+    // Answers a write sent to a backup with 503 and the primary's address, so content servers
+    // retry it and succeed once this backup has been promoted or they are pointed at the primary.
+    private static void rejectWrite(ClientConnection connection, Map<String, String> headers, ReplicationFollower backupOf) throws IOException {
+        discardBody(connection, headers);
+        PrintWriter out = connection.getWriter();
+        writeStatus(connection, "503 Service Unavailable");
+        out.println("Primary: " + backupOf.getPrimary());
+        out.println("Content-Length: 0");
+        out.println();
+    }
+
+    // Handles "POST /promote": a backup stops following its primary and starts accepting writes
+    // and expiring data itself. Its data is as new as the last change it received.
+    private static void handlePromoteRequest(ClientConnection connection) {
+        ReplicationFollower current = follower;
+        if (current == null) {
+            sendEmptyResponse(connection, "409 Conflict"); // Already a primary.
+            return;
+        }
+        follower = null;
+        current.close();
+        persistence.commit();
+        renewContacts(); // Keep-alives went to the old primary and were not replicated.
+        System.out.println("Promoted to primary at clock " + lamportClock.getClock() + " (" + current.getAppliedCount()
+                + " changes replicated from " + current.getPrimary() + ")");
+        sendEmptyResponse(connection, "200 OK");
+    }
+
+    // Handles "GET /metrics", which returns the server's counters, gauges and latency histograms in
+    // the Prometheus text format.
+    private static void handleMetricsRequest(ClientConnection connection) throws IOException {
+        byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+        PrintWriter out = connection.getWriter();
+        writeStatus(connection, "200 OK");
+        out.println("Content-Type: text/plain; version=0.0.4; charset=utf-8");
+        out.println("Content-Length: " + body.length);
+        out.println();
+        connection.writeBody(body);
+    }
+
+    // Handles GET requests to retrieve and send weather data. "?id=a,b,c" selects stations by ID and is
+    // answered straight from the store; otherwise the full data set is sent. Clients may ask for compact
+    // JSON ("Accept: application/json; format=compact") and gzip ("Accept-Encoding: gzip"). Full bodies
+    // are cached per store version and representation; the version is also sent in the ETag so
+    // unchanged data can be answered with 304. "?since=<clock>" asks for the changes after that clock.
+    public static void handleGetRequest(ClientConnection connection, String path, Map<String, String> headers) throws IOException {
+        Map<String, String> query = parseQuery(path);
+        boolean compact = wantsCompactJson(headers);
+        boolean gzip = acceptsGzip(headers);
+        if (headers.getOrDefault("Accept", "").contains("text/event-stream")) {
+            handleSubscribeRequest(connection, query);
+            return;
+        }
+        if (query.containsKey("since")) {
+            handleChangesRequest(connection, query, gzip);
+            return;
+        }
+        String variant = (compact ? "compact" : "pretty") + (gzip ? "+gzip" : "");
+        long version = weatherData.getVersion();
+        String etag = ResponseCache.etag(version, variant);
+        PrintWriter out = connection.getWriter();
+        if (etag.equals(headers.get("If-None-Match"))) {
+            writeStatus(connection, "304 Not Modified");
+            out.println("ETag: " + etag);
+            out.println();
+            return;
+        }
+
+        long encoding = System.nanoTime();
+        byte[] jsonResponse;
+        String ids = query.get("id");
+        if (ids != null) {
+            // Look up the requested stations; only their entries are encoded.
+            jsonResponse = weatherData.readConsistent(() -> encodeStations(ids.split(","), compact));
+            if (jsonResponse == null) {
+                sendEmptyResponse(connection, "404 Not Found");
+                return;
+            }
+            if (gzip && jsonResponse.length >= GZIP_MIN_BYTES) {
+                jsonResponse = gzip(jsonResponse);
+            } else {
+                gzip = false;
+            }
+        } else {
+            // Convert the weather data to JSON format, reusing the last encoding if nothing changed.
+            byte[] plain = responseCache.get(compact ? "compact" : "pretty", version, () -> weatherData.readConsistent(() -> compact
+                    ? encodeEntries(weatherData.storedEntries())
+                    : (weatherData.isEmpty() ? "[]" : convertToJson(weatherData)).getBytes(StandardCharsets.UTF_8))).body;
+            if (gzip && plain.length >= GZIP_MIN_BYTES) {
+                jsonResponse = responseCache.get(variant, version, () -> gzip(plain)).body;
+            } else {
+                jsonResponse = plain;
+                gzip = false;
+            }
+        }
+
+        long writing = ENCODE_TIME.recordSince(encoding);
 
         // Send the HTTP response with the JSON data.
-        out.println("HTTP/1.1 200 OK");
+        writeStatus(connection, "200 OK");
         out.println("Content-Type: application/json");
-        out.println("Content-Length: " + jsonResponse.length());
-        out.println("Lamport-Clock: " + lamportClock.getClock());
+        if (gzip) {
+            out.println("Content-Encoding: gzip");
+        }
+        out.println("Content-Length: " + jsonResponse.length);
+        out.println("ETag: " + etag);
+        out.println("Vary: Accept, Accept-Encoding");
         out.println();
 
-        out.print(jsonResponse); // Send the JSON response body.
+        connection.writeBody(jsonResponse); // Send the JSON response body.
+        RESPONSE_WRITE_TIME.recordSince(writing);
+    }
+
+    // Handles "GET /weather.json?since=<clock>[&epoch=<epoch>]", which returns only what changed after
+    // the given Lamport clock value (as compact JSON):
+    //   {"epoch":E,"clock":C,"full":false,"updated":[stations...],"removed":["id",...]}
+    // The client passes C and E as since and epoch in its next request. If the change log no longer
+    // reaches back that far (or the server has restarted), "full" is true and "updated" holds every
+    // station, which then replaces the client's copy.
+    private static void handleChangesRequest(ClientConnection connection, Map<String, String> query, boolean gzip) throws IOException {
+        long since;
+        Long epoch;
+        try {
+            since = Long.parseLong(query.get("since"));
+            epoch = query.containsKey("epoch") ? Long.valueOf(query.get("epoch")) : null;
+        } catch (NumberFormatException e) {
+            sendEmptyResponse(connection, "400 Bad Request");
+            return;
+        }
+
+        // Changes are logged after they are applied, so the stations read here are at least as new
+        // as the changes; a newer value sent now is sent again with its own change next time.
+        ChangeLog.Changes changes = changeLog.since(since, epoch);
+        byte[] body = weatherData.readConsistent(() -> encodeChanges(changes));
+        if (gzip && body.length >= GZIP_MIN_BYTES) {
+            body = gzip(body);
+        } else {
+            gzip = false;
+        }
+
+        PrintWriter out = connection.getWriter();
+        writeStatus(connection, "200 OK");
+        out.println("Content-Type: application/json");
+        if (gzip) {
+            out.println("Content-Encoding: gzip");
+        }
+        out.println("Content-Length: " + body.length);
+        out.println("Vary: Accept-Encoding");
+        out.println();
+        connection.writeBody(body);
+    }
+
+    // Handles a GET with "Accept: text/event-stream": the connection becomes a Server-Sent Events
+    // stream on which every later change of the stations in "?id=a,b" (or of all stations) is
+    // pushed as an "update" event with the station's JSON or a "remove" event with its ID. The
+    // event ID is the change's Lamport clock, so "?since=" can fill any gap after a reconnect.
+    private static void handleSubscribeRequest(ClientConnection connection, Map<String, String> query) throws IOException {
+        if (!subscriptions.hasCapacity()) {
+            sendOverloaded(connection, RETRY_AFTER_SECONDS);
+            return;
+        }
+        Set<String> stations = null;
+        if (query.get("id") != null) {
+            stations = new HashSet<>();
+            for (String id : query.get("id").split(",")) {
+                stations.add(id.trim());
+            }
+        }
+
+        // The stream lasts until either side closes the connection, so no further requests are read.
+        connection.detach();
+        PrintWriter out = connection.getWriter();
+        writeStatus(connection, "200 OK");
+        out.println("Content-Type: text/event-stream");
+        out.println("Cache-Control: no-cache");
+        out.println();
         out.flush();
+        Socket socket = connection.getSocket();
+        if (subscriptions.subscribe(socket.getOutputStream(), socket, stations) == null) {
+            socket.close(); // The limit was reached in the meantime.
+        }
     }
 
-    // Writes the weather data to a temporary file.
-    public static void writeToTempFile(Map<String, JsonObject> data) throws IOException {
-        try (FileWriter fileWriter = new FileWriter(TEMP_FILE)) {
-            fileWriter.write(new Gson().toJson(data.values()));
+    // Returns the compact JSON of a station for the event streams, or null if it does not exist.
+    private static byte[] encodeStation(String id) {
+        WeatherStore.StoredEntry entry = weatherData.getEntry(id);
+        return entry == null ? null : entry.getEncoded();
+    }
+
+    // Encodes a change-feed response with the current data of the changed stations.
+    private static byte[] encodeChanges(ChangeLog.Changes changes) {
+        Collection<WeatherStore.StoredEntry> updated;
+        JsonArray removed = new JsonArray();
+        if (changes.full) {
+            updated = weatherData.storedEntries();
+        } else {
+            updated = new ArrayList<>();
+            for (Map.Entry<String, Boolean> change : changes.stations.entrySet()) {
+                WeatherStore.StoredEntry entry = change.getValue() ? null : weatherData.getEntry(change.getKey());
+                if (entry != null) {
+                    updated.add(entry);
+                } else {
+                    removed.add(change.getKey()); // Removed, possibly after the update was logged.
+                }
+            }
         }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes(("{\"epoch\":" + changes.epoch + ",\"clock\":" + changes.clock + ",\"full\":" + changes.full
+                + ",\"updated\":").getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(encodeEntries(updated));
+        body.writeBytes((",\"removed\":" + removed + "}").getBytes(StandardCharsets.UTF_8));
+        return body.toByteArray();
     }
 
-    // Commits the temporary file to the final data file.
-    public static boolean commitTempFile() throws IOException {
-        File tempFile = new File(TEMP_FILE);
-        File finalFile = new File(DATA_FILE);
+    // Encodes the entries with the given IDs as a JSON array, or returns null if none exist.
+    private static byte[] encodeStations(String[] ids, boolean compact) {
+        List<WeatherStore.StoredEntry> entries = new ArrayList<>();
+        for (String id : ids) {
+            WeatherStore.StoredEntry entry = weatherData.getEntry(id.trim());
+            if (entry != null) entries.add(entry);
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        if (compact) {
+            return encodeEntries(entries);
+        }
+        List<JsonObject> values = new ArrayList<>();
+        for (WeatherStore.StoredEntry entry : entries) {
+            values.add(entry.getValue());
+        }
+        return PRETTY_GSON.toJson(values).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Encodes entries as a compact JSON array by joining their stored encodings.
+    private static byte[] encodeEntries(Collection<WeatherStore.StoredEntry> entries) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write('[');
+        boolean first = true;
+        for (WeatherStore.StoredEntry entry : entries) {
+            if (!first) body.write(',');
+            body.writeBytes(entry.getEncoded());
+            first = false;
+        }
+        body.write(']');
+        return body.toByteArray();
+    }
 
-        try (FileReader fileReader = new FileReader(tempFile);
-             FileWriter fileWriter = new FileWriter(finalFile)) {
+    // Checks whether the client asked for compact JSON with "Accept: application/json; format=compact".
+    static boolean wantsCompactJson(Map<String, String> headers) {
+        return headers.getOrDefault("Accept", "").toLowerCase().replace(" ", "").contains("format=compact");
+    }
 
-            char[] buffer = new char[1024];
-            int read;
-            while ((read = fileReader.read(buffer)) != -1) {
-                fileWriter.write(buffer, 0, read);
+    // Checks whether the client accepts gzip-compressed bodies (and has not disabled it with q=0).
+    static boolean acceptsGzip(Map<String, String> headers) {
+        for (String coding : headers.getOrDefault("Accept-Encoding", "").split(",")) {
+            String[] parts = coding.trim().toLowerCase().split(";");
+            if (parts[0].trim().equals("gzip")) {
+                return !(parts.length > 1 && parts[1].replace(" ", "").matches("q=0(\\.0*)?"));
             }
-            return true; // Return true if file writing is successful.
+        }
+        return false;
+    }
+
+    // Compresses a body with gzip.
+    static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream stream = new GZIPOutputStream(compressed)) {
+            stream.write(body);
         } catch (IOException e) {
-            System.out.println("Error while copying file: " + e.getMessage());
-            return false;
-        } finally {
-            tempFile.delete(); // Delete the temporary file after committing.
+            throw new UncheckedIOException(e); // Cannot happen with in-memory streams.
+        }
+        return compressed.toByteArray();
+    }
+
+    // Parses the query string of a request path into decoded parameters.
+    public static Map<String, String> parseQuery(String path) {
+        Map<String, String> parameters = new HashMap<>();
+        int start = path.indexOf('?');
+        if (start == -1) {
+            return parameters;
+        }
+        for (String pair : path.substring(start + 1).split("&")) {
+            if (pair.isEmpty()) continue;
+            int separator = pair.indexOf('=');
+            String name = separator == -1 ? pair : pair.substring(0, separator);
+            String value = separator == -1 ? "" : pair.substring(separator + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    // Writes the status line followed by the Lamport-Clock and connection management headers.
+    static void writeStatus(ClientConnection connection, String status) {
+        PrintWriter out = connection.getWriter();
+        out.println("HTTP/1.1 " + status);
+        out.println("Lamport-Clock: " + connection.getClock());
+        connection.writeConnectionHeaders(KEEP_ALIVE_TIMEOUT_MILLIS, KEEP_ALIVE_MAX_REQUESTS);
+    }
+
+    // Returns the request's Content-Length, 0 if it has none, or -1 if it is not a non-negative number.
+    static int contentLength(Map<String, String> headers) {
+        try {
+            return Math.max(-1, Integer.parseInt(headers.getOrDefault("Content-Length", "0")));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Returns the length of the request body about to be read. An invalid Content-Length is
+    // answered with 400 Bad Request, and one over MAX_BODY_BYTES with 413 Payload Too Large before
+    // anything is allocated for it; -1 is returned then. The body is not skipped, so the connection
+    // is closed after the response.
+    static int bodyLength(ClientConnection connection, Map<String, String> headers) {
+        int contentLength = contentLength(headers);
+        if (contentLength < 0 || contentLength > MAX_BODY_BYTES) {
+            connection.closeAfterResponse();
+            sendEmptyResponse(connection, contentLength < 0 ? "400 Bad Request" : "413 Payload Too Large");
+            return -1;
+        }
+        return contentLength;
+    }
+
+    // Reads and drops the body of a request that is refused, so the connection stays usable for
+    // the next request. If the body's length is unknown or too large the connection is closed instead.
+    private static void discardBody(ClientConnection connection, Map<String, String> headers) throws IOException {
+        int contentLength = contentLength(headers);
+        if (contentLength < 0 || contentLength > MAX_BODY_BYTES) {
+            connection.closeAfterResponse();
+        } else if (contentLength > 0) {
+            connection.readBody(contentLength);
+        }
+    }
+
+    // Sends "503 Service Unavailable" with the number of seconds after which the client may retry.
+    static void sendOverloaded(ClientConnection connection, int retryAfterSeconds) {
+        PrintWriter out = connection.getWriter();
+        writeStatus(connection, "503 Service Unavailable");
+        out.println("Retry-After: " + retryAfterSeconds);
+        out.println("Content-Length: 0");
+        out.println();
+    }
+
+    // Sends a response without a body.
+    static void sendEmptyResponse(ClientConnection connection, String status) {
+        long writing = System.nanoTime();
+        PrintWriter out = connection.getWriter();
+        writeStatus(connection, status);
+        if (!status.startsWith("204")) {
+            out.println("Content-Length: 0"); // Lets keep-alive clients know no body follows.
         }
+        out.println();
+        RESPONSE_WRITE_TIME.recordSince(writing);
+    }
+
+    // Writes the weather data to a temporary file.
+    public static void writeToTempFile(Map<String, JsonObject> data) throws IOException {
+        PersistenceWriter.writeSnapshot(data, TEMP_FILE);
+    }
+
+    // Commits the temporary file to the final data file by atomically renaming it.
+    public static boolean commitTempFile() throws IOException {
+        return PersistenceWriter.commitSnapshot(TEMP_FILE, DATA_FILE);
     }
 
     // Converts the weather data map to a pretty-printed JSON string.
     public static String convertToJson(Map<String, JsonObject> weatherData) {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
         Collection<JsonObject> dataCollection = weatherData.values();
-        return gson.toJson(dataCollection); // Return the JSON string.
+        return PRETTY_GSON.toJson(dataCollection); // Return the JSON string.
     }
 
-    // Removes expired data entries from the weatherData map.
+    // Removes expired data entries from the weatherData map and logs each removal. Data expires
+    // once its content server has not been heard from for EXPIRATION_TIME_MILLIS; entries without
+    // an origin expire by their own timestamp, and entries without a timestamp right away. Only
+    // the content servers that are due are visited, so entries still encoded in a snapshot are
+    // not decoded and live ones are not touched.
     public static void cleanExpiredData() {
-        long currentTime = Instant.now().toEpochMilli(); // Get the current timestamp.
+        if (follower != null) {
+            return; // A backup removes data when its primary does.
+        }
+        long started = System.nanoTime();
+        long cutoff = Instant.now().toEpochMilli() - EXPIRATION_TIME_MILLIS;
+        for (WeatherStore.StoredEntry entry : weatherData.removeExpired(cutoff)) {
+            recordChange(entry.getId(), true);
+            persistence.logExpire(entry.getId());
+            EXPIRED_STATIONS.increment();
+        }
+        EXPIRY_SWEEP_TIME.recordSince(started);
+    }
 
-        // Remove entries that have expired based on the defined expiration time.
-        weatherData.entrySet().removeIf(entry -> {
-            JsonObject jsonObject = entry.getValue();
-            JsonElement timestampElement = jsonObject.get("timestamp");
+    // Registers the latency histogram of one request phase.
+    private static Metrics.Histogram phase(String name) {
+        return metrics.histogram("weather_request_phase_seconds", "Time spent in each phase of a request.", "phase=\"" + name + "\"");
+    }
 
-            // If timestamp exists and is not null, check for expiration.
-            if (timestampElement != null && !timestampElement.isJsonNull()) {
-                long timestamp = timestampElement.getAsLong();
-                return currentTime - timestamp > EXPIRATION_TIME_MILLIS; // Remove if expired.
+    // Resolves the comma-separated list of router hosts to the IP addresses they connect from.
+    // Hosts that cannot be resolved are reported and left out.
+    private static Set<String> trustedRouters(String list) {
+        Set<String> addresses = new HashSet<>();
+        for (String host : list.split(",")) {
+            if (host.isBlank()) continue;
+            try {
+                for (InetAddress address : InetAddress.getAllByName(host.trim())) {
+                    addresses.add(address.getHostAddress());
+                }
+            } catch (UnknownHostException e) {
+                System.err.println("Unknown trusted router: " + host.trim());
             }
+        }
+        return Set.copyOf(addresses);
+    }
 
-            // If timestamp is missing or invalid, remove the entry as well.
-            return true;
-        });
+    // Counts every content server that has data in the store as heard from now. Entries carry the
+    // time of their last full PUT, but a live content server may have sent only keep-alives since,
+    // which are not persisted; this gives each of them one expiry window to get back in touch.
+    static void renewContacts() {
+        long now = Instant.now().toEpochMilli();
+        for (String origin : weatherData.origins()) {
+            serverTimestamps.put(origin, now);
+            weatherData.touch(origin, now);
+        }
+    }
+
+    // Splits the comma-separated list of shard directories, creating any that do not exist.
+    private static List<String> shardDirectories(String list) {
+        List<String> directories = new ArrayList<>();
+        for (String directory : list.split(",")) {
+            if (directory.isBlank()) continue;
+            new File(directory.trim()).mkdirs();
+            directories.add(directory.trim());
+        }
+        return directories;
+    }
+
+    // Rebuilds weatherData and serverTimestamps from the snapshot and write-ahead log on startup.
+    public static void loadPersistedData() {
+        try {
+            long start = System.currentTimeMillis();
+            int replayed = persistence.recover();
+            renewContacts();
+            System.out.println("Recovered " + weatherData.size() + " entries (" + replayed + " log events) in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            System.out.println("Could not recover persisted data: " + e.getMessage());
+        }
     }
 }
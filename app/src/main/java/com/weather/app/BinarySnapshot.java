@@ -0,0 +1,299 @@
+// File: BinarySnapshot.java
+// This file contains the BinarySnapshot class, a compact snapshot format for the weather
+// store that can be memory-mapped at startup without parsing any station's JSON. The index is
+// sorted by station ID, so the store looks an entry up in the mapped file when it is first
+// needed instead of reading every index entry at startup.
+//
+// Layout (big-endian):
+//   header    : magic "WXSN", int version, int entry count, int origin count, int origin-less count
+//   origins   : per content server: short length, origin bytes, long latest timestamp
+//   originless: int slot of every entry without an origin
+//   slots     : per entry, in ID order: int position of its index entry
+//   index     : per entry: short id length, id bytes, short origin length (-1 if none),
+//               origin bytes, long timestamp, long record offset, int record length
+//   records   : per entry: int length followed by the entry as compact UTF-8 JSON
+
+package com.weather.app;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class BinarySnapshot {
+    private static final int MAGIC = 0x5758534E; // "WXSN"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 5 * Integer.BYTES;
+
+    // A loaded snapshot whose entries have not all been taken into the store yet. Each entry is
+    // handed out (claimed) at most once; after that the store's own map holds it, or it was
+    // replaced or removed.
+    static class Index {
+        private final ByteBuffer buffer; // The mapped file.
+        private final int count;
+        private final int slotTable; // Position of the table of index entry positions.
+        private final BitSet claimed;
+        private int unclaimed;
+
+        Index(ByteBuffer buffer, int count, int slotTable) {
+            this.buffer = buffer;
+            this.count = count;
+            this.slotTable = slotTable;
+            this.claimed = new BitSet(count);
+            this.unclaimed = count;
+        }
+
+        synchronized int getUnclaimedCount() {
+            return unclaimed;
+        }
+
+        // Claims the entry with the given ID. Returns null if there is none or it was claimed before.
+        synchronized WeatherStore.StoredEntry claim(String id) {
+            int slot = find(id.getBytes(StandardCharsets.UTF_8));
+            return slot < 0 || claimed.get(slot) ? null : claimSlot(slot);
+        }
+
+        // Claims every entry of the given content server that has not been claimed yet.
+        synchronized List<WeatherStore.StoredEntry> claimOrigin(String origin) {
+            byte[] wanted = origin.getBytes(StandardCharsets.UTF_8);
+            List<WeatherStore.StoredEntry> entries = new ArrayList<>();
+            for (int slot = claimed.nextClearBit(0); slot < count; slot = claimed.nextClearBit(slot + 1)) {
+                int position = skipString(buffer, positionOf(slot));
+                if (buffer.getShort(position) >= 0 && compareString(position, wanted) == 0) {
+                    entries.add(claimSlot(slot));
+                }
+            }
+            return entries;
+        }
+
+        // Claims every entry that has not been claimed yet.
+        synchronized List<WeatherStore.StoredEntry> claimAll() {
+            List<WeatherStore.StoredEntry> entries = new ArrayList<>(unclaimed);
+            for (int slot = claimed.nextClearBit(0); slot < count; slot = claimed.nextClearBit(slot + 1)) {
+                entries.add(claimSlot(slot));
+            }
+            return entries;
+        }
+
+        // Returns the station ID in the given slot.
+        String idAt(int slot) {
+            ByteBuffer entry = buffer.duplicate().position(positionOf(slot));
+            return readString(entry);
+        }
+
+        private WeatherStore.StoredEntry claimSlot(int slot) {
+            claimed.set(slot);
+            unclaimed--;
+            ByteBuffer entry = buffer.duplicate().position(positionOf(slot));
+            String id = readString(entry);
+            String origin = readString(entry);
+            long timestamp = entry.getLong();
+            long offset = entry.getLong();
+            int length = entry.getInt();
+            return new WeatherStore.StoredEntry(id, origin, timestamp, buffer, (int) offset, length);
+        }
+
+        // Binary search over the slots, comparing the UTF-8 bytes of the IDs in the mapped file.
+        private int find(byte[] id) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int order = compareString(positionOf(middle), id);
+                if (order < 0) {
+                    low = middle + 1;
+                } else if (order > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+
+        private int positionOf(int slot) {
+            return buffer.getInt(slotTable + slot * Integer.BYTES);
+        }
+
+        // Compares the length-prefixed string at the position with the given bytes, as unsigned bytes.
+        private int compareString(int position, byte[] other) {
+            int length = buffer.getShort(position);
+            for (int i = 0; i < Math.min(length, other.length); i++) {
+                int order = Integer.compare(buffer.get(position + Short.BYTES + i) & 0xff, other[i] & 0xff);
+                if (order != 0) return order;
+            }
+            return Integer.compare(length, other.length);
+        }
+    }
+
+    // Writes every entry of the store to the given file and forces it to disk.
+    public static void write(WeatherStore store, String file) throws IOException {
+        write(store.storedEntries(), file);
+    }
+
+    // Writes the given entries (e.g. one shard of the store) to the file and forces it to disk.
+    public static void write(Collection<WeatherStore.StoredEntry> storedEntries, String file) throws IOException {
+        // Sort by the UTF-8 bytes of the ID, the order the index is searched in.
+        List<Map.Entry<byte[], WeatherStore.StoredEntry>> entries = new ArrayList<>(storedEntries.size());
+        for (WeatherStore.StoredEntry entry : storedEntries) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getId().getBytes(StandardCharsets.UTF_8), entry));
+        }
+        entries.sort((a, b) -> Arrays.compareUnsigned(a.getKey(), b.getKey()));
+
+        List<byte[]> records = new ArrayList<>(entries.size());
+        int[] slots = new int[entries.size()]; // Index entry positions, relative to the start of the index.
+        Map<String, Long> origins = new LinkedHashMap<>(); // Content server -> its latest timestamp.
+        List<Integer> originless = new ArrayList<>();
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+
+        // Record offsets are relative to the start of the record section until the index size is known.
+        long recordOffset = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            WeatherStore.StoredEntry entry = entries.get(i).getValue();
+            byte[] record = entry.getEncoded();
+            records.add(record);
+            slots[i] = index.size();
+            writeString(index, entry.getId());
+            writeString(index, entry.getOrigin());
+            index.writeLong(entry.getTimestamp());
+            index.writeLong(recordOffset + Integer.BYTES); // Points past the length prefix.
+            index.writeInt(record.length);
+            recordOffset += Integer.BYTES + record.length;
+            if (entry.getOrigin() != null) {
+                origins.merge(entry.getOrigin(), entry.getTimestamp(), Math::max);
+            } else {
+                originless.add(i);
+            }
+        }
+        index.flush();
+
+        ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+        DataOutputStream tables = new DataOutputStream(tableBytes);
+        for (Map.Entry<String, Long> origin : origins.entrySet()) {
+            writeString(tables, origin.getKey());
+            tables.writeLong(origin.getValue());
+        }
+        for (int slot : originless) {
+            tables.writeInt(slot);
+        }
+        long indexStart = HEADER_BYTES + tableBytes.size() + (long) slots.length * Integer.BYTES;
+        long recordBase = indexStart + indexBytes.size();
+        if (recordBase + recordOffset > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot too large: " + (recordBase + recordOffset) + " bytes");
+        }
+        for (int slot : slots) {
+            tables.writeInt((int) indexStart + slot);
+        }
+        tables.flush();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putInt(origins.size()).putInt(originless.size()).flip();
+            writeFully(channel, header);
+            writeFully(channel, ByteBuffer.wrap(tableBytes.toByteArray()));
+
+            // Rewrite the index with absolute record offsets.
+            ByteBuffer indexBuffer = ByteBuffer.wrap(indexBytes.toByteArray());
+            for (int i = 0, position = 0; i < entries.size(); i++) {
+                position = skipString(indexBuffer, position);
+                position = skipString(indexBuffer, position);
+                position += Long.BYTES;
+                indexBuffer.putLong(position, indexBuffer.getLong(position) + recordBase);
+                position += Long.BYTES + Integer.BYTES;
+            }
+            writeFully(channel, indexBuffer);
+
+            ByteBuffer recordBuffer = ByteBuffer.allocate(64 * 1024);
+            for (byte[] record : records) {
+                if (recordBuffer.remaining() < Integer.BYTES + record.length) {
+                    recordBuffer.flip();
+                    writeFully(channel, recordBuffer);
+                    recordBuffer.clear();
+                    if (recordBuffer.capacity() < Integer.BYTES + record.length) {
+                        recordBuffer = ByteBuffer.allocate(Integer.BYTES + record.length);
+                    }
+                }
+                recordBuffer.putInt(record.length).put(record);
+            }
+            recordBuffer.flip();
+            writeFully(channel, recordBuffer);
+            channel.force(true); // Make the snapshot durable before it is renamed into place.
+        }
+    }
+
+    // Memory-maps the snapshot and hands its index to the store, which takes entries from it when
+    // they are first needed. Only the content servers (for expiry) and the entries without an
+    // origin, which expire one by one, are read now. Returns the number of entries in the file.
+    public static int load(String file, WeatherStore store) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // The mapping outlives the channel.
+        }
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a weather snapshot: " + file);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + " in " + file);
+        }
+        int count = buffer.getInt();
+        int originCount = buffer.getInt();
+        int originlessCount = buffer.getInt();
+        for (int i = 0; i < originCount; i++) {
+            String origin = readString(buffer);
+            store.touch(origin, buffer.getLong());
+        }
+        int[] originless = new int[originlessCount];
+        for (int i = 0; i < originlessCount; i++) {
+            originless[i] = buffer.getInt();
+        }
+        Index index = new Index(buffer, count, buffer.position());
+        store.addSnapshot(index);
+        for (int slot : originless) {
+            store.getEntry(index.idAt(slot)); // Takes the entry into the store, and so into expiry.
+        }
+        return count;
+    }
+
+    // Writes a length-prefixed UTF-8 string, using length -1 for null.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IOException("String too long for snapshot index: " + value.substring(0, 32) + "...");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    // Reads a string written by writeString.
+    private static String readString(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Returns the position just after the string starting at the given position.
+    private static int skipString(ByteBuffer buffer, int position) {
+        short length = buffer.getShort(position);
+        return position + Short.BYTES + Math.max(length, 0);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+// File: ChangeLog.java
+// This file contains the ChangeLog class, a bounded in-memory record of which stations were
+// updated or removed, and at which Lamport clock value. It lets the AggregationServer answer
+// "what changed since clock C" without sending the whole store. The oldest changes are dropped
+// once the log is full; a client that is further behind than that gets a full snapshot instead.
+
+package com.weather.app;
+
+import java.util.*;
+
+public class ChangeLog {
+    public static final int DEFAULT_CAPACITY = 65_536; // Changes kept before the oldest are dropped.
+
+    private final LamportClock lamportClock;
+    private final long epoch; // Identifies this log; clock values from another server run are not comparable.
+    private final long[] clocks; // Ring buffer of changes, oldest at (next - size).
+    private final String[] ids;
+    private final boolean[] deletions;
+    private int next; // Index the next change is written to.
+    private int size;
+    private long floor; // Changes at or before this clock may be missing from the log.
+    private long latest; // Clock of the newest change, or the floor if there is none.
+
+    // The changes after some clock value: the stations that were updated (false) or removed (true),
+    // each with its last operation, in the order of their last change. If full is set, the log
+    // does not reach back far enough and the client must replace its copy with the whole store.
+    public static class Changes {
+        public final long epoch;
+        public final long clock; // Pass as "since" next time to get the changes after these.
+        public final boolean full;
+        public final Map<String, Boolean> stations;
+
+        Changes(long epoch, long clock, boolean full, Map<String, Boolean> stations) {
+            this.epoch = epoch;
+            this.clock = clock;
+            this.full = full;
+            this.stations = stations;
+        }
+    }
+
+    public ChangeLog(LamportClock lamportClock, int capacity) {
+        this.lamportClock = lamportClock;
+        this.epoch = System.currentTimeMillis();
+        this.clocks = new long[capacity];
+        this.ids = new String[capacity];
+        this.deletions = new boolean[capacity];
+        this.floor = lamportClock.getClock(); // Data that existed before the log was created is not in it.
+        this.latest = floor;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    // Records that a station was updated, and returns the clock value of the change.
+    public long recordUpdate(String id) {
+        return append(id, false);
+    }
+
+    // Records that a station was removed, and returns the clock value of the change.
+    public long recordRemoval(String id) {
+        return append(id, true);
+    }
+
+    // Ticks the clock and appends the change under the same lock, so changes are logged in clock
+    // order. Callers record a change after applying it to the store, so anything a reader finds in
+    // the log is already visible there.
+    private synchronized long append(String id, boolean deleted) {
+        long clock = lamportClock.tickAndGet();
+        if (size == clocks.length) {
+            floor = clocks[next]; // Overwrite the oldest change.
+        } else {
+            size++;
+        }
+        clocks[next] = clock;
+        ids[next] = id;
+        deletions[next] = deleted;
+        next = (next + 1) % clocks.length;
+        latest = clock;
+        return clock;
+    }
+
+    // Returns the changes after the given clock value. A full snapshot is asked for when the log no
+    // longer holds all of them, or when the value cannot come from this log (another epoch, or
+    // newer than anything logged, as after a server restart).
+    public synchronized Changes since(long since, Long sinceEpoch) {
+        if (since <= floor || since > latest || (sinceEpoch != null && sinceEpoch != epoch)) {
+            return new Changes(epoch, latest, true, Collections.emptyMap());
+        }
+        int count = 0; // Changes newer than since, found from the newest backwards.
+        while (count < size && clocks[index(count)] > since) {
+            count++;
+        }
+        Map<String, Boolean> stations = new LinkedHashMap<>();
+        for (int i = count - 1; i >= 0; i--) {
+            int index = index(i);
+            stations.remove(ids[index]); // Keep each station at the position of its last change.
+            stations.put(ids[index], deletions[index]);
+        }
+        return new Changes(epoch, latest, false, stations);
+    }
+
+    // Returns the ring index of the change that is back positions before the newest one.
+    private int index(int back) {
+        return Math.floorMod(next - 1 - back, clocks.length);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
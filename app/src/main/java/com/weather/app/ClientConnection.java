@@ -0,0 +1,196 @@
+// File: ClientConnection.java
+// This file contains the ClientConnection class, which keeps the per-connection state
+// AggregationServer needs to serve several (possibly pipelined) requests on one socket.
+// Requests are read as bytes, so a body is exactly Content-Length bytes whatever its encoding.
+
+package com.weather.app;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+public class ClientConnection implements Closeable {
+    private static final int MAX_KEPT_BODY_BYTES = 64 * 1024; // Larger bodies get a buffer that is not kept.
+
+    private final Socket socket;
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192]; // Kept for the whole connection so pipelined requests are not lost.
+    private int position; // Next unread byte in the buffer.
+    private int limit; // End of the buffered bytes.
+    private byte[] body = new byte[8192]; // Reused for request bodies; grows up to MAX_KEPT_BODY_BYTES.
+    private final PrintWriter out;
+    private final OutputStream rawOut; // Used for response bodies that are already encoded.
+    private final String origin; // Address of the client, recorded as the origin of PUT data.
+    private final String peerAddress; // The client's IP address, without the host name.
+    private String forwardedFor; // Address of the content server a router forwarded the current request for.
+    private int requestsServed; // Number of requests answered on this connection so far.
+    private boolean keepAlive; // Whether the connection stays open after the current response.
+    private long clock; // Lamport clock value of the current request, sent back in the response.
+    private volatile long lastActive = System.currentTimeMillis(); // Used to close idle parked connections.
+    private boolean detached; // Set once another component owns the socket, e.g. a subscription.
+
+    public ClientConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.rawOut = socket.getOutputStream();
+        this.out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
+        this.origin = socket.getInetAddress().toString();
+        this.peerAddress = socket.getInetAddress().getHostAddress();
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    // Reads one CRLF- or LF-terminated line, or returns null at the end of the stream.
+    public String readLine() throws IOException {
+        ByteArrayOutputStream partial = null; // Only needed if the line spans a buffer refill.
+        while (true) {
+            if (position == limit && !fill()) {
+                if (partial == null || partial.size() == 0) return null;
+                return decodeLine(partial.toByteArray(), 0, partial.size());
+            }
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    String line;
+                    if (partial == null) {
+                        line = decodeLine(buffer, position, i - position);
+                    } else {
+                        partial.write(buffer, position, i - position);
+                        line = decodeLine(partial.toByteArray(), 0, partial.size());
+                    }
+                    position = i + 1;
+                    return line;
+                }
+            }
+            if (partial == null) partial = new ByteArrayOutputStream();
+            partial.write(buffer, position, limit - position);
+            position = limit;
+        }
+    }
+
+    // Reads exactly length bytes of request body into a buffer that is reused by later requests,
+    // so the returned array is only valid until the next call. An unusually large body is read
+    // into a buffer of its own, so an idle connection does not hold on to it. Throws EOFException
+    // if the client closes the connection before sending the whole body. The caller must have
+    // checked length against the server's body limit.
+    public byte[] readBody(int length) throws IOException {
+        if (body.length < length && length <= MAX_KEPT_BODY_BYTES) {
+            body = new byte[Math.min(MAX_KEPT_BODY_BYTES, Math.max(length, body.length * 2))];
+        }
+        byte[] target = length <= body.length ? body : new byte[length];
+        int copied = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, target, 0, copied);
+        position += copied;
+        while (copied < length) {
+            int read = in.read(target, copied, length - copied);
+            if (read == -1) {
+                throw new EOFException("Request body ended after " + copied + " of " + length + " bytes");
+            }
+            copied += read;
+        }
+        return target;
+    }
+
+    // Refills the buffer from the socket. Returns false at the end of the stream.
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private static String decodeLine(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') length--;
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    public PrintWriter getWriter() {
+        return out;
+    }
+
+    // Writes an encoded body after flushing any headers still buffered in the writer.
+    public void writeBody(byte[] body) throws IOException {
+        out.flush();
+        rawOut.write(body);
+        rawOut.flush();
+    }
+
+    // Returns the origin of the current request's data: the client's address, or the address a
+    // trusted router passed on in X-Forwarded-For.
+    public String getOrigin() {
+        return forwardedFor != null ? forwardedFor : origin;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public long getClock() {
+        return clock;
+    }
+
+    public void setClock(long clock) {
+        this.clock = clock;
+    }
+
+    public long getLastActive() {
+        return lastActive;
+    }
+
+    // Starts a new request and decides from its headers whether the connection is kept open.
+    // Persistent connections are opt-in with "Connection: keep-alive" and limited to maxRequests.
+    // X-Forwarded-For is only taken from peers in trustedRouters (IP addresses); any other client
+    // could otherwise claim to be another content server.
+    public void beginRequest(Map<String, String> headers, int maxRequests, Set<String> trustedRouters) {
+        requestsServed++;
+        lastActive = System.currentTimeMillis();
+        forwardedFor = trustedRouters.contains(peerAddress) ? headers.get("X-Forwarded-For") : null;
+        String connectionHeader = headers.getOrDefault("Connection", "");
+        keepAlive = connectionHeader.equalsIgnoreCase("keep-alive") && requestsServed < maxRequests;
+    }
+
+    // Writes the connection management headers for the current response.
+    public void writeConnectionHeaders(int idleTimeoutMillis, int maxRequests) {
+        if (keepAlive) {
+            out.println("Connection: keep-alive");
+            out.println("Keep-Alive: timeout=" + (idleTimeoutMillis / 1000) + ", max=" + (maxRequests - requestsServed));
+        } else {
+            out.println("Connection: close");
+        }
+    }
+
+    // Closes the connection after the current response, e.g. because the rest of the request
+    // cannot be told apart from the next one.
+    public void closeAfterResponse() {
+        keepAlive = false;
+    }
+
+    // Hands the socket over to another owner after the current response: no further requests are
+    // read, and close() leaves the socket open.
+    public void detach() {
+        detached = true;
+        keepAlive = false;
+    }
+
+    public boolean isDetached() {
+        return detached;
+    }
+
+    // Returns true if the next request has already (at least partly) arrived.
+    public boolean hasBufferedInput() throws IOException {
+        return position < limit || in.available() > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!detached) {
+            socket.close();
+        }
+    }
+}
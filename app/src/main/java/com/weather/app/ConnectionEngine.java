@@ -0,0 +1,318 @@
+// File: ConnectionEngine.java
+// This file contains the ConnectionEngine class, which decides how accepted client
+// connections are scheduled onto threads before AggregationServer.handleClient runs.
+
+package com.weather.app;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public abstract class ConnectionEngine implements Closeable {
+    // Names accepted by create(), usually passed with -Dweather.engine=<name>.
+    public static final String THREAD = "thread"; // One new platform thread per connection (original behaviour).
+    public static final String VIRTUAL = "virtual"; // One virtual thread per connection.
+    public static final String NIO = "nio"; // Selector event loop feeding a small worker pool.
+
+    protected volatile boolean running = true; // Cleared by close() to stop the accept loop.
+
+    // Creates the engine with the given name, falling back to the thread-per-connection engine.
+    public static ConnectionEngine create(String name, int workers) {
+        return create(name, workers, AggregationServer.WORK_QUEUE_SIZE);
+    }
+
+    // As above, with the number of connections the nio engine lets wait for a worker.
+    public static ConnectionEngine create(String name, int workers, int queueSize) {
+        switch (name == null ? THREAD : name.toLowerCase()) {
+            case VIRTUAL:
+                return new VirtualThreadEngine();
+            case NIO:
+                return new SelectorEngine(workers, queueSize);
+            case THREAD:
+                return new ThreadPerConnectionEngine();
+            default:
+                System.err.println("Unknown engine '" + name + "'. Using engine: " + THREAD);
+                return new ThreadPerConnectionEngine();
+        }
+    }
+
+    // Binds to the given port and serves connections until close() is called.
+    public abstract void serve(int port) throws IOException;
+
+    // Returns the name this engine was selected by.
+    public abstract String name();
+
+    // Engine that starts a new platform thread for every accepted socket.
+    static class ThreadPerConnectionEngine extends ConnectionEngine {
+        private ServerSocket serverSocket;
+
+        @Override
+        public void serve(int port) throws IOException {
+            try (ServerSocket socket = new ServerSocket(port)) {
+                serverSocket = socket;
+                System.out.println("Server is running on port " + port + " (engine: " + name() + ")");
+                while (running) {
+                    // Accept client connections and handle each client in a separate thread.
+                    Socket clientSocket = acceptOrNull(socket);
+                    if (clientSocket != null && AggregationServer.admitConnection(clientSocket)) {
+                        new Thread(() -> AggregationServer.handleClient(clientSocket)).start();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String name() {
+            return THREAD;
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            if (serverSocket != null) serverSocket.close();
+        }
+    }
+
+    // Engine that runs every accepted socket on its own virtual thread.
+    static class VirtualThreadEngine extends ConnectionEngine {
+        private final ExecutorService executor = newVirtualThreadExecutor();
+        private ServerSocket serverSocket;
+
+        @Override
+        public void serve(int port) throws IOException {
+            try (ServerSocket socket = new ServerSocket(port)) {
+                serverSocket = socket;
+                System.out.println("Server is running on port " + port + " (engine: " + name() + ")");
+                while (running) {
+                    Socket clientSocket = acceptOrNull(socket);
+                    if (clientSocket != null && AggregationServer.admitConnection(clientSocket)) {
+                        executor.execute(() -> AggregationServer.handleClient(clientSocket));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String name() {
+            return VIRTUAL;
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            if (serverSocket != null) serverSocket.close();
+            executor.shutdown();
+        }
+
+        // Virtual threads need Java 21; older runtimes fall back to a cached platform-thread pool.
+        private static ExecutorService newVirtualThreadExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not available on this JVM. Using a cached thread pool.");
+                return Executors.newCachedThreadPool(namedThreads("conn"));
+            }
+        }
+    }
+
+    // Engine that waits for readable connections on a single selector thread and only then
+    // hands the socket to a fixed worker pool, so idle connections never occupy a worker.
+    // Persistent connections are parked back on the selector between requests. At most queueSize
+    // connections wait for a worker; further ones are answered with 503.
+    static class SelectorEngine extends ConnectionEngine {
+        private static final long IDLE_SWEEP_MILLIS = 1_000; // How often parked connections are checked for idleness.
+
+        private final ExecutorService workers;
+        private final Queue<ClientConnection> parked = new ConcurrentLinkedQueue<>(); // Connections waiting to be re-registered.
+        private Selector selector;
+
+        SelectorEngine(int workerCount, int queueSize) {
+            this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queueSize)), namedThreads("worker"));
+        }
+
+        @Override
+        public void serve(int port) throws IOException {
+            try (Selector sel = Selector.open();
+                 ServerSocketChannel server = ServerSocketChannel.open()) {
+                selector = sel;
+                server.bind(new InetSocketAddress(port));
+                server.configureBlocking(false);
+                server.register(sel, SelectionKey.OP_ACCEPT);
+                System.out.println("Server is running on port " + port + " (engine: " + name() + ")");
+
+                List<SelectionKey> ready = new ArrayList<>();
+                long lastSweep = System.currentTimeMillis();
+                while (running) {
+                    // Keys left over from selectNow() below are processed without blocking.
+                    if (sel.selectedKeys().isEmpty()) sel.select(IDLE_SWEEP_MILLIS);
+                    registerParked(sel);
+
+                    Iterator<SelectionKey> keys = sel.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) continue;
+
+                        if (key.isAcceptable()) {
+                            // Register new connections for read readiness instead of giving them a thread.
+                            // The attachment is the accept time until the connection has a ClientConnection.
+                            SocketChannel client = server.accept();
+                            if (client != null && AggregationServer.admitConnection(client.socket())) {
+                                client.configureBlocking(false);
+                                client.register(sel, SelectionKey.OP_READ, System.currentTimeMillis());
+                            }
+                        } else if (key.isReadable()) {
+                            key.cancel(); // The request is handed to a worker, which uses blocking streams.
+                            ready.add(key);
+                        }
+                    }
+
+                    if (!ready.isEmpty()) {
+                        sel.selectNow(); // Flush the cancelled keys so the channels may switch to blocking mode.
+                        for (SelectionKey key : ready) {
+                            Object attachment = key.attachment();
+                            dispatch((SocketChannel) key.channel(), attachment instanceof ClientConnection ? (ClientConnection) attachment : null);
+                        }
+                        ready.clear();
+                    }
+
+                    if (System.currentTimeMillis() - lastSweep >= IDLE_SWEEP_MILLIS) {
+                        closeIdle(sel);
+                        lastSweep = System.currentTimeMillis();
+                    }
+                }
+            } finally {
+                workers.shutdown();
+            }
+        }
+
+        // Switches the channel to blocking mode and serves it on a worker thread. If too many
+        // connections are already waiting for a worker, this one is answered with 503 instead.
+        private void dispatch(SocketChannel client, ClientConnection existing) {
+            try {
+                client.configureBlocking(true);
+                workers.execute(() -> serveOnWorker(client, existing));
+            } catch (RejectedExecutionException e) {
+                System.out.println("Rejecting connection: worker queue is full");
+                AggregationServer.admission.rejectConnection(client.socket());
+                AggregationServer.connectionClosed();
+            } catch (IOException e) {
+                System.out.println("Dropping connection: " + e.getMessage());
+                closeConnection(client);
+            }
+        }
+
+        // Serves the available requests and either parks the connection or closes it.
+        private void serveOnWorker(SocketChannel client, ClientConnection existing) {
+            ClientConnection connection = existing;
+            boolean handedOver = false;
+            try {
+                if (connection == null) {
+                    client.socket().setSoTimeout(AggregationServer.KEEP_ALIVE_TIMEOUT_MILLIS);
+                    connection = new ClientConnection(client.socket());
+                }
+                if (AggregationServer.serveConnection(connection, this::park)) {
+                    if (connection.isDetached()) {
+                        AggregationServer.connectionClosed(); // Counted by its subscription from now on.
+                    }
+                    handedOver = true; // The selector or a subscription owns the connection now.
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (!handedOver) {
+                    closeConnection(client); // Also after an unexpected exception, so the slot is not lost.
+                }
+            }
+        }
+
+        // Closes an admitted connection and releases its slot.
+        private void closeConnection(Closeable connection) {
+            closeQuietly(connection);
+            AggregationServer.connectionClosed();
+        }
+
+        // Hands a persistent connection back to the selector until its next request arrives.
+        private void park(ClientConnection connection) {
+            try {
+                connection.getSocket().getChannel().configureBlocking(false);
+                parked.add(connection);
+                selector.wakeup();
+            } catch (IOException e) {
+                closeConnection(connection);
+            }
+        }
+
+        // Registers connections parked by workers; must run on the selector thread.
+        private void registerParked(Selector sel) {
+            ClientConnection connection;
+            while ((connection = parked.poll()) != null) {
+                try {
+                    connection.getSocket().getChannel().register(sel, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    closeConnection(connection);
+                }
+            }
+        }
+
+        // Closes connections that have not sent a request within the keep-alive timeout: parked
+        // ones since their last request, new ones since they were accepted.
+        private void closeIdle(Selector sel) {
+            long cutoff = System.currentTimeMillis() - AggregationServer.KEEP_ALIVE_TIMEOUT_MILLIS;
+            for (SelectionKey key : sel.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof ClientConnection && ((ClientConnection) attachment).getLastActive() < cutoff) {
+                    key.cancel();
+                    closeConnection((ClientConnection) attachment);
+                } else if (attachment instanceof Long && (Long) attachment < cutoff) {
+                    key.cancel();
+                    closeConnection(key.channel());
+                }
+            }
+        }
+
+        @Override
+        public String name() {
+            return NIO;
+        }
+
+        @Override
+        public void close() {
+            running = false;
+            if (selector != null) selector.wakeup();
+        }
+    }
+
+    // Accepts the next connection, returning null if the server socket was closed by close().
+    protected Socket acceptOrNull(ServerSocket socket) throws IOException {
+        try {
+            return socket.accept();
+        } catch (SocketException e) {
+            if (!running) return null;
+            throw e;
+        }
+    }
+
+    // Creates daemon threads with a readable name prefix.
+    static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Closes a socket, channel or connection, ignoring any error.
+    static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Nothing useful can be done if closing fails.
+        }
+    }
+}
@@ -1,26 +1,49 @@
 // File: ContentServer.java
 // This file contains the ContentServer class, which acts as a server to send
-// weather data from a local file to an AggregationServer.
+// weather data from a local file to an AggregationServer. Updates are sent by an UpdateSender,
+// which retries them while the server is unavailable. With --watch it keeps running, sends only
+// the fields that changed whenever the file is saved, and sends small keep-alive requests in
+// between so the data does not expire.
 
 package com.weather.app;
 
 import java.net.*;
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class ContentServer {
     // Define variables for the server address, port, and file path to send data from.
     private static String serverAddress;
     private static int serverPort;
     private static String filePath;
+    private static PersistentConnection connection; // Keep-alive connection reused across requests.
     private static final LamportClock lamportClock = new LamportClock(); // Create an instance of LamportClock for concurrency control.
+    private static UpdateSender sender; // Sends queued updates in the background, retrying failures.
+    private static final long DEFAULT_KEEP_ALIVE_SECONDS = 10; // Well inside the server's 30 second expiry.
+    private static final int QUEUE_CAPACITY = 1024; // Stations that may wait to be sent at once.
+    private static final int PIPELINE_DEPTH = 16; // Requests in flight on the connection at once.
+    private static final long BASE_BACKOFF_MILLIS = 100; // First retry delay, doubled after each failure.
+    private static final long MAX_BACKOFF_MILLIS = 10_000; // Longest retry delay.
+    private static final long DRAIN_TIMEOUT_MILLIS = 30_000; // How long to keep retrying before exiting.
 
     public static void main(String[] args) {
         // Check if the correct number of command-line arguments are provided.
-        if (args.length != 2) {
-            System.out.println("Usage: java ContentServer <server-address:port> <file-path>");
+        boolean watch = args.length >= 3 && args[2].equals("--watch");
+        if (args.length != 2 && !(watch && args.length <= 4)) {
+            System.out.println("Usage: java ContentServer <server-address:port> <file-path> [--watch [keep-alive-seconds]]");
             return;
         }
+        long keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+        if (args.length == 4) {
+            try {
+                keepAliveSeconds = Long.parseLong(args[3]);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid keep-alive interval: " + args[3]);
+                return;
+            }
+        }
 
         // Parse the server address and port from the first argument.
         String serverInfo = args[0];
@@ -41,23 +64,84 @@ public class ContentServer {
             return;
         }
 
+        connection = new PersistentConnection(serverAddress, serverPort);
         try {
-            // Convert the local file data to a JSON string format.
-            String jsonData = convertFileToJson(filePath);
-            if (jsonData != null) {
-                // If the JSON data is valid, send it to the server.
-                sendDataToServer(jsonData);
+            sender = new UpdateSender(connection, lamportClock, serverAddress, QUEUE_CAPACITY, PIPELINE_DEPTH,
+                    watch ? TimeUnit.SECONDS.toMillis(keepAliveSeconds) : 0, BASE_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+            try {
+                if (watch) {
+                    watchFile();
+                } else {
+                    submitFile();
+                }
+            } finally {
+                // Give queued updates (and their retries) time to reach the server before exiting.
+                int unsent = sender.close(DRAIN_TIMEOUT_MILLIS);
+                if (unsent > 0) {
+                    System.out.println("Gave up on " + unsent + " update(s) the server did not accept.");
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            System.out.println("Stopped watching " + filePath);
+        } finally {
+            ConnectionEngine.closeQuietly(connection);
+        }
+    }
+
+    // Watches the file and queues its data whenever it is saved. The sender sends only the fields
+    // that changed, and keep-alives while the file stays the same. Runs until the thread is interrupted.
+    public static void watchFile() throws IOException, InterruptedException {
+        Path file = Paths.get(filePath).toAbsolutePath();
+        try (WatchService watcher = file.getFileSystem().newWatchService()) {
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            submitFile();
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= file.getFileName().equals(event.context());
+                }
+                key.reset();
+                if (changed) {
+                    Thread.sleep(50); // Let the editor finish writing before reading the file.
+                    submitFile();
+                }
+            }
+        }
+    }
+
+    // Reads the file and queues its data for sending; data without an id is rejected.
+    private static void submitFile() throws InterruptedException {
+        try {
+            Map<String, String> data = readFileData(filePath);
+            if (data.containsKey("id")) {
+                sender.submit(data);
             } else {
+                System.out.println("Missing 'id' field, entry rejected.");
                 System.out.println("Invalid data, not sending to server.");
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("Could not read " + filePath + ": " + e.getMessage());
         }
     }
 
     // Reads the content from the provided file path and converts it to a JSON string.
     public static String convertFileToJson(String filePath) throws IOException {
-        Map<String, String> dataMap = new HashMap<>(); // Create a map to hold the file data.
+        Map<String, String> dataMap = readFileData(filePath);
+
+        // Ensure that the data contains an 'id' field as a required attribute.
+        if (!dataMap.containsKey("id")) {
+            System.out.println("Missing 'id' field, entry rejected.");
+            return null;
+        }
+        return toJson(dataMap);
+    }
+
+    // Reads the key-value pairs of a data file.
+    public static Map<String, String> readFileData(String filePath) throws IOException {
+        Map<String, String> dataMap = new LinkedHashMap<>(); // Create a map to hold the file data, in file order.
 
         // Read the file line by line and parse key-value pairs.
         try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
@@ -74,12 +158,11 @@ public class ContentServer {
             }
         }
 
-        // Ensure that the data contains an 'id' field as a required attribute.
-        if (!dataMap.containsKey("id")) {
-            System.out.println("Missing 'id' field, entry rejected.");
-            return null;
-        }
+        return dataMap;
+    }
 
+    // Builds a JSON string from key-value pairs.
+    static String toJson(Map<String, String> dataMap) {
         // Build a JSON string using the key-value pairs in the map.
         StringBuilder jsonBuilder = new StringBuilder();
         jsonBuilder.append("{\n");
@@ -92,59 +175,4 @@ public class ContentServer {
 
         return jsonBuilder.toString(); // Return the constructed JSON string.
     }
-
-    // Sends the constructed JSON data to the AggregationServer.
-    public static void sendDataToServer(String jsonData) throws IOException {
-        lamportClock.tick(); // Increment Lamport clock before sending to ensure concurrency control.
-
-        // Create a socket connection to the server using the address and port.
-        try (Socket socket = new Socket(serverAddress, serverPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true); // To send data to the server.
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) { // To receive responses.
-
-            // Prepare an HTTP PUT request with headers, including the Lamport-Clock header.
-            StringBuilder request = new StringBuilder();
-            request.append("PUT /weather.json HTTP/1.1\r\n");
-            request.append("Host: ").append(serverAddress).append("\r\n");
-            request.append("User-Agent: ContentServer/1.0\r\n");
-            request.append("Content-Type: application/json\r\n");
-            request.append("Content-Length: ").append(jsonData.length()).append("\r\n");
-            request.append("Lamport-Clock: ").append(lamportClock.getClock()).append("\r\n"); // Include the current Lamport clock value.
-            request.append("\r\n"); // End of headers.
-            request.append(jsonData); // Append the JSON data to the request.
-
-            // Send the entire HTTP request (headers and body).
-            out.print(request.toString());
-            out.flush(); // Ensure the data is sent to the server.
-
-            // Read the response headers from the server.
-            String responseLine;
-            int lamportClockValue = lamportClock.getClock(); // Local copy of Lamport clock.
-            boolean lamportClockReceived = false; // Flag to track if a Lamport clock value is received.
-
-            while ((responseLine = in.readLine()) != null && !responseLine.isEmpty()) {
-                System.out.println("Server Response Header: " + responseLine); // Print server response headers.
-
-                // Check if the response contains a Lamport-Clock header.
-                if (responseLine.startsWith("Lamport-Clock:")) {
-                    String clockValueStr = responseLine.substring("Lamport-Clock:".length()).trim();
-                    lamportClockValue = Integer.parseInt(clockValueStr); // Parse the Lamport clock value.
-                    lamportClockReceived = true; // Set the flag to true.
-                }
-            }
-
-            // Update the local Lamport clock value if a valid response was received.
-            if (lamportClockReceived) {
-                lamportClock.update(lamportClockValue);
-                System.out.println("Lamport clock updated to: " + lamportClock.getClock());
-            } else {
-                System.out.println("No Lamport clock value received from server.");
-            }
-
-            // Optionally, read and print the response body (if present).
-            while ((responseLine = in.readLine()) != null) {
-                System.out.println("Server Response Body: " + responseLine); // Print server response body.
-            }
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,109 @@
+// File: ExpiryIndex.java
+// This file contains the ExpiryIndex class, which orders groups of entries (normally all the
+// stations of one content server) by the time they were last heard from. Times are kept in
+// buckets of a fixed precision, so an expiry pass only visits the buckets that are due
+// instead of every stored entry.
+
+package com.weather.app;
+
+import java.util.*;
+
+public class ExpiryIndex {
+    public static final long DEFAULT_PRECISION_MILLIS = 100; // Width of one bucket.
+
+    // The members of a group and when the group was last heard from.
+    private static class Group {
+        long lastContact;
+        long bucket;
+        final Set<String> members = new HashSet<>();
+    }
+
+    private final long precisionMillis;
+    private final NavigableMap<Long, Set<String>> buckets = new TreeMap<>(); // Bucket number -> groups last heard from in it.
+    private final Map<String, Group> groups = new HashMap<>();
+
+    public ExpiryIndex(long precisionMillis) {
+        if (precisionMillis <= 0) {
+            throw new IllegalArgumentException("Expiry precision must be positive: " + precisionMillis);
+        }
+        this.precisionMillis = precisionMillis;
+    }
+
+    // Records contact from a group at the given time; the group keeps its latest contact time.
+    public synchronized void touch(String group, String member, long time) {
+        update(group, member, time, false);
+    }
+
+    // Records contact from a group at exactly the given time, even if that is earlier than before.
+    public synchronized void set(String group, String member, long time) {
+        update(group, member, time, true);
+    }
+
+    private void update(String name, String member, long time, boolean replace) {
+        Group group = groups.get(name);
+        if (group == null) {
+            group = new Group();
+            group.lastContact = time;
+            group.bucket = bucketOf(time);
+            groups.put(name, group);
+            buckets.computeIfAbsent(group.bucket, b -> new HashSet<>()).add(name);
+        } else if (replace || time > group.lastContact) {
+            group.lastContact = time;
+            long bucket = bucketOf(time);
+            if (bucket != group.bucket) {
+                // The group is left in its old bucket too; that copy is skipped once it comes due.
+                group.bucket = bucket;
+                buckets.computeIfAbsent(bucket, b -> new HashSet<>()).add(name);
+            }
+        }
+        if (member != null) {
+            group.members.add(member);
+        }
+    }
+
+    // Removes every group not heard from since the cutoff and returns the members of each.
+    // Only buckets that end at or before the cutoff are visited.
+    public synchronized Map<String, Set<String>> pollExpired(long cutoff) {
+        Map<String, Set<String>> expired = new HashMap<>();
+        while (!buckets.isEmpty() && (buckets.firstKey() + 1) * precisionMillis <= cutoff) {
+            Map.Entry<Long, Set<String>> due = buckets.pollFirstEntry();
+            for (String name : due.getValue()) {
+                Group group = groups.get(name);
+                if (group != null && group.bucket == due.getKey() && group.lastContact < cutoff) {
+                    groups.remove(name);
+                    expired.put(name, group.members);
+                }
+            }
+        }
+        return expired;
+    }
+
+    // Returns when a group was last heard from, or null if it is not tracked.
+    public synchronized Long getLastContact(String group) {
+        Group tracked = groups.get(group);
+        return tracked == null ? null : tracked.lastContact;
+    }
+
+    // Returns the names of the groups being tracked that start with the given prefix.
+    public synchronized List<String> groupsStartingWith(String prefix) {
+        List<String> names = new ArrayList<>();
+        for (String name : groups.keySet()) {
+            if (name.startsWith(prefix)) names.add(name);
+        }
+        return names;
+    }
+
+    // Returns the number of groups being tracked.
+    public synchronized int size() {
+        return groups.size();
+    }
+
+    public synchronized void clear() {
+        buckets.clear();
+        groups.clear();
+    }
+
+    private long bucketOf(long time) {
+        return Math.floorDiv(time, precisionMillis);
+    }
+}
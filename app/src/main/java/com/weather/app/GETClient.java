@@ -3,30 +3,50 @@ package com.weather.app;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 
 public class GETClient {
     // Variables to store server address, port, station ID, and Lamport clock instance.
     private static String serverAddress;
     private static int serverPort;
     private static String stationId;
+    private static PersistentConnection connection; // Keep-alive connection reused across requests.
     private static final LamportClock lamportClock = new LamportClock(); // Create an instance of LamportClock for concurrency control.
+    private static final long DEFAULT_POLL_SECONDS = 5; // Interval for --poll when none is given.
+    private static String etag; // ETag of the last data displayed while polling, sent as If-None-Match.
+    private static Map<String, String> seenStations; // Station ID -> fields last displayed, or null when not polling.
+    private static final int MAX_ATTEMPTS = 3; // Requests sent before giving up on a busy server.
+    private static long retryAfterMillis; // Wait asked for by the last 503 response, or 0.
 
     public static void main(String[] args) {
 
         // Check if the correct number of command-line arguments are provided.
-        if (args.length < 1 || args.length > 2) {
-            System.out.println("Usage: java GETClient <server-address:port> [station-id]");
+        int pollIndex = Arrays.asList(args).indexOf("--poll");
+        int positional = pollIndex >= 0 ? pollIndex : args.length; // Arguments before the options.
+        if (positional < 1 || positional > 2 || (pollIndex >= 0 && args.length > pollIndex + 2)) {
+            System.out.println("Usage: java GETClient <server-address:port> [station-id] [--poll [interval-seconds]]");
             return;
         }
+        long pollSeconds = DEFAULT_POLL_SECONDS;
+        if (pollIndex >= 0 && args.length == pollIndex + 2) {
+            try {
+                pollSeconds = Long.parseLong(args[pollIndex + 1]);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid poll interval: " + args[pollIndex + 1]);
+                return;
+            }
+        }
 
         String serverInfo = args[0]; // Get the server address and port from command-line arguments.
-        if (args.length == 2) {
-            stationId = args[1]; // Optional: If a second argument is provided, use it as the station ID.
-        }
+        stationId = positional == 2 ? args[1] : null; // Optional: If a second argument is provided, use it as the station ID.
 
         // Split the server address and port from the server info argument.
         String[] serverParts = serverInfo.split(":");
@@ -43,140 +63,257 @@ public class GETClient {
             return;
         }
 
+        connection = new PersistentConnection(serverAddress, serverPort);
         try {
-            // Send the HTTP GET request and get the server's JSON response.
-            String jsonResponse = sendGetRequest();
-            if (jsonResponse != null) {
-                // If the response is not null, display the weather data.
-                displayWeatherData(jsonResponse);
-            } else {
+            if (pollIndex >= 0) {
+                pollServer(TimeUnit.SECONDS.toMillis(pollSeconds));
+            } else if (!fetchWithRetries()) {
+                // Send the HTTP GET request and display the weather data as it arrives.
                 System.out.println("No response from server.");
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ConnectionEngine.closeQuietly(connection);
         }
     }
 
-    // Sends an HTTP GET request to the server to fetch weather data and returns the JSON response.
-    private static String sendGetRequest() throws IOException {
-        lamportClock.tick(); // Increment Lamport clock before sending the request.
-
-        // Create a socket connection to the server using the address and port.
-        try (Socket socket = new Socket(serverAddress, serverPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true); // To send the GET request.
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) { // To receive the server's response.
-
-            // Prepare the HTTP GET request with headers.
-            StringBuilder request = new StringBuilder();
-            request.append("GET /weather.json HTTP/1.1\r\n");
-            request.append("Host: ").append(serverAddress).append("\r\n");
-            request.append("User-Agent: GETClient/1.0\r\n");
-            request.append("Accept: application/json\r\n"); // Indicate that the client accepts JSON response.
-            request.append("Lamport-Clock: ").append(lamportClock.getClock()).append("\r\n"); // Include the current Lamport clock value in the request header.
-            request.append("\r\n"); // End of headers.
-
-            // Send the GET request.
-            out.print(request.toString());
-            out.flush(); // Ensure the request is fully sent.
-
-            // Read the response status line from the server.
-            String statusLine = in.readLine();
-            if (statusLine == null || !statusLine.contains("200")) { // Check if the status line indicates a successful response.
-                System.out.println("Failed to get data from server.");
-                return null;
+    // Sends the GET request, and again after the delay the server asks for while it answers 503
+    // with Retry-After, up to MAX_ATTEMPTS times. Returns false if the server did not answer.
+    private static boolean fetchWithRetries() throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            if (!sendGetRequest()) {
+                return false;
             }
-
-            // Read the response headers to extract Lamport clock and content length.
-            String line;
-            int serverLamportClock = 0;
-            int contentLength = 0;
-            boolean lamportClockReceived = false;
-
-            // Loop through the headers until an empty line is reached (indicating the end of headers).
-            while ((line = in.readLine()) != null && !line.isEmpty()) {
-                if (line.startsWith("Lamport-Clock:")) { // Check if the Lamport-Clock header is present.
-                    String clockValueStr = line.substring("Lamport-Clock:".length()).trim();
-                    serverLamportClock = Integer.parseInt(clockValueStr); // Parse the Lamport clock value.
-                    lamportClockReceived = true; // Set flag to indicate that a Lamport clock value was received.
-                } else if (line.startsWith("Content-Length:")) { // Check if the Content-Length header is present.
-                    contentLength = Integer.parseInt(line.substring("Content-Length:".length()).trim());
-                }
-            }
-
-            // Update the local Lamport clock value if a valid clock value was received from the server.
-            if (lamportClockReceived) {
-                lamportClock.update(serverLamportClock);
-                System.out.println("Lamport clock updated to: " + lamportClock.getClock());
-            } else {
-                System.out.println("No Lamport clock value received from server.");
+            if (retryAfterMillis == 0 || attempt == MAX_ATTEMPTS) {
+                return true;
             }
+            Thread.sleep(retryAfterMillis);
+        }
+    }
 
-            // Read the response body, based on the content length.
-            char[] bodyChars = new char[contentLength]; // Allocate an array to hold the body content.
-            int totalRead = 0;
-            while (totalRead < contentLength) {
-                int read = in.read(bodyChars, totalRead, contentLength - totalRead); // Read the body content.
-                if (read == -1) { // Check for end of stream.
-                    break;
+    // Polls the server on the persistent connection until the thread is interrupted. After the first
+    // response each request carries If-None-Match, so while nothing changes the server answers with a
+    // header-only 304. When something did change, only stations whose data differs are displayed.
+    private static void pollServer(long intervalMillis) throws IOException {
+        etag = null;
+        seenStations = new HashMap<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    if (!sendGetRequest()) {
+                        System.out.println("No response from server.");
+                    }
+                } catch (IOException e) {
+                    System.out.println("Could not reach server: " + e.getMessage());
+                    connection.close(); // Reconnect on the next poll.
                 }
-                totalRead += read; // Update the total number of characters read.
+                Thread.sleep(Math.max(intervalMillis, retryAfterMillis)); // A busy server may ask for a longer pause.
             }
-            String responseBody = new String(bodyChars); // Convert the character array to a String.
-
-            return responseBody.trim(); // Return the response body, trimmed of leading/trailing whitespace.
+        } catch (InterruptedException e) {
+            // Polling stopped.
+        } finally {
+            etag = null;
+            seenStations = null;
         }
     }
 
-    // Parses the JSON response and displays it in a user-friendly format.
-    public static void displayWeatherData(String jsonData) {
-        jsonData = jsonData.trim(); // Remove any leading or trailing whitespace.
-        System.out.println("-----------------------------------");
+    // Sends an HTTP GET request to the server to fetch weather data and displays the response body
+    // while it is being received. Returns false if the server did not answer.
+    private static boolean sendGetRequest() throws IOException {
+        long requestClock = lamportClock.tickAndGet(); // Increment Lamport clock before sending the request.
 
-        // Check if the response is empty.
-        if (jsonData.isEmpty()) {
-            System.out.println("No weather data available.");
-            return;
+        // Prepare the HTTP GET request with headers.
+        StringBuilder request = new StringBuilder();
+        String path = "/weather.json";
+        if (stationId != null) {
+            path += "?id=" + URLEncoder.encode(stationId, StandardCharsets.UTF_8); // Only fetch the requested station.
         }
+        request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(serverAddress).append("\r\n");
+        request.append("User-Agent: GETClient/1.0\r\n");
+        request.append("Accept: application/json; format=compact\r\n"); // Ask for JSON without pretty-printing.
+        request.append("Accept-Encoding: gzip\r\n"); // Let the server compress the body.
+        request.append("Connection: keep-alive\r\n"); // Ask the server to keep the connection open for the next request.
+        request.append("Lamport-Clock: ").append(requestClock).append("\r\n"); // Include the current Lamport clock value in the request header.
+        if (etag != null) {
+            request.append("If-None-Match: ").append(etag).append("\r\n"); // Only send data we have not displayed yet.
+        }
+        request.append("\r\n"); // End of headers.
 
-        // Handle JSON arrays (if the data is wrapped in an array).
-        if (jsonData.startsWith("[") && jsonData.endsWith("]")) {
-            jsonData = jsonData.substring(1, jsonData.length() - 1).trim(); // Remove the array brackets.
+        // Send the GET request over the persistent connection and read the response status line.
+        String statusLine = connection.exchange(request.toString());
+        retryAfterMillis = 0;
+        if (statusLine != null && statusLine.contains(" 503")) {
+            return serverBusy();
+        }
+        boolean notModified = statusLine != null && statusLine.contains("304");
+        if (statusLine == null || !(statusLine.contains("200") || notModified)) { // Check if the status line indicates a successful response.
+            System.out.println("Failed to get data from server.");
+            connection.close(); // The rest of the response is not read, so the connection cannot be reused.
+            return statusLine != null;
         }
+        // Read the response headers to extract Lamport clock and content length.
+        String line;
+        long serverLamportClock = 0;
+        int contentLength = 0;
+        boolean lamportClockReceived = false;
+        boolean keepAlive = false;
+        boolean gzip = false;
+        String responseEtag = null;
 
-        // Check if the JSON data is still empty after trimming the brackets.
-        if (jsonData.isEmpty()) {
-            System.out.println("No weather data available.");
-            return;
+        // Loop through the headers until an empty line is reached (indicating the end of headers).
+        while ((line = connection.readLine()) != null && !line.isEmpty()) {
+            if (line.startsWith("Lamport-Clock:")) { // Check if the Lamport-Clock header is present.
+                String clockValueStr = line.substring("Lamport-Clock:".length()).trim();
+                serverLamportClock = Long.parseLong(clockValueStr); // Parse the Lamport clock value.
+                lamportClockReceived = true; // Set flag to indicate that a Lamport clock value was received.
+            } else if (line.startsWith("Content-Length:")) { // Check if the Content-Length header is present.
+                contentLength = Integer.parseInt(line.substring("Content-Length:".length()).trim());
+            } else if (line.equalsIgnoreCase("Connection: keep-alive")) { // The server will accept further requests.
+                keepAlive = true;
+            } else if (line.equalsIgnoreCase("Content-Encoding: gzip")) { // The body is compressed.
+                gzip = true;
+            } else if (line.regionMatches(true, 0, "ETag:", 0, "ETag:".length())) { // Version of the data.
+                responseEtag = line.substring("ETag:".length()).trim();
+            }
         }
 
-        // Split the JSON data into individual JSON objects if there are multiple entries.
-        String[] dataObjects = jsonData.split("\\},\\{");
+        // Update the local Lamport clock value if a valid clock value was received from the server.
+        if (lamportClockReceived) {
+            lamportClock.update(serverLamportClock);
+            if (!notModified) {
+                System.out.println("Lamport clock updated to: " + lamportClock.getClock());
+            }
+        } else {
+            System.out.println("No Lamport clock value received from server.");
+        }
 
-        // Loop through each weather data entry and display the attributes.
-        for (String dataObject : dataObjects) {
-            // Clean up any remaining curly braces.
-            dataObject = dataObject.replaceAll("[\\{\\}]", "").trim();
+        if (notModified) {
+            connection.finishResponse(keepAlive); // Nothing changed since the last poll, and there is no body.
+            return true;
+        }
 
-            // Skip empty or malformed entries.
-            if (dataObject.isEmpty()) {
-                continue;
+        // Decode the body straight off the socket (decompressing it if needed), so output starts
+        // before the whole response has arrived and large responses are never held in memory.
+        try (InputStream body = connection.openBody(contentLength);
+             InputStream decoded = gzip ? new GZIPInputStream(body) : body) {
+            displayWeatherData(new InputStreamReader(decoded, StandardCharsets.UTF_8), seenStations);
+            etag = seenStations != null ? responseEtag : null;
+        } catch (MalformedJsonException | IllegalStateException e) {
+            System.out.println("Invalid weather data: " + e.getMessage());
+        }
+        connection.finishResponse(keepAlive);
+        return true;
+    }
+
+    // Reads the headers of a 503 response and notes how long the server asked us to wait.
+    private static boolean serverBusy() throws IOException {
+        String line;
+        while ((line = connection.readLine()) != null && !line.isEmpty()) {
+            if (line.regionMatches(true, 0, "Retry-After:", 0, "Retry-After:".length())) {
+                retryAfterMillis = PersistentConnection.retryAfterMillis(line.substring("Retry-After:".length()));
             }
+        }
+        System.out.println("Server is busy" + (retryAfterMillis > 0 ? "; asked to retry after " + retryAfterMillis / 1000 + " s" : "."));
+        connection.close(); // A 503 body is not expected; start the next request on a fresh connection.
+        return true;
+    }
+
+    // Parses the JSON response and displays it in a user-friendly format.
+    public static void displayWeatherData(String jsonData) {
+        try {
+            displayWeatherData(new StringReader(jsonData));
+        } catch (IOException | IllegalStateException e) {
+            System.out.println("Invalid weather data: " + e.getMessage());
+        }
+    }
 
-            // Split the JSON attributes into key-value pairs.
-            String[] attributes = dataObject.split(",");
-            for (String attribute : attributes) {
-                String[] keyValue = attribute.split(":", 2);
+    // Reads a JSON array of stations (or a single station) one token at a time and prints each
+    // field as "key: value", with a line before each station. Only one station is held in memory.
+    public static void displayWeatherData(Reader jsonData) throws IOException {
+        displayWeatherData(jsonData, null);
+    }
 
-                // Ensure the key-value pair is valid (i.e., has both a key and a value).
-                if (keyValue.length < 2) {
-                    continue;
+    // As above, but if seen is given, a station is only printed if its fields differ from the ones
+    // recorded in seen, and stations missing from the response are reported as removed. Seen is
+    // updated to match the response.
+    private static void displayWeatherData(Reader jsonData, Map<String, String> seen) throws IOException {
+        JsonReader reader = new JsonReader(jsonData);
+        Set<String> received = seen != null ? new HashSet<>() : null;
+        int stations = 0;
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                displayStation(reader, seen, received);
+                stations++;
+            }
+            reader.endArray();
+        } else if (reader.peek() != JsonToken.END_DOCUMENT) {
+            displayStation(reader, seen, received);
+            stations++;
+        }
+        if (seen == null) {
+            if (stations == 0) {
+                System.out.println("-----------------------------------");
+                System.out.println("No weather data available."); // The response is empty.
+            }
+        } else {
+            Iterator<String> ids = seen.keySet().iterator();
+            while (ids.hasNext()) {
+                String id = ids.next();
+                if (!received.contains(id)) {
+                    System.out.println("-----------------------------------");
+                    System.out.println("Removed: " + id);
+                    ids.remove();
                 }
+            }
+        }
+        System.out.flush();
+    }
+
+    // Reads one station object and prints its fields, unless seen shows they have not changed.
+    private static void displayStation(JsonReader reader, Map<String, String> seen, Set<String> received) throws IOException {
+        StringBuilder fields = new StringBuilder();
+        String id = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            String value = nextValue(reader);
+            if (key.equals("id")) {
+                id = value;
+            }
+            fields.append(key).append(": ").append(value).append(System.lineSeparator());
+        }
+        reader.endObject();
 
-                // Extract and clean up the key and value.
-                String key = keyValue[0].replaceAll("\"", "").trim();
-                String value = keyValue[1].replaceAll("\"", "").trim();
-                System.out.println(key + ": " + value); // Display the key-value pair.
+        String text = fields.toString();
+        if (seen != null && id != null) {
+            received.add(id);
+            if (text.equals(seen.put(id, text))) {
+                return; // Displayed before and unchanged.
             }
         }
+        System.out.println("-----------------------------------");
+        System.out.print(text);
+    }
+
+    // Returns the next value as text: strings without quotes, numbers as received and nested
+    // values as compact JSON.
+    private static String nextValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return Boolean.toString(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return "null";
+            default:
+                return JsonParser.parseReader(reader).toString();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+// File: HashRing.java
+// This file contains the HashRing class, which assigns station IDs to aggregation nodes with
+// consistent hashing. Every node is placed on a 64-bit ring at many pseudo-random points (virtual
+// nodes), and a station belongs to the first node point at or after the hash of its ID. Adding or
+// removing a node therefore only moves the stations between its points and their predecessors,
+// about 1/N of them, and the virtual nodes keep the share of every node close to 1/N.
+
+package com.weather.app;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class HashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 160; // Points per node on the ring.
+
+    private final int virtualNodes;
+    private volatile NavigableMap<Long, String> ring = new TreeMap<>(); // Point -> node; replaced on every change.
+    private volatile List<String> nodes = List.of();
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        for (String node : nodes) {
+            addNode(node);
+        }
+    }
+
+    // Adds a node (e.g. "host:port") and its virtual nodes. Lookups running at the same time see
+    // either the old or the new ring.
+    public synchronized void addNode(String node) {
+        if (nodes.contains(node)) return;
+        TreeMap<Long, String> updated = new TreeMap<>(ring);
+        for (int i = 0; i < virtualNodes; i++) {
+            updated.putIfAbsent(hash(node + "#" + i), node); // On the (unlikely) collision the earlier node keeps the point.
+        }
+        List<String> updatedNodes = new ArrayList<>(nodes);
+        updatedNodes.add(node);
+        ring = updated;
+        nodes = Collections.unmodifiableList(updatedNodes);
+    }
+
+    // Removes a node; its stations go to the nodes that follow its points.
+    public synchronized void removeNode(String node) {
+        if (!nodes.contains(node)) return;
+        TreeMap<Long, String> updated = new TreeMap<>(ring);
+        updated.values().removeIf(node::equals);
+        List<String> updatedNodes = new ArrayList<>(nodes);
+        updatedNodes.remove(node);
+        ring = updated;
+        nodes = Collections.unmodifiableList(updatedNodes);
+    }
+
+    // Returns the node that owns the station, or null if the ring is empty.
+    public String nodeFor(String id) {
+        NavigableMap<Long, String> current = ring;
+        if (current.isEmpty()) return null;
+        Map.Entry<Long, String> owner = current.ceilingEntry(hash(id));
+        return owner != null ? owner.getValue() : current.firstEntry().getValue(); // Wrap around.
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, followed by a mixing step so that similar IDs
+    // ("IDS60901", "IDS60902") land far apart on the ring.
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -1,30 +1,44 @@
 // File: LamportClock.java
 // This class implements a simple Lamport Clock for keeping track of event order in distributed systems.
+// The 64-bit counter is updated with compare-and-set instead of a lock, so concurrent requests do
+// not queue up behind each other, and it will not overflow on a long-running server.
 package com.weather.app;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class LamportClock {
-    public int clock; // Holds the current clock value.
+    private final AtomicLong clock; // Holds the current clock value.
 
     // Constructor to initialize the clock to zero.
     public LamportClock() {
-        this.clock = 0; // Start the clock at 0.
+        this.clock = new AtomicLong(0); // Start the clock at 0.
+    }
+
+    public void tick() {
+        clock.incrementAndGet(); // Increase the clock by 1.
+    }
+
+    // Increases the clock by 1 and returns the new value in one atomic step.
+    public long tickAndGet() {
+        return clock.incrementAndGet();
     }
 
-    public synchronized void tick() {
-        clock++; // Increase the clock by 1.
+    public void update(long receivedClock) {
+        clock.updateAndGet(current -> Math.max(current, receivedClock) + 1); // Take the maximum clock value, then increment.
     }
 
-    public synchronized void update(int receivedClock) {
-        clock = Math.max(clock, receivedClock); // Take the maximum clock value.
-        clock++; // Increment by 1 to ensure progress.
+    // Merges a received clock value and ticks once more for the local event, returning the new
+    // value. Equivalent to update(receivedClock) followed by tickAndGet(), in one atomic step.
+    public long updateAndTick(long receivedClock) {
+        return clock.updateAndGet(current -> Math.max(current, receivedClock) + 2);
     }
 
-    public synchronized int getClock() {
-        return clock; // Return the current clock value.
+    public long getClock() {
+        return clock.get(); // Return the current clock value.
     }
 
     @Override
-    public synchronized String toString() {
-        return Integer.toString(clock); // Convert clock value to string.
+    public String toString() {
+        return Long.toString(clock.get()); // Convert clock value to string.
     }
 }
@@ -0,0 +1,161 @@
+// File: Metrics.java
+// This file contains the Metrics class, a small registry of counters, gauges and latency
+// histograms that the AggregationServer exposes on GET /metrics in the Prometheus text format.
+// Recording is lock-free (LongAdder per counter and histogram bucket) and allocation-free, so it
+// can sit on every request; only registration and rendering take the registry's lock.
+
+package com.weather.app;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+public class Metrics {
+    // Upper bounds of the histogram buckets in seconds, from 10 microseconds to 10 seconds.
+    static final double[] BUCKET_SECONDS = {
+            0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+            0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+    private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+    private static final String[] BUCKET_LABELS = new String[BUCKET_SECONDS.length]; // The bounds as "le" label values.
+
+    static {
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            BUCKET_NANOS[i] = Math.round(BUCKET_SECONDS[i] * 1e9);
+            BUCKET_LABELS[i] = "le=\"" + BigDecimal.valueOf(BUCKET_SECONDS[i]).stripTrailingZeros().toPlainString() + "\"";
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>(); // Name -> metrics of that name; guarded by this.
+
+    // All metrics with one name, which differ only in their labels.
+    private static class Family {
+        final String type;
+        final String help;
+        final Map<String, Object> members = new LinkedHashMap<>(); // Labels ("" or key="value",...) -> metric.
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    // A latency histogram with fixed buckets. Each bucket counts the values up to its bound that
+    // are above the previous bound; the cumulative counts Prometheus expects are summed when rendered.
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKET_NANOS.length + 1]; // The last one is +Inf.
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        // Records one duration in nanoseconds.
+        public void record(long nanos) {
+            int bucket = Arrays.binarySearch(BUCKET_NANOS, nanos);
+            buckets[bucket >= 0 ? bucket : -bucket - 1].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        // Records the time since start, a System.nanoTime() value, and returns the current time so
+        // consecutive phases can be timed with one clock read each.
+        public long recordSince(long start) {
+            long now = System.nanoTime();
+            record(now - start);
+            return now;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        // Returns the number of recorded values up to the given bucket bound (in seconds).
+        public long getCountAtMost(double seconds) {
+            long total = 0;
+            for (int i = 0; i < BUCKET_SECONDS.length && BUCKET_SECONDS[i] <= seconds; i++) {
+                total += buckets[i].sum();
+            }
+            return total;
+        }
+    }
+
+    public synchronized Histogram histogram(String name, String help, String labels) {
+        return (Histogram) family(name, "histogram", help).members.computeIfAbsent(labels, key -> new Histogram());
+    }
+
+    public synchronized LongAdder counter(String name, String help, String labels) {
+        return (LongAdder) family(name, "counter", help).members.computeIfAbsent(labels, key -> new LongAdder());
+    }
+
+    // Registers a counter kept elsewhere, read when the metrics are rendered.
+    public synchronized void counter(String name, String help, String labels, DoubleSupplier value) {
+        family(name, "counter", help).members.put(labels, value);
+    }
+
+    // Registers a gauge, read when the metrics are rendered.
+    public synchronized void gauge(String name, String help, String labels, DoubleSupplier value) {
+        family(name, "gauge", help).members.put(labels, value);
+    }
+
+    private Family family(String name, String type, String help) {
+        Family family = families.computeIfAbsent(name, key -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    // Renders every metric in the Prometheus text exposition format (version 0.0.4).
+    public synchronized String render() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> member : family.members.entrySet()) {
+                String labels = member.getKey();
+                Object metric = member.getValue();
+                if (metric instanceof Histogram) {
+                    renderHistogram(out, name, labels, (Histogram) metric);
+                } else if (metric instanceof LongAdder) {
+                    sample(out, name, labels, ((LongAdder) metric).sum());
+                } else {
+                    sample(out, name, labels, ((DoubleSupplier) metric).getAsDouble());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void renderHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            cumulative += histogram.buckets[i].sum();
+            sample(out, name + "_bucket", prefix + BUCKET_LABELS[i], cumulative);
+        }
+        cumulative += histogram.buckets[BUCKET_SECONDS.length].sum();
+        sample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        sample(out, name + "_sum", labels, histogram.sumNanos.sum() / 1e9);
+        sample(out, name + "_count", labels, cumulative);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
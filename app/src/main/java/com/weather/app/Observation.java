@@ -0,0 +1,349 @@
+// File: Observation.java
+// This file contains the Observation class, the compact in-memory form of one station's weather
+// data. Fields of the known schema are kept as primitives, low-cardinality strings (state, wind
+// direction, cloud, time zone, origin) as codes into shared dictionaries, and anything else in an
+// overflow map. A value is only stored as a primitive if it prints back exactly as it was
+// received, so converting to JSON and back never changes the data.
+
+package com.weather.app;
+
+import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class Observation {
+    // How a known field is stored.
+    private enum Kind { TEXT, CODE, DOUBLE, INT, LONG }
+
+    // The known schema, in the order fields are written back out.
+    private enum Field {
+        ID("id", Kind.TEXT),
+        NAME("name", Kind.TEXT),
+        STATE("state", Kind.CODE),
+        TIME_ZONE("time_zone", Kind.CODE),
+        LAT("lat", Kind.DOUBLE),
+        LON("lon", Kind.DOUBLE),
+        LOCAL_DATE_TIME("local_date_time", Kind.TEXT),
+        LOCAL_DATE_TIME_FULL("local_date_time_full", Kind.LONG),
+        AIR_TEMP("air_temp", Kind.DOUBLE),
+        APPARENT_T("apparent_t", Kind.DOUBLE),
+        CLOUD("cloud", Kind.CODE),
+        DEWPT("dewpt", Kind.DOUBLE),
+        PRESS("press", Kind.DOUBLE),
+        REL_HUM("rel_hum", Kind.INT),
+        WIND_DIR("wind_dir", Kind.CODE),
+        WIND_SPD_KMH("wind_spd_kmh", Kind.INT),
+        WIND_SPD_KT("wind_spd_kt", Kind.INT),
+        ORIGIN("origin", Kind.CODE),
+        TIMESTAMP("timestamp", Kind.LONG);
+
+        final String key;
+        final Kind kind;
+        final int bit;
+        final StringDictionary dictionary; // Only for CODE fields.
+
+        Field(String key, Kind kind) {
+            this.key = key;
+            this.kind = kind;
+            this.bit = 1 << ordinal();
+            this.dictionary = kind == Kind.CODE ? new StringDictionary() : null;
+        }
+    }
+
+    private static final Field[] FIELDS = Field.values();
+    private static final Map<String, Field> BY_KEY = new HashMap<>();
+
+    static {
+        for (Field field : FIELDS) {
+            BY_KEY.put(field.key, field);
+        }
+    }
+
+    // Values of a low-cardinality field, numbered in order of first appearance. Codes are never
+    // reused, so an Observation stays valid for the life of the process.
+    private static final class StringDictionary {
+        private static final int MAX_SIZE = Short.MAX_VALUE; // Further values go to the overflow map.
+        private final Map<String, Short> codes = new ConcurrentHashMap<>();
+        private volatile String[] values = new String[16];
+        private int size;
+
+        // Returns the code of a value, adding it if needed, or -1 if the dictionary is full.
+        short encode(String value) {
+            Short code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            synchronized (this) {
+                code = codes.get(value);
+                if (code != null) {
+                    return code;
+                }
+                if (size == MAX_SIZE) {
+                    return -1;
+                }
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                values[size] = value;
+                codes.put(value, (short) size); // Published after the value is in place.
+                return (short) size++;
+            }
+        }
+
+        String decode(short code) {
+            return values[code];
+        }
+    }
+
+    private int present; // Bit per Field that has a value.
+    private int quoted; // Bit per numeric Field that was received as a JSON string.
+    private int integral; // Bit per DOUBLE Field that was written without a fraction ("15" rather than "15.0").
+
+    private String id;
+    private String name;
+    private String localDateTime;
+    private short state;
+    private short timeZone;
+    private short cloud;
+    private short windDir;
+    private short origin;
+    private double lat;
+    private double lon;
+    private double airTemp;
+    private double apparentT;
+    private double dewpt;
+    private double press;
+    private int relHum;
+    private int windSpdKmh;
+    private int windSpdKt;
+    private long localDateTimeFull;
+    private long timestamp;
+    private Map<String, JsonElement> extra; // Unknown keys and values that do not fit their field, or null.
+
+    private Observation() {
+    }
+
+    // Converts a JSON object to its compact form.
+    public static Observation of(JsonObject json) {
+        Observation observation = new Observation();
+        for (Map.Entry<String, JsonElement> member : json.entrySet()) {
+            Field field = BY_KEY.get(member.getKey());
+            if (field == null || !observation.set(field, member.getValue())) {
+                if (observation.extra == null) {
+                    observation.extra = new LinkedHashMap<>(4);
+                }
+                observation.extra.put(member.getKey(), member.getValue().deepCopy());
+            }
+        }
+        return observation;
+    }
+
+    // Returns the station ID, or null if it is missing or not a string.
+    public String getId() {
+        return (present & Field.ID.bit) != 0 ? id : null;
+    }
+
+    // Rebuilds the JSON object: known fields in schema order, followed by the overflow entries.
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        for (Field field : FIELDS) {
+            if ((present & field.bit) == 0) continue;
+            if (field.kind == Kind.TEXT || field.kind == Kind.CODE || (quoted & field.bit) != 0) {
+                json.addProperty(field.key, text(field));
+            } else if (field.kind == Kind.DOUBLE && (integral & field.bit) == 0) {
+                json.addProperty(field.key, getDouble(field));
+            } else {
+                json.addProperty(field.key, getLong(field));
+            }
+        }
+        if (extra != null) {
+            for (Map.Entry<String, JsonElement> member : extra.entrySet()) {
+                json.add(member.getKey(), member.getValue().deepCopy());
+            }
+        }
+        return json;
+    }
+
+    // Returns the compact UTF-8 JSON encoding; identical to toJson().toString() without building the object.
+    public byte[] encode() {
+        StringWriter buffer = new StringWriter(256);
+        try (JsonWriter writer = new JsonWriter(buffer)) {
+            writer.setStrictness(Strictness.LENIENT); // Same settings JsonElement.toString uses.
+            writer.beginObject();
+            for (Field field : FIELDS) {
+                if ((present & field.bit) == 0) continue;
+                writer.name(field.key);
+                if (field.kind == Kind.TEXT || field.kind == Kind.CODE || (quoted & field.bit) != 0) {
+                    writer.value(text(field));
+                } else if (field.kind == Kind.DOUBLE && (integral & field.bit) == 0) {
+                    writer.value(getDouble(field));
+                } else {
+                    writer.value(getLong(field));
+                }
+            }
+            if (extra != null) {
+                for (Map.Entry<String, JsonElement> member : extra.entrySet()) {
+                    writer.name(member.getKey());
+                    writer.jsonValue(member.getValue().toString());
+                }
+            }
+            writer.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Cannot happen with a StringWriter.
+        }
+        return buffer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Stores a value in its field. Returns false if it does not fit, so it goes to the overflow map.
+    private boolean set(Field field, JsonElement value) {
+        if (!value.isJsonPrimitive() || value.getAsJsonPrimitive().isBoolean()) {
+            return false;
+        }
+        boolean isString = value.getAsJsonPrimitive().isString();
+        String text = value.getAsString();
+        switch (field.kind) {
+            case TEXT:
+                if (!isString) return false;
+                setText(field, text);
+                break;
+            case CODE:
+                if (!isString) return false;
+                short code = field.dictionary.encode(text);
+                if (code < 0) return false;
+                setCode(field, code);
+                break;
+            case DOUBLE:
+                double number;
+                try {
+                    number = Double.parseDouble(text);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                if (Double.isInfinite(number) || Double.isNaN(number)) return false;
+                if (isWholeNumber(text, number)) {
+                    integral |= field.bit;
+                } else if (!text.equals(Double.toString(number))) {
+                    return false; // E.g. "13.30" or "1e3" would not print back the same.
+                }
+                setDouble(field, number);
+                break;
+            default: // INT and LONG
+                long whole;
+                try {
+                    whole = Long.parseLong(text);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                if (!text.equals(Long.toString(whole)) || (field.kind == Kind.INT && (int) whole != whole)) return false;
+                setLong(field, whole);
+                break;
+        }
+        present |= field.bit;
+        if (isString && field.kind != Kind.TEXT && field.kind != Kind.CODE) {
+            quoted |= field.bit;
+        }
+        return true;
+    }
+
+    // Checks whether a double was written as a plain integer such as "15" or "-3".
+    private static boolean isWholeNumber(String text, double number) {
+        return number == Math.rint(number) && Math.abs(number) < 1e15 && text.equals(Long.toString((long) number));
+    }
+
+    // Returns a field's value as it was received.
+    private String text(Field field) {
+        switch (field.kind) {
+            case TEXT:
+                return getText(field);
+            case CODE:
+                return field.dictionary.decode(getCode(field));
+            case DOUBLE:
+                return (integral & field.bit) != 0 ? Long.toString((long) getDouble(field)) : Double.toString(getDouble(field));
+            default:
+                return Long.toString(getLong(field));
+        }
+    }
+
+    private String getText(Field field) {
+        switch (field) {
+            case ID: return id;
+            case NAME: return name;
+            default: return localDateTime;
+        }
+    }
+
+    private void setText(Field field, String value) {
+        switch (field) {
+            case ID: id = value; break;
+            case NAME: name = value; break;
+            default: localDateTime = value; break;
+        }
+    }
+
+    private short getCode(Field field) {
+        switch (field) {
+            case STATE: return state;
+            case TIME_ZONE: return timeZone;
+            case CLOUD: return cloud;
+            case WIND_DIR: return windDir;
+            default: return origin;
+        }
+    }
+
+    private void setCode(Field field, short code) {
+        switch (field) {
+            case STATE: state = code; break;
+            case TIME_ZONE: timeZone = code; break;
+            case CLOUD: cloud = code; break;
+            case WIND_DIR: windDir = code; break;
+            default: origin = code; break;
+        }
+    }
+
+    private double getDouble(Field field) {
+        switch (field) {
+            case LAT: return lat;
+            case LON: return lon;
+            case AIR_TEMP: return airTemp;
+            case APPARENT_T: return apparentT;
+            case DEWPT: return dewpt;
+            default: return press;
+        }
+    }
+
+    private void setDouble(Field field, double value) {
+        switch (field) {
+            case LAT: lat = value; break;
+            case LON: lon = value; break;
+            case AIR_TEMP: airTemp = value; break;
+            case APPARENT_T: apparentT = value; break;
+            case DEWPT: dewpt = value; break;
+            default: press = value; break;
+        }
+    }
+
+    // Returns an INT, LONG or integral DOUBLE field.
+    private long getLong(Field field) {
+        switch (field) {
+            case REL_HUM: return relHum;
+            case WIND_SPD_KMH: return windSpdKmh;
+            case WIND_SPD_KT: return windSpdKt;
+            case LOCAL_DATE_TIME_FULL: return localDateTimeFull;
+            case TIMESTAMP: return timestamp;
+            default: return (long) getDouble(field);
+        }
+    }
+
+    private void setLong(Field field, long value) {
+        switch (field) {
+            case REL_HUM: relHum = (int) value; break;
+            case WIND_SPD_KMH: windSpdKmh = (int) value; break;
+            case WIND_SPD_KT: windSpdKt = (int) value; break;
+            case LOCAL_DATE_TIME_FULL: localDateTimeFull = value; break;
+            default: timestamp = value; break;
+        }
+    }
+}
@@ -0,0 +1,557 @@
+// File: PersistenceWriter.java
+// This file contains the PersistenceWriter class, a single background writer that appends
+// PUT and expiry events to a write-ahead log, committing the events of many concurrent
+// requests with one fsync, and periodically compacts the log into a JSON or binary snapshot.
+// To compact, the writer starts a new log segment and a compactor thread writes the snapshot,
+// then deletes the old segment; commits carry on meanwhile.
+// A writer covers either the whole store or one shard of it (see ShardedPersistence).
+// Binary snapshots stay memory-mapped after recovery, so each compaction writes them to a new
+// generation file (weatherData.snapshot.1, .2, ...) instead of renaming over the mapped one.
+
+package com.weather.app;
+
+import com.google.gson.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PersistenceWriter implements Closeable {
+    // Operations recorded in the write-ahead log.
+    public static final String OP_PUT = "put";
+    public static final String OP_EXPIRE = "expire";
+    public static final String OP_BATCH = "batch"; // Several puts in one record, so a torn write loses all or none.
+    private static final long COMPACT_RETRY_MIN_MILLIS = 1_000; // Wait after a first failed compaction; doubled after each further one.
+    private static final long COMPACT_RETRY_MAX_MILLIS = 60_000;
+
+    private final WeatherStore data; // The live store that is written out on compaction.
+    private final int shard; // Shard of the store this writer persists, or -1 for all of it.
+    private final String dataFile; // Snapshot file (for binary snapshots, the name of generation 0).
+    private final boolean binarySnapshot; // Whether snapshots use the BinarySnapshot format instead of JSON.
+    private final String tempFile; // Temporary file owned by this writer alone.
+    private final String walFile; // Append-only log of the events since the last snapshot.
+    private final long maxCommitDelayMillis; // How long a commit may wait to collect more events.
+    private final long compactBytes; // Smallest log size that triggers a compaction.
+    private final long compactIntervalMillis; // Idle time after which a non-empty log is compacted.
+    private final String oldWalFile; // Log segment being compacted, until its snapshot is durable.
+    private volatile FileChannel wal; // Current log segment; replaced by the writer thread on rotation.
+    private final Thread writerThread;
+    private final ExecutorService compactor; // Writes snapshots off the commit path, one at a time.
+
+    private final Object lock = new Object();
+    private List<String> pendingRecords = new ArrayList<>(); // Log lines not yet written.
+    private List<CompletableFuture<Boolean>> pending = new ArrayList<>(); // Waiters for the next commit.
+    private volatile boolean running = true;
+    private final AtomicLong commitCount = new AtomicLong(); // Number of log commits written so far.
+    private final AtomicLong compactionCount = new AtomicLong(); // Number of snapshots written so far.
+    private final AtomicLong failedCompactions = new AtomicLong(); // Number of compactions that failed.
+    private int failuresInARow; // Compactions failed since the last one that succeeded; compactor thread only.
+    private volatile long nextCompactionMillis; // Earliest time of the next compaction after a failure.
+    private volatile boolean compacting; // A snapshot is being written.
+    private volatile long snapshotBytes; // Size of the current snapshot.
+    private volatile long snapshotGeneration; // Generation of the current binary snapshot.
+
+    public PersistenceWriter(WeatherStore data, String dataFile, boolean binarySnapshot, String tempFile, String walFile,
+                             long maxCommitDelayMillis, long compactBytes, long compactIntervalMillis) {
+        this(data, -1, dataFile, binarySnapshot, tempFile, walFile, maxCommitDelayMillis, compactBytes, compactIntervalMillis);
+    }
+
+    // Creates a writer that persists only the given shard of the store in its own files.
+    public PersistenceWriter(WeatherStore data, int shard, String dataFile, boolean binarySnapshot, String tempFile, String walFile,
+                             long maxCommitDelayMillis, long compactBytes, long compactIntervalMillis) {
+        this.data = data;
+        this.shard = shard;
+        this.dataFile = dataFile;
+        this.binarySnapshot = binarySnapshot;
+        this.tempFile = tempFile;
+        this.walFile = walFile;
+        this.maxCommitDelayMillis = maxCommitDelayMillis;
+        this.compactBytes = compactBytes;
+        this.compactIntervalMillis = compactIntervalMillis;
+        this.snapshotGeneration = binarySnapshot ? latestGeneration(dataFile) : 0;
+        File snapshot = new File(currentSnapshotFile());
+        this.snapshotBytes = snapshot.isFile() ? snapshot.length() : 0;
+        this.oldWalFile = walFile + ".old";
+        try {
+            this.wal = openLog(walFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open write-ahead log " + walFile, e);
+        }
+        this.compactor = Executors.newSingleThreadExecutor(ConnectionEngine.namedThreads(shard < 0 ? "persistence-compactor" : "persistence-compactor-" + shard));
+        this.writerThread = new Thread(this::run, shard < 0 ? "persistence-writer" : "persistence-writer-" + shard);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // Returns the write-ahead log file that belongs to a snapshot file (weatherData.json -> weatherData.wal).
+    public static String walFileFor(String dataFile) {
+        int dot = dataFile.lastIndexOf('.');
+        return (dot > 0 ? dataFile.substring(0, dot) : dataFile) + ".wal";
+    }
+
+    private static FileChannel openLog(String file) throws IOException {
+        return FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Returns the file of a binary snapshot generation; generation 0 is the plain file name.
+    public static String generationFile(String dataFile, long generation) {
+        return generation == 0 ? dataFile : dataFile + "." + generation;
+    }
+
+    // Returns the highest snapshot generation found next to the snapshot file, or 0.
+    private static long latestGeneration(String dataFile) {
+        long latest = 0;
+        for (long generation : generationsOf(dataFile)) {
+            latest = Math.max(latest, generation);
+        }
+        return latest;
+    }
+
+    // Lists the numbered generations of a snapshot file that exist on disk.
+    private static List<Long> generationsOf(String dataFile) {
+        File file = new File(dataFile).getAbsoluteFile();
+        String prefix = file.getName() + ".";
+        String[] names = file.getParentFile().list();
+        List<Long> generations = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                    generations.add(Long.parseLong(name.substring(prefix.length())));
+                }
+            }
+        }
+        return generations;
+    }
+
+    // Returns the snapshot file recovery reads from.
+    private String currentSnapshotFile() {
+        return binarySnapshot ? generationFile(dataFile, snapshotGeneration) : dataFile;
+    }
+
+    // Logs a stored entry and blocks until the commit that contains it is durable.
+    // Returns false if the commit failed.
+    public boolean commitPut(JsonObject entry) {
+        return await(append(putRecord(entry), true));
+    }
+
+    // Logs several stored entries as a single record and blocks until it is durable.
+    // Returns false if the commit failed.
+    public boolean commitPuts(Collection<JsonObject> entries) {
+        return await(submitPuts(entries));
+    }
+
+    // Logs several stored entries as a single record without waiting. The returned future
+    // completes with true once the record is durable, or false if the commit failed.
+    public CompletableFuture<Boolean> submitPuts(Collection<JsonObject> entries) {
+        JsonObject record = new JsonObject();
+        record.addProperty("op", OP_BATCH);
+        JsonArray batch = new JsonArray(entries.size());
+        for (JsonObject entry : entries) {
+            batch.add(entry);
+        }
+        record.add("entries", batch);
+        return append(record.toString(), true);
+    }
+
+    // Logs a stored entry without waiting for it to be committed (used by replicas, whose data
+    // is already durable on the primary).
+    public void logPut(JsonObject entry) {
+        append(putRecord(entry), false);
+    }
+
+    // Logs a removed entry; the event is committed with the next batch without waiting for it.
+    public void logExpire(String id) {
+        JsonObject record = new JsonObject();
+        record.addProperty("op", OP_EXPIRE);
+        record.addProperty("id", id);
+        append(record.toString(), false);
+    }
+
+    // Blocks until every event logged so far is durable. Returns false if the commit failed.
+    public boolean commit() {
+        return await(append(null, true));
+    }
+
+    // Builds the log line for a stored entry.
+    private static String putRecord(JsonObject entry) {
+        JsonObject record = new JsonObject();
+        record.addProperty("op", OP_PUT);
+        record.add("entry", entry);
+        return record.toString();
+    }
+
+    // Queues a log line (if any) and, if requested, returns a future for the covering commit.
+    private CompletableFuture<Boolean> append(String record, boolean waitForCommit) {
+        CompletableFuture<Boolean> done = waitForCommit ? new CompletableFuture<>() : null;
+        synchronized (lock) {
+            if (!running) {
+                if (done != null) done.complete(false);
+                return done;
+            }
+            if (record != null) pendingRecords.add(record);
+            if (done != null) pending.add(done);
+            lock.notifyAll();
+        }
+        return done;
+    }
+
+    // Waits for a commit future.
+    static boolean await(CompletableFuture<Boolean> done) {
+        try {
+            return done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    // Writer loop: waits for events, lets more arrive for up to the commit delay, appends them
+    // to the log with a single fsync, and starts a compaction once the log grows large or goes
+    // quiet. The log must grow to the size of the snapshot (and at least compactBytes) first, so
+    // rewriting the snapshot costs a bounded amount per logged byte however large the store is.
+    private void run() {
+        while (running) {
+            List<String> records;
+            List<CompletableFuture<Boolean>> batch;
+            boolean idle = false;
+            try {
+                synchronized (lock) {
+                    if (pendingRecords.isEmpty() && pending.isEmpty()) {
+                        lock.wait(compactIntervalMillis);
+                        idle = pendingRecords.isEmpty() && pending.isEmpty();
+                    }
+                }
+                if (!idle && maxCommitDelayMillis > 0) {
+                    Thread.sleep(maxCommitDelayMillis); // Group commit window.
+                }
+                synchronized (lock) {
+                    records = pendingRecords;
+                    batch = pending;
+                    pendingRecords = new ArrayList<>();
+                    pending = new ArrayList<>();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            boolean committed = records.isEmpty() || appendToLog(records);
+            for (CompletableFuture<Boolean> waiter : batch) {
+                waiter.complete(committed);
+            }
+
+            try {
+                long logBytes = wal.size();
+                if (running && committed && !compacting && (logBytes >= Math.max(compactBytes, snapshotBytes) || (idle && logBytes > 0))
+                        && System.currentTimeMillis() >= nextCompactionMillis) {
+                    startCompaction();
+                }
+            } catch (IOException e) {
+                System.out.println("Could not start compaction: " + e.getMessage());
+            }
+        }
+        failPending();
+    }
+
+    // Moves the log aside as the old segment and starts a new one, then has the compactor write a
+    // snapshot and delete the old segment. If an old segment is still there (a compaction failed or
+    // was cut short by a crash), the log is not rotated; the snapshot then covers both, but only the
+    // old segment is deleted. Runs on the writer thread, which owns the log.
+    private void startCompaction() throws IOException {
+        if (!new File(oldWalFile).exists()) {
+            wal.close(); // Some platforms (e.g. Windows) cannot rename an open file.
+            try {
+                Files.move(Paths.get(walFile), Paths.get(oldWalFile), StandardCopyOption.ATOMIC_MOVE);
+                syncDirectory(walFile);
+            } finally {
+                wal = openLog(walFile);
+            }
+        }
+        compacting = true;
+        try {
+            compactor.execute(this::compactInBackground);
+        } catch (RejectedExecutionException e) {
+            compacting = false; // Closing.
+        }
+    }
+
+    // Writes the snapshot on the compactor thread. After a failure the next attempt waits, longer
+    // each time; the log segments keep every change meanwhile.
+    private void compactInBackground() {
+        try {
+            compact();
+            failuresInARow = 0;
+        } catch (IOException e) {
+            failedCompactions.incrementAndGet();
+            long backoff = Math.min(COMPACT_RETRY_MAX_MILLIS, COMPACT_RETRY_MIN_MILLIS << Math.min(failuresInARow++, 6));
+            nextCompactionMillis = System.currentTimeMillis() + backoff;
+            System.out.println("Compaction failed, retrying in " + backoff + " ms: " + e.getMessage());
+        } finally {
+            compacting = false;
+        }
+    }
+
+    // Appends the records to the log and forces them to disk.
+    private boolean appendToLog(List<String> records) {
+        StringBuilder lines = new StringBuilder();
+        for (String record : records) {
+            lines.append(record).append('\n');
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                wal.write(buffer);
+            }
+            wal.force(false);
+            commitCount.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            System.out.println("File write error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Writes a snapshot of the store and deletes the old log segment. Every change in that
+    // segment was applied to the store before the log was rotated, so the snapshot holds it.
+    // Replaying a log over a newer snapshot is harmless (puts replace whole entries), so a crash
+    // between the steps loses nothing. The rename must be durable before the segment is deleted,
+    // or a crash could keep the old snapshot without the segment.
+    private void compact() throws IOException {
+        Collection<WeatherStore.StoredEntry> entries = shard < 0 ? data.storedEntries() : data.storedEntries(shard);
+        String target = binarySnapshot ? generationFile(dataFile, snapshotGeneration + 1) : dataFile;
+        if (binarySnapshot) {
+            BinarySnapshot.write(entries, tempFile);
+        } else {
+            writeSnapshot(entries, tempFile);
+        }
+        if (!commitSnapshot(tempFile, target)) {
+            throw new IOException("Could not replace " + target);
+        }
+        syncDirectory(target);
+        snapshotBytes = new File(target).length();
+        Files.deleteIfExists(Paths.get(oldWalFile));
+        syncDirectory(oldWalFile);
+        if (binarySnapshot) {
+            snapshotGeneration++;
+            deleteOlderGenerations();
+        }
+        compactionCount.incrementAndGet();
+    }
+
+    // Deletes the snapshot generations before the current one. A generation that is still mapped
+    // cannot be deleted on some platforms (e.g. Windows); it is tried again after the next compaction.
+    private void deleteOlderGenerations() {
+        List<Long> generations = generationsOf(dataFile);
+        generations.add(0L);
+        for (long generation : generations) {
+            if (generation < snapshotGeneration) {
+                new File(generationFile(dataFile, generation)).delete();
+            }
+        }
+    }
+
+    // Forces the directory entry of a renamed file to disk. Directories cannot be opened on every
+    // platform (e.g. Windows, where the rename itself is journaled); there this does nothing.
+    static void syncDirectory(String file) throws IOException {
+        Path directory = Paths.get(file).toAbsolutePath().getParent();
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException | UnsupportedOperationException e) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    // Returns true if any state has been persisted, either as a snapshot or in the log.
+    public boolean hasPersistedData() {
+        try {
+            return new File(currentSnapshotFile()).exists() || new File(oldWalFile).exists() || wal.size() > 0;
+        } catch (IOException e) {
+            return new File(currentSnapshotFile()).exists();
+        }
+    }
+
+    // Returns how many log commits have been written, each covering one or more requests.
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+
+    // Returns how many times the log has been compacted into a snapshot.
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    // Returns how many compactions have failed; the log was kept each time.
+    public long getFailedCompactionCount() {
+        return failedCompactions.get();
+    }
+
+    // Completes any waiters left when the writer stops.
+    private void failPending() {
+        synchronized (lock) {
+            for (CompletableFuture<Boolean> waiter : pending) {
+                waiter.complete(false);
+            }
+            pending.clear();
+        }
+    }
+
+    // Rebuilds the store from the snapshot followed by the log tail. A partly written last log
+    // line (from a crash during an append) is ignored and cut off the log, so that new records
+    // follow the last complete one. Returns the number of log events replayed.
+    public int recover() throws IOException {
+        File snapshot = new File(currentSnapshotFile());
+        if (binarySnapshot && snapshot.exists()) {
+            BinarySnapshot.load(snapshot.getPath(), data); // Entries stay in the mapped file until first needed.
+        } else if (snapshot.exists() && snapshot.length() > 0) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(snapshot), StandardCharsets.UTF_8)) {
+                JsonElement root = JsonParser.parseReader(reader);
+                if (root.isJsonArray()) {
+                    for (JsonElement element : root.getAsJsonArray()) {
+                        putIfValid(element);
+                    }
+                }
+            } catch (JsonParseException e) {
+                System.out.println("Ignoring unreadable snapshot " + dataFile + ": " + e.getMessage());
+            }
+        }
+
+        // A segment left by an unfinished compaction holds older changes than the current log.
+        int replayed = replay(oldWalFile, null);
+        return replayed + replay(walFile, wal);
+    }
+
+    // Applies the records of one log segment to the store and returns how many there were. A
+    // torn tail is cut off the given channel, if it is the segment that is still written to.
+    private int replay(String file, FileChannel channel) throws IOException {
+        int replayed = 0;
+        long complete = 0; // End of the last complete record in the log.
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(file)))) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            long offset = 0;
+            int next;
+            while ((next = in.read()) != -1) {
+                offset++;
+                if (next != '\n') {
+                    bytes.write(next);
+                    continue;
+                }
+                String line = bytes.toString(StandardCharsets.UTF_8);
+                bytes.reset();
+                if (line.isEmpty()) {
+                    complete = offset;
+                    continue;
+                }
+                JsonObject record;
+                try {
+                    record = JsonParser.parseString(line).getAsJsonObject();
+                } catch (JsonParseException | IllegalStateException e) {
+                    System.out.println("Ignoring torn write-ahead log record: " + line);
+                    break;
+                }
+                complete = offset;
+                String op = record.has("op") ? record.get("op").getAsString() : "";
+                if (OP_PUT.equals(op)) {
+                    putIfValid(record.get("entry"));
+                } else if (OP_BATCH.equals(op) && record.has("entries")) {
+                    for (JsonElement entry : record.getAsJsonArray("entries")) {
+                        putIfValid(entry);
+                    }
+                } else if (OP_EXPIRE.equals(op) && record.has("id")) {
+                    data.remove(record.get("id").getAsString());
+                }
+                replayed++;
+            }
+        } catch (NoSuchFileException e) {
+            // No log yet.
+        }
+
+        // Cut off a torn tail (a record without its line end was never acknowledged), or the next
+        // commit would be appended to it and be lost behind it on the following recovery.
+        if (channel != null && channel.size() > complete) {
+            System.out.println("Truncating write-ahead log " + file + " after " + complete + " bytes");
+            channel.truncate(complete);
+            channel.force(true);
+        }
+        return replayed;
+    }
+
+    // Adds a recovered entry to the store if it is an object with an id.
+    private void putIfValid(JsonElement element) {
+        if (element != null && element.isJsonObject()) {
+            JsonObject entry = element.getAsJsonObject();
+            JsonElement id = entry.get("id");
+            if (id != null && id.isJsonPrimitive()) {
+                data.put(id.getAsString(), entry);
+            }
+        }
+    }
+
+    // Serializes the store to the given file and forces it to disk.
+    public static void writeSnapshot(Map<String, JsonObject> data, String file) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(file);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+            new Gson().toJson(data.values(), writer);
+            writer.flush();
+            stream.getFD().sync(); // Make the snapshot durable before it replaces the old one.
+        }
+    }
+
+    // Writes stored entries to the given file as a compact JSON array, copying each entry's
+    // encoding instead of rebuilding it as a JSON object, and forces the file to disk.
+    public static void writeSnapshot(Collection<WeatherStore.StoredEntry> entries, String file) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(file);
+             OutputStream out = new BufferedOutputStream(stream, 1 << 16)) {
+            out.write('[');
+            boolean first = true;
+            for (WeatherStore.StoredEntry entry : entries) {
+                if (!first) out.write(',');
+                out.write(entry.getEncoded());
+                first = false;
+            }
+            out.write(']');
+            out.flush();
+            stream.getFD().sync(); // Make the snapshot durable before it replaces the old one.
+        }
+    }
+
+    // Atomically replaces the data file with the temporary file.
+    public static boolean commitSnapshot(String tempFile, String dataFile) {
+        try {
+            Files.move(Paths.get(tempFile), Paths.get(dataFile), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error while committing file: " + e.getMessage());
+            new File(tempFile).delete();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        writerThread.interrupt();
+        compactor.shutdown();
+        try {
+            writerThread.join(1_000);
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+            wal.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Error while closing write-ahead log: " + e.getMessage());
+        }
+    }
+}
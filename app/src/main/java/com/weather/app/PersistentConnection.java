@@ -0,0 +1,220 @@
+// File: PersistentConnection.java
+// This file contains the PersistentConnection class, which lets the ContentServer and
+// GETClient reuse one keep-alive socket to the AggregationServer across requests.
+
+package com.weather.app;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class PersistentConnection implements Closeable {
+    private final String host;
+    private final int port;
+    private Socket socket; // Null while no connection is open.
+    private InputStream in; // Buffered byte stream, so compressed bodies can be read after text headers.
+    private PrintWriter out;
+
+    // A response read in full: status code, headers (names case-insensitive) and body.
+    public static class Response {
+        public final String statusLine;
+        public final int statusCode;
+        public final Map<String, String> headers;
+        public final byte[] body;
+
+        Response(String statusLine, Map<String, String> headers, byte[] body) {
+            this.statusLine = statusLine;
+            String[] parts = statusLine.split(" ", 3);
+            int code;
+            try {
+                code = parts.length >= 2 ? Integer.parseInt(parts[1]) : 0;
+            } catch (NumberFormatException e) {
+                code = 0;
+            }
+            this.statusCode = code;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public boolean isKeepAlive() {
+            return "keep-alive".equalsIgnoreCase(headers.getOrDefault("Connection", ""));
+        }
+
+        // Returns how long the server asked the client to wait before retrying, or 0 if it did not.
+        public long retryAfterMillis() {
+            return PersistentConnection.retryAfterMillis(headers.get("Retry-After"));
+        }
+    }
+
+    // Converts a Retry-After value in seconds to milliseconds, or returns 0 if there is none. The
+    // HTTP-date form is not used by the AggregationServer and counts as none.
+    public static long retryAfterMillis(String retryAfter) {
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public PersistentConnection(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Sends the request and returns the response status line. If a reused connection turns out to
+    // have been closed by the server in the meantime (idle timeout), the request is sent once more
+    // on a fresh connection. Returns null if the server closed the connection without answering.
+    public String exchange(String request) throws IOException {
+        boolean reused = isOpen();
+        try {
+            String statusLine = send(request);
+            if (statusLine != null || !reused) {
+                return statusLine;
+            }
+        } catch (IOException e) {
+            if (!reused) throw e;
+        }
+        close();
+        return send(request);
+    }
+
+    // Writes the request on the current connection (opening one if needed) and reads the status line.
+    private String send(String request) throws IOException {
+        open();
+        out.print(request);
+        out.flush();
+        return readLine();
+    }
+
+    // Writes one or more requests without waiting for a response (opening a connection if needed),
+    // so several requests can be in flight at once. Their responses arrive in the same order.
+    public void write(String requests) throws IOException {
+        open();
+        out.print(requests);
+        out.flush();
+        if (out.checkError()) {
+            close();
+            throw new IOException("Could not write to " + host + ":" + port);
+        }
+    }
+
+    // Reads the next complete response, or returns null if the server closed the connection first.
+    public Response readResponse() throws IOException {
+        String statusLine = readLine();
+        if (statusLine == null) {
+            return null;
+        }
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String line;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            int separator = line.indexOf(':');
+            if (separator > 0) {
+                headers.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+            }
+        }
+        int length = Integer.parseInt(headers.getOrDefault("Content-Length", "0"));
+        return new Response(statusLine, headers, length > 0 ? readBody(length) : new byte[0]);
+    }
+
+    // Opens a new socket unless one is already open.
+    private void open() throws IOException {
+        if (isOpen()) return;
+        socket = new Socket(host, port);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+    }
+
+    public boolean isOpen() {
+        return socket != null && !socket.isClosed();
+    }
+
+    // Reads one CRLF- or LF-terminated header line, or returns null at the end of the stream.
+    public String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Reads a body of exactly the given number of bytes (fewer only if the stream ends).
+    public byte[] readBody(int length) throws IOException {
+        return in.readNBytes(length);
+    }
+
+    // Returns a stream over the next length bytes of the connection, so a large body can be decoded
+    // while it arrives instead of being buffered first. Closing the stream skips whatever was not
+    // read, leaving the connection positioned at the next response; it does not close the socket.
+    public InputStream openBody(int length) {
+        InputStream source = in;
+        return new InputStream() {
+            private int remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) return -1;
+                int b = source.read();
+                if (b == -1) throw new EOFException("Connection closed with " + remaining + " body bytes left");
+                remaining--;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (remaining <= 0) return -1;
+                int read = source.read(buffer, offset, Math.min(count, remaining));
+                if (read == -1) throw new EOFException("Connection closed with " + remaining + " body bytes left");
+                remaining -= read;
+                return read;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return Math.min(source.available(), remaining);
+            }
+
+            @Override
+            public void close() throws IOException {
+                while (remaining > 0 && skip(remaining) > 0) {
+                    // Discard the unread rest of the body.
+                }
+                remaining = 0;
+            }
+
+            @Override
+            public long skip(long count) throws IOException {
+                long skipped = source.skip(Math.min(count, remaining));
+                if (skipped <= 0 && remaining > 0 && source.read() != -1) {
+                    skipped = 1; // skip() may return 0 before the end of the stream.
+                }
+                remaining -= skipped;
+                return skipped;
+            }
+        };
+    }
+
+    // Called once a response has been fully read; closes the socket unless the server kept it alive.
+    public void finishResponse(boolean keepAlive) throws IOException {
+        if (!keepAlive) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+// File: ReplicationFollower.java
+// This file contains the ReplicationFollower class, which keeps a backup AggregationServer's
+// store in step with a primary. It first catches up through the primary's change feed
+// (GET /weather.json?since=<clock>), then subscribes to its event stream, on which the primary
+// pushes every applied PUT and expiry in Lamport clock order. Whenever the stream breaks it
+// catches up through the change feed again, so nothing is missed; a full snapshot replaces the
+// local data if the primary's change log does not reach back far enough.
+
+package com.weather.app;
+
+import com.google.gson.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+public class ReplicationFollower implements Closeable {
+    private final String host;
+    private final int port;
+    private final WeatherStore store;
+    private final LamportClock lamportClock;
+    private final BiConsumer<String, JsonObject> applied; // Told about every applied change (value null for a removal).
+    private final long retryMillis; // Wait before reconnecting to an unreachable primary.
+    private final Thread followerThread;
+
+    private volatile boolean running = true;
+    private volatile PersistentConnection stream; // Open event stream, closed to stop the follower.
+    private long since; // Change-feed clock this replica is up to date with; follower thread only.
+    private Long epoch; // Change-log epoch the clock belongs to; follower thread only.
+    private volatile long appliedCount; // Changes applied so far.
+    private volatile long lastPrimaryClock; // Newest primary clock seen.
+    private volatile boolean streaming; // Whether the event stream is currently open.
+
+    public ReplicationFollower(String host, int port, WeatherStore store, LamportClock lamportClock,
+                               BiConsumer<String, JsonObject> applied, long retryMillis) {
+        this.host = host;
+        this.port = port;
+        this.store = store;
+        this.lamportClock = lamportClock;
+        this.applied = applied;
+        this.retryMillis = retryMillis;
+        this.followerThread = new Thread(this::run, "replication-follower");
+        this.followerThread.setDaemon(true);
+    }
+
+    public void start() {
+        followerThread.start();
+    }
+
+    public String getPrimary() {
+        return host + ":" + port;
+    }
+
+    public long getAppliedCount() {
+        return appliedCount;
+    }
+
+    public long getLastPrimaryClock() {
+        return lastPrimaryClock;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    // Follower loop: opens the event stream, catches up through the change feed (so changes made
+    // before the stream opened are not missed), then applies events until the stream ends.
+    private void run() {
+        while (running) {
+            try (PersistentConnection events = new PersistentConnection(host, port)) {
+                stream = events;
+                events.write("GET /weather.json HTTP/1.1\r\nHost: " + host + "\r\nUser-Agent: ReplicationFollower/1.0\r\n"
+                        + "Accept: text/event-stream\r\nLamport-Clock: " + lamportClock.tickAndGet() + "\r\n\r\n");
+                String statusLine = events.readLine();
+                if (statusLine == null || !statusLine.contains(" 200")) {
+                    throw new IOException("Primary refused the event stream: " + statusLine);
+                }
+                String line;
+                while ((line = events.readLine()) != null && !line.isEmpty()) {
+                    readClock(line);
+                }
+                catchUp();
+                streaming = true;
+                System.out.println("Following primary " + getPrimary() + " from clock " + since);
+                followEvents(events);
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    System.out.println("Replication from " + getPrimary() + " interrupted: " + e.getMessage());
+                }
+            } finally {
+                streaming = false;
+            }
+            if (!running) break;
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    // Fetches and applies the changes since the last catch-up, or a full snapshot.
+    private void catchUp() throws IOException {
+        try (PersistentConnection feed = new PersistentConnection(host, port)) {
+            String query = "since=" + since + (epoch != null ? "&epoch=" + epoch : "");
+            feed.write("GET /weather.json?" + query + " HTTP/1.1\r\nHost: " + host + "\r\nUser-Agent: ReplicationFollower/1.0\r\n"
+                    + "Lamport-Clock: " + lamportClock.tickAndGet() + "\r\n\r\n");
+            PersistentConnection.Response response = feed.readResponse();
+            if (response == null || response.statusCode != 200) {
+                throw new IOException("Change feed failed: " + (response == null ? "no response" : response.statusLine));
+            }
+            String clock = response.headers.get("Lamport-Clock");
+            if (clock != null) {
+                lamportClock.update(Long.parseLong(clock));
+            }
+            JsonObject changes = JsonParser.parseString(new String(response.body, StandardCharsets.UTF_8)).getAsJsonObject();
+            apply(changes);
+        }
+    }
+
+    // Applies a change-feed response. A full snapshot replaces the local data: stations the
+    // primary no longer has are removed.
+    void apply(JsonObject changes) {
+        Map<String, JsonObject> updated = new LinkedHashMap<>();
+        for (JsonElement element : changes.getAsJsonArray("updated")) {
+            JsonObject entry = element.getAsJsonObject();
+            updated.put(entry.get("id").getAsString(), entry);
+        }
+        List<String> removed = new ArrayList<>();
+        for (JsonElement id : changes.getAsJsonArray("removed")) {
+            removed.add(id.getAsString());
+        }
+        if (changes.get("full").getAsBoolean()) {
+            for (WeatherStore.StoredEntry entry : store.storedEntries()) {
+                if (!updated.containsKey(entry.getId())) removed.add(entry.getId());
+            }
+        }
+
+        store.putAll(updated); // Readers see the whole response applied or none of it.
+        for (Map.Entry<String, JsonObject> entry : updated.entrySet()) {
+            applied.accept(entry.getKey(), entry.getValue());
+        }
+        for (String id : removed) {
+            if (store.remove(id) != null) {
+                applied.accept(id, null);
+            }
+        }
+        appliedCount += updated.size() + removed.size();
+        since = changes.get("clock").getAsLong();
+        epoch = changes.get("epoch").getAsLong();
+        lastPrimaryClock = Math.max(lastPrimaryClock, since);
+    }
+
+    // Reads Server-Sent Events until the stream ends, applying each update or removal.
+    private void followEvents(PersistentConnection events) throws IOException {
+        String type = null;
+        String data = null;
+        long clock = 0;
+        String line;
+        while (running && (line = events.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (type != null && data != null) {
+                    applyEvent(type, data, clock);
+                }
+                type = null;
+                data = null;
+            } else if (line.startsWith("id: ")) {
+                clock = Long.parseLong(line.substring(4));
+            } else if (line.startsWith("event: ")) {
+                type = line.substring(7);
+            } else if (line.startsWith("data: ")) {
+                data = line.substring(6);
+            } // Lines starting with ':' are keep-alive comments.
+        }
+    }
+
+    private void applyEvent(String type, String data, long clock) {
+        JsonObject value = JsonParser.parseString(data).getAsJsonObject();
+        String id = value.get("id").getAsString();
+        lamportClock.update(clock);
+        lastPrimaryClock = Math.max(lastPrimaryClock, clock);
+        if (type.equals("update")) {
+            store.put(id, value);
+            applied.accept(id, value);
+        } else if (type.equals("remove") && store.remove(id) != null) {
+            applied.accept(id, null);
+        }
+        appliedCount++;
+    }
+
+    // If the line is a Lamport-Clock header, merges the primary's clock.
+    private void readClock(String header) {
+        if (header.regionMatches(true, 0, "Lamport-Clock:", 0, "Lamport-Clock:".length())) {
+            lamportClock.update(Long.parseLong(header.substring("Lamport-Clock:".length()).trim()));
+        }
+    }
+
+    // Stops following the primary; the local data is kept, e.g. when this replica is promoted.
+    @Override
+    public void close() {
+        running = false;
+        PersistentConnection events = stream;
+        if (events != null) {
+            try {
+                events.close(); // Unblocks the read of the next event.
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+        followerThread.interrupt();
+        try {
+            followerThread.join(1_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
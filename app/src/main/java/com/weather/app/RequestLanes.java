@@ -0,0 +1,158 @@
+// File: RequestLanes.java
+// This file contains the RequestLanes class, which runs the AggregationServer's requests on two
+// separately sized thread pools: a read lane for GETs, which only touch memory, and a write lane
+// for PUTs and other changes, which wait for their commit to reach the disk. Each lane has a
+// bounded queue, so a storm of writes fills only the write lane and GETs keep their own threads.
+// Every lane keeps its queue depth and the time requests waited for and spent on a thread.
+
+package com.weather.app;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class RequestLanes implements Closeable {
+    private final Lane readLane;
+    private final Lane writeLane;
+
+    // One lane: its executor and statistics. Counters are lock-free so recording them is cheap.
+    public static class Lane {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder rejected = new LongAdder(); // Requests turned away because the queue was full.
+        private final LongAdder waitNanos = new LongAdder(); // Total time requests waited in the queue.
+        private final LongAdder serviceNanos = new LongAdder(); // Total time requests ran on a lane thread.
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private final AtomicLong maxServiceNanos = new AtomicLong();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+        Lane(String name, int threads, int queueSize) {
+            this.name = name;
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queueSize)), ConnectionEngine.namedThreads(name + "-lane"));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getThreads() {
+            return executor.getMaximumPoolSize();
+        }
+
+        public int getQueueDepth() {
+            return executor.getQueue().size();
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth.get();
+        }
+
+        public int getActiveCount() {
+            return executor.getActiveCount();
+        }
+
+        public long getCompletedCount() {
+            return completed.sum();
+        }
+
+        public long getRejectedCount() {
+            return rejected.sum();
+        }
+
+        // Average and longest time requests waited for a lane thread, in milliseconds.
+        public double getAverageWaitMillis() {
+            long count = completed.sum();
+            return count == 0 ? 0 : waitNanos.sum() / 1e6 / count;
+        }
+
+        public double getMaxWaitMillis() {
+            return maxWaitNanos.get() / 1e6;
+        }
+
+        // Average and longest time requests took on a lane thread, in milliseconds.
+        public double getAverageServiceMillis() {
+            long count = completed.sum();
+            return count == 0 ? 0 : serviceNanos.sum() / 1e6 / count;
+        }
+
+        public double getMaxServiceMillis() {
+            return maxServiceNanos.get() / 1e6;
+        }
+
+        private void record(long waited, long served) {
+            waitNanos.add(waited);
+            serviceNanos.add(served);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            maxServiceNanos.accumulateAndGet(served, Math::max);
+            completed.increment();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s lane: %d threads, queue %d (max %d), %d done, %d rejected, wait %.2f ms avg / %.2f max, "
+                    + "service %.2f ms avg / %.2f max", name, getThreads(), getQueueDepth(), getMaxQueueDepth(), getCompletedCount(),
+                    getRejectedCount(), getAverageWaitMillis(), getMaxWaitMillis(), getAverageServiceMillis(), getMaxServiceMillis());
+        }
+    }
+
+    public RequestLanes(int readThreads, int readQueue, int writeThreads, int writeQueue) {
+        this.readLane = new Lane("read", readThreads, readQueue);
+        this.writeLane = new Lane("write", writeThreads, writeQueue);
+    }
+
+    public Lane getReadLane() {
+        return readLane;
+    }
+
+    public Lane getWriteLane() {
+        return writeLane;
+    }
+
+    // Classifies a request by its method: GET and HEAD only read memory, everything else may
+    // change the store and wait for the disk.
+    public Lane laneFor(String method) {
+        return "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method) ? readLane : writeLane;
+    }
+
+    // Runs the task on the lane and waits for its result. Returns null without running it if the
+    // lane's queue is full; the caller then answers 503. Exceptions of the task are rethrown.
+    public <T> T run(Lane lane, Callable<T> task) throws IOException {
+        long queued = System.nanoTime();
+        Future<T> result;
+        try {
+            result = lane.executor.submit(() -> {
+                long started = System.nanoTime();
+                try {
+                    return task.call();
+                } finally {
+                    lane.record(started - queued, System.nanoTime() - started);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            lane.rejected.increment();
+            return null;
+        }
+        lane.maxQueueDepth.accumulateAndGet(lane.getQueueDepth(), Math::max);
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the " + lane.name + " lane");
+        }
+    }
+
+    @Override
+    public void close() {
+        readLane.executor.shutdown();
+        writeLane.executor.shutdown();
+    }
+}
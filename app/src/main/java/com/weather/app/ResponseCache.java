@@ -0,0 +1,49 @@
+// File: ResponseCache.java
+// This file contains the ResponseCache class, which keeps the encoded bodies of the last
+// full GET responses (one per representation, e.g. pretty or compact JSON, plain or gzip)
+// together with the store version they were built from, so repeated GETs between two
+// updates are answered without serializing or compressing the store again.
+
+package com.weather.app;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+public class ResponseCache {
+    // An encoded body and the store version it reflects.
+    public static class CachedBody {
+        public final long version;
+        public final byte[] body;
+
+        CachedBody(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+
+    private final Map<String, CachedBody> cached = new ConcurrentHashMap<>(); // Last encoded body per representation.
+
+    // Returns the body of the given representation for the given store version, encoding it only
+    // if the cached body is older. The version must be read before encoding starts: if the store
+    // changes during encoding, the body is tagged with the older version and rebuilt next time.
+    public CachedBody get(String variant, long version, Supplier<byte[]> encoder) {
+        CachedBody current = cached.get(variant);
+        if (current != null && current.version == version) {
+            return current;
+        }
+        CachedBody fresh = new CachedBody(version, encoder.get());
+        cached.merge(variant, fresh, (old, candidate) -> old.version > candidate.version ? old : candidate);
+        return fresh;
+    }
+
+    // Formats a store version as an HTTP entity tag.
+    public static String etag(long version) {
+        return "\"" + version + "\"";
+    }
+
+    // Formats a store version and representation as an HTTP entity tag.
+    public static String etag(long version, String variant) {
+        return "\"" + version + "-" + variant + "\"";
+    }
+}
@@ -0,0 +1,165 @@
+// File: ShardedPersistence.java
+// This file contains the ShardedPersistence class, which persists a sharded WeatherStore with one
+// PersistenceWriter per shard. Every shard has its own write-ahead log, snapshot and temporary
+// file and its own writer thread, so commits and compactions of different shards run in
+// parallel, and a compaction only rewrites the shard whose log grew. Shard files may be spread
+// over several directories (disks). With a single shard the original file names are used.
+
+package com.weather.app;
+
+import com.google.gson.JsonObject;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ShardedPersistence implements Closeable {
+    private final WeatherStore data;
+    private final PersistenceWriter[] writers;
+
+    // Creates one writer per shard of the store. The file names are those of an unsharded store;
+    // shard i inserts "-i" into each name and uses directories[i % directories.length], if any.
+    public ShardedPersistence(WeatherStore data, String dataFile, boolean binarySnapshot, String tempFile, String walFile,
+                              List<String> directories, long maxCommitDelayMillis, long compactBytes, long compactIntervalMillis) {
+        this.data = data;
+        int shards = data.getShardCount();
+        this.writers = new PersistenceWriter[shards];
+        for (int i = 0; i < shards; i++) {
+            String directory = directories.isEmpty() ? null : directories.get(i % directories.size());
+            writers[i] = new PersistenceWriter(data, shards == 1 ? -1 : i, shardFile(dataFile, i, shards, directory), binarySnapshot,
+                    shardFile(tempFile, i, shards, directory), shardFile(walFile, i, shards, directory),
+                    maxCommitDelayMillis, compactBytes, compactIntervalMillis);
+        }
+    }
+
+    // Returns the name of a shard's file: "weatherData.json" becomes "dir/weatherData-3.json".
+    public static String shardFile(String file, int shard, int shards, String directory) {
+        if (shards > 1) {
+            int nameStart = file.lastIndexOf(File.separatorChar) + 1;
+            int dot = file.indexOf('.', nameStart);
+            file = dot > nameStart ? file.substring(0, dot) + "-" + shard + file.substring(dot) : file + "-" + shard;
+        }
+        return directory == null ? file : new File(directory, new File(file).getName()).getPath();
+    }
+
+    private PersistenceWriter writerFor(String id) {
+        return writers[data.shardOf(id)];
+    }
+
+    // Logs a stored entry in its shard and blocks until it is durable. Returns false if the commit failed.
+    public boolean commitPut(JsonObject entry) {
+        return writerFor(entry.get("id").getAsString()).commitPut(entry);
+    }
+
+    // Logs several stored entries and blocks until all are durable. The entries of each shard are
+    // one record in that shard's log, and the shards commit in parallel. Returns false if any
+    // commit failed.
+    public boolean commitPuts(Collection<JsonObject> entries) {
+        if (writers.length == 1) {
+            return writers[0].commitPuts(entries);
+        }
+        Map<Integer, List<JsonObject>> byShard = new TreeMap<>();
+        for (JsonObject entry : entries) {
+            byShard.computeIfAbsent(data.shardOf(entry.get("id").getAsString()), shard -> new ArrayList<>()).add(entry);
+        }
+        List<CompletableFuture<Boolean>> commits = new ArrayList<>();
+        for (Map.Entry<Integer, List<JsonObject>> shard : byShard.entrySet()) {
+            commits.add(writers[shard.getKey()].submitPuts(shard.getValue()));
+        }
+        boolean committed = true;
+        for (CompletableFuture<Boolean> commit : commits) {
+            committed &= PersistenceWriter.await(commit);
+        }
+        return committed;
+    }
+
+    // Logs a stored entry in its shard without waiting for the commit.
+    public void logPut(JsonObject entry) {
+        writerFor(entry.get("id").getAsString()).logPut(entry);
+    }
+
+    // Logs a removed entry in its shard without waiting for the commit.
+    public void logExpire(String id) {
+        writerFor(id).logExpire(id);
+    }
+
+    // Blocks until every event logged so far in every shard is durable.
+    public boolean commit() {
+        boolean committed = true;
+        for (PersistenceWriter writer : writers) {
+            committed &= writer.commit();
+        }
+        return committed;
+    }
+
+    // Returns true if any shard has persisted state.
+    public boolean hasPersistedData() {
+        for (PersistenceWriter writer : writers) {
+            if (writer.hasPersistedData()) return true;
+        }
+        return false;
+    }
+
+    // Recovers all shards in parallel and returns the number of log events replayed.
+    public int recover() throws IOException {
+        if (writers.length == 1) {
+            return writers[0].recover();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(writers.length, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Integer>> recoveries = new ArrayList<>();
+            for (PersistenceWriter writer : writers) {
+                recoveries.add(pool.submit(writer::recover));
+            }
+            int replayed = 0;
+            for (Future<Integer> recovery : recoveries) {
+                replayed += recovery.get();
+            }
+            return replayed;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Recovery interrupted");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public int getShardCount() {
+        return writers.length;
+    }
+
+    // Returns how many log commits all shards have written.
+    public long getCommitCount() {
+        long commits = 0;
+        for (PersistenceWriter writer : writers) {
+            commits += writer.getCommitCount();
+        }
+        return commits;
+    }
+
+    // Returns how many snapshots all shards have written.
+    public long getCompactionCount() {
+        long compactions = 0;
+        for (PersistenceWriter writer : writers) {
+            compactions += writer.getCompactionCount();
+        }
+        return compactions;
+    }
+
+    // Returns how many compactions have failed across all shards.
+    public long getFailedCompactionCount() {
+        long failures = 0;
+        for (PersistenceWriter writer : writers) {
+            failures += writer.getFailedCompactionCount();
+        }
+        return failures;
+    }
+
+    @Override
+    public void close() {
+        for (PersistenceWriter writer : writers) {
+            writer.close();
+        }
+    }
+}
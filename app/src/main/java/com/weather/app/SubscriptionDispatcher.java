@@ -0,0 +1,279 @@
+// File: SubscriptionDispatcher.java
+// This file contains the SubscriptionDispatcher class, which pushes station updates to clients
+// that subscribed with Server-Sent Events. Request handlers only note which station changed; a
+// dispatcher thread encodes each change once and hands it to the interested subscribers, and a
+// small writer pool sends it. Every subscriber keeps at most one pending event per station, so a
+// slow subscriber only falls behind (and is dropped once too far behind) without holding up
+// ingest or the other subscribers. A write that stays blocked past the write timeout (a client
+// that stopped reading) gets its subscriber dropped, which frees the writer thread for the others.
+// An idle subscriber is just a socket and a few objects.
+
+package com.weather.app;
+
+import com.google.gson.JsonPrimitive;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class SubscriptionDispatcher implements Closeable {
+    public static final int DEFAULT_BACKLOG = 1024; // Stations a subscriber may be behind on before it is dropped.
+    private static final byte[] HEARTBEAT = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8); // SSE comment line.
+
+    private final Function<String, byte[]> encoder; // Current compact JSON of a station, or null if it was removed.
+    private final int maxSubscribers;
+    private final int backlog;
+    private final long heartbeatMillis; // Idle time after which subscribers get a comment, which also detects closed ones.
+    private final long writeTimeoutMillis; // Longest a write to one subscriber may block.
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final Set<Subscriber> allStations = ConcurrentHashMap.newKeySet(); // Subscribers to every station.
+    private final Map<String, Set<Subscriber>> byStation = new ConcurrentHashMap<>(); // Subscribers to listed stations.
+    private final AtomicInteger count = new AtomicInteger();
+    private final LinkedHashMap<String, Long> published = new LinkedHashMap<>(); // Station -> clock of its latest undispatched change; guarded by itself.
+    private final ExecutorService writers;
+    private final Thread dispatcherThread;
+    private volatile boolean closed;
+
+    // One subscribed connection. Events wait in pending, keyed by station (null for a heartbeat),
+    // until a writer thread sends them.
+    public static class Subscriber {
+        private final OutputStream out;
+        private final Closeable connection;
+        private final Set<String> stations; // Null for all stations.
+        private final LinkedHashMap<String, byte[]> pending = new LinkedHashMap<>(); // Guarded by this.
+        private boolean scheduled; // A writer is draining pending; guarded by this.
+        private boolean closed; // Guarded by this.
+        private volatile long writingSince; // Start of the write in progress, or 0.
+
+        Subscriber(OutputStream out, Closeable connection, Set<String> stations) {
+            this.out = out;
+            this.connection = connection;
+            this.stations = stations;
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+    }
+
+    public SubscriptionDispatcher(Function<String, byte[]> encoder, int maxSubscribers, int backlog, int writerThreads,
+                                  long heartbeatMillis, long writeTimeoutMillis) {
+        this.encoder = encoder;
+        this.maxSubscribers = maxSubscribers;
+        this.backlog = backlog;
+        this.heartbeatMillis = heartbeatMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.writers = Executors.newFixedThreadPool(writerThreads, ConnectionEngine.namedThreads("push"));
+        this.dispatcherThread = new Thread(this::run, "push-dispatcher");
+        this.dispatcherThread.setDaemon(true);
+        this.dispatcherThread.start();
+    }
+
+    public boolean hasCapacity() {
+        return count.get() < maxSubscribers;
+    }
+
+    public int getSubscriberCount() {
+        return count.get();
+    }
+
+    // Registers a subscriber for the given stations (null for all). Events are written to out, and
+    // connection is closed when the subscriber is dropped. Returns null if the limit is reached.
+    public Subscriber subscribe(OutputStream out, Closeable connection, Set<String> stations) {
+        if (count.incrementAndGet() > maxSubscribers) {
+            count.decrementAndGet();
+            return null;
+        }
+        Subscriber subscriber = new Subscriber(out, connection, stations);
+        subscribers.add(subscriber);
+        if (stations == null) {
+            allStations.add(subscriber);
+        } else {
+            for (String station : stations) {
+                // Added inside compute so an unsubscribe cannot drop the set between lookup and add
+                byStation.compute(station, (key, set) -> {
+                    Set<Subscriber> members = set != null ? set : ConcurrentHashMap.newKeySet();
+                    members.add(subscriber);
+                    return members;
+                });
+            }
+        }
+        return subscriber;
+    }
+
+    // Notes that a station changed at the given clock value. Called by request handlers after the
+    // change is applied; only records the station, so it never waits for subscribers.
+    public void publish(String id, long clock) {
+        if (count.get() == 0) {
+            return;
+        }
+        synchronized (published) {
+            published.put(id, clock); // A newer change replaces one not dispatched yet.
+            published.notify();
+        }
+    }
+
+    // Dispatcher loop: takes the stations changed since the last pass, encodes each once and
+    // queues it for its subscribers. Sends a heartbeat when nothing was sent for heartbeatMillis,
+    // and looks for stalled writes at least every half write timeout.
+    private void run() {
+        long lastSent = System.currentTimeMillis();
+        long checkInterval = Math.max(1, writeTimeoutMillis / 2);
+        long nextStallCheck = lastSent + checkInterval;
+        try {
+            while (!closed) {
+                Map<String, Long> changes;
+                synchronized (published) {
+                    if (published.isEmpty()) {
+                        long now = System.currentTimeMillis();
+                        published.wait(Math.max(1, Math.min(lastSent + heartbeatMillis, nextStallCheck) - now));
+                    }
+                    changes = new LinkedHashMap<>(published);
+                    published.clear();
+                }
+                for (Map.Entry<String, Long> change : changes.entrySet()) {
+                    String id = change.getKey();
+                    Set<Subscriber> listed = byStation.get(id);
+                    if (allStations.isEmpty() && (listed == null || listed.isEmpty())) continue;
+                    byte[] event = event(id, change.getValue());
+                    for (Subscriber subscriber : allStations) {
+                        offer(subscriber, id, event);
+                    }
+                    if (listed != null) {
+                        for (Subscriber subscriber : listed) {
+                            offer(subscriber, id, event);
+                        }
+                    }
+                    lastSent = System.currentTimeMillis();
+                }
+                if (System.currentTimeMillis() - lastSent >= heartbeatMillis) {
+                    for (Subscriber subscriber : subscribers) {
+                        offer(subscriber, null, HEARTBEAT);
+                    }
+                    lastSent = System.currentTimeMillis();
+                }
+                if (System.currentTimeMillis() >= nextStallCheck) {
+                    dropStalled();
+                    nextStallCheck = System.currentTimeMillis() + checkInterval;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    // Encodes one change as an SSE event: "update" with the station's JSON, or "remove" with its
+    // ID if it no longer exists. The event ID is the clock value, as used by "?since=".
+    private byte[] event(String id, long clock) {
+        byte[] json = encoder.apply(id);
+        ByteArrayOutputStream event = new ByteArrayOutputStream((json == null ? 64 : json.length) + 48);
+        event.writeBytes(("id: " + clock + "\n").getBytes(StandardCharsets.UTF_8));
+        if (json != null) {
+            event.writeBytes("event: update\ndata: ".getBytes(StandardCharsets.UTF_8));
+            event.writeBytes(json); // Compact JSON has no line breaks.
+        } else {
+            event.writeBytes(("event: remove\ndata: {\"id\":" + new JsonPrimitive(id) + "}").getBytes(StandardCharsets.UTF_8));
+        }
+        event.writeBytes("\n\n".getBytes(StandardCharsets.UTF_8));
+        return event.toByteArray();
+    }
+
+    // Adds an event to a subscriber's pending events and makes sure a writer will send it. A
+    // subscriber behind on more than backlog stations is dropped.
+    private void offer(Subscriber subscriber, String key, byte[] event) {
+        boolean overflow;
+        boolean schedule;
+        synchronized (subscriber) {
+            if (subscriber.closed) return;
+            subscriber.pending.put(key, event);
+            overflow = subscriber.pending.size() > backlog;
+            schedule = !overflow && !subscriber.scheduled;
+            subscriber.scheduled |= schedule;
+        }
+        if (overflow) {
+            System.out.println("Dropping subscriber that fell " + backlog + " stations behind");
+            unsubscribe(subscriber);
+        } else if (schedule) {
+            try {
+                writers.execute(() -> drain(subscriber));
+            } catch (RejectedExecutionException e) {
+                unsubscribe(subscriber); // Shutting down.
+            }
+        }
+    }
+
+    // Writes a subscriber's pending events until there are none left. Runs on a writer thread.
+    private void drain(Subscriber subscriber) {
+        while (true) {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            synchronized (subscriber) {
+                if (subscriber.pending.isEmpty() || subscriber.closed) {
+                    subscriber.scheduled = false;
+                    return;
+                }
+                for (byte[] event : subscriber.pending.values()) {
+                    batch.writeBytes(event);
+                }
+                subscriber.pending.clear();
+            }
+            try {
+                subscriber.writingSince = System.currentTimeMillis();
+                subscriber.out.write(batch.toByteArray());
+                subscriber.out.flush();
+            } catch (IOException e) {
+                unsubscribe(subscriber); // The client has gone away, or the write timed out.
+                return;
+            } finally {
+                subscriber.writingSince = 0;
+            }
+        }
+    }
+
+    // Drops every subscriber whose current write has been blocked for longer than the write
+    // timeout, i.e. whose client stopped reading with a full socket buffer. Closing the connection
+    // makes the blocked write fail, so its writer thread can serve the other subscribers.
+    private void dropStalled() {
+        long now = System.currentTimeMillis();
+        for (Subscriber subscriber : subscribers) {
+            long since = subscriber.writingSince;
+            if (since != 0 && now - since > writeTimeoutMillis) {
+                System.out.println("Dropping subscriber that has not read for " + writeTimeoutMillis + " ms");
+                unsubscribe(subscriber);
+            }
+        }
+    }
+
+    // Removes a subscriber and closes its connection.
+    public void unsubscribe(Subscriber subscriber) {
+        synchronized (subscriber) {
+            if (subscriber.closed) return;
+            subscriber.closed = true;
+            subscriber.pending.clear();
+        }
+        subscribers.remove(subscriber);
+        if (subscriber.stations == null) {
+            allStations.remove(subscriber);
+        } else {
+            for (String station : subscriber.stations) {
+                byStation.computeIfPresent(station, (key, set) -> {
+                    set.remove(subscriber);
+                    return set.isEmpty() ? null : set;
+                });
+            }
+        }
+        count.decrementAndGet();
+        ConnectionEngine.closeQuietly(subscriber.connection);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        dispatcherThread.interrupt();
+        for (Subscriber subscriber : subscribers) {
+            unsubscribe(subscriber);
+        }
+        writers.shutdown();
+    }
+}
@@ -0,0 +1,279 @@
+// File: UpdateSender.java
+// This file contains the UpdateSender class, which sends a ContentServer's station updates to
+// the AggregationServer from a background thread. Updates wait in a bounded queue keyed by
+// station ID, so a newer update replaces one that has not been sent yet. Queued updates are
+// pipelined on one persistent connection, and failed ones are retried with exponential backoff
+// and jitter, waiting at least as long as an overloaded server asks for with Retry-After. Once
+// the server has a station, only the fields that changed are sent (PATCH).
+
+package com.weather.app;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class UpdateSender implements Closeable {
+    private final PersistentConnection connection;
+    private final LamportClock lamportClock;
+    private final String host; // Sent in the Host header.
+    private final int capacity; // Most stations that may wait to be sent at once.
+    private final int pipelineDepth; // Most requests written before their responses are read.
+    private final long keepAliveMillis; // Idle time after which an empty keep-alive PUT is sent, or 0 for none.
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Thread senderThread;
+
+    private final LinkedHashMap<String, Map<String, String>> queued = new LinkedHashMap<>(); // Latest unsent data per station, guarded by this.
+    private final Map<String, Map<String, String>> acknowledged = new HashMap<>(); // Data the server has confirmed; sender thread only.
+    private boolean closing; // Guarded by this.
+    private int failures; // Consecutive failed attempts; sender thread only.
+    private volatile long sentCount; // Updates the server has accepted.
+    private volatile long retryCount; // Updates that had to be sent again.
+    private long retryAfterMillis; // Wait the server asked for in its last 503; sender thread only.
+
+    public UpdateSender(PersistentConnection connection, LamportClock lamportClock, String host, int capacity,
+                        int pipelineDepth, long keepAliveMillis, long baseBackoffMillis, long maxBackoffMillis) {
+        this.connection = connection;
+        this.lamportClock = lamportClock;
+        this.host = host;
+        this.capacity = capacity;
+        this.pipelineDepth = pipelineDepth;
+        this.keepAliveMillis = keepAliveMillis;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.senderThread = new Thread(this::run, "update-sender");
+        this.senderThread.setDaemon(true);
+        this.senderThread.start();
+    }
+
+    // Queues a station's data (which must contain "id"). If an update for the same station is still
+    // waiting, it is replaced. Blocks only while the queue already holds capacity other stations.
+    public synchronized void submit(Map<String, String> data) throws InterruptedException {
+        String id = data.get("id");
+        if (id == null) {
+            throw new IllegalArgumentException("Update has no id");
+        }
+        while (!closing && !queued.containsKey(id) && queued.size() >= capacity) {
+            wait();
+        }
+        if (closing) {
+            throw new IllegalStateException("Sender is closed");
+        }
+        queued.put(id, new LinkedHashMap<>(data)); // Replacing keeps the station's place in the queue.
+        notifyAll();
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    // Returns the number of stations waiting to be sent.
+    public synchronized int getQueuedCount() {
+        return queued.size();
+    }
+
+    // Sender loop: takes up to pipelineDepth updates, sends them and backs off after a failure.
+    // Sends a keep-alive when nothing was sent for keepAliveMillis.
+    private void run() {
+        long lastSent = System.currentTimeMillis();
+        try {
+            while (true) {
+                List<Map<String, String>> batch = new ArrayList<>();
+                synchronized (this) {
+                    while (queued.isEmpty() && !closing) {
+                        long idle = keepAliveMillis > 0 ? lastSent + keepAliveMillis - System.currentTimeMillis() : 0;
+                        if (keepAliveMillis > 0 && idle <= 0) break;
+                        wait(idle);
+                    }
+                    if (queued.isEmpty() && closing) {
+                        return;
+                    }
+                    Iterator<Map<String, String>> iterator = queued.values().iterator();
+                    while (iterator.hasNext() && batch.size() < pipelineDepth) {
+                        batch.add(iterator.next());
+                        iterator.remove();
+                    }
+                    notifyAll(); // Wake producers waiting for space.
+                }
+
+                boolean sent = send(batch);
+                lastSent = System.currentTimeMillis();
+                if (sent) {
+                    failures = 0;
+                } else {
+                    failures++;
+                    Thread.sleep(Math.max(backoffMillis(failures), retryAfterMillis)); // An overloaded server says how long to wait.
+                    retryAfterMillis = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed without waiting for the remaining updates.
+        }
+    }
+
+    // Returns how long to wait after the given number of consecutive failures: exponential up to
+    // maxBackoffMillis, with the upper half randomized so many content servers do not retry in step.
+    private long backoffMillis(int failures) {
+        long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(failures - 1, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    // Sends a batch (or a keep-alive if it is empty). A reused connection that turns out to have been
+    // closed by the server is replaced once straight away. Returns false if the batch must be retried.
+    private boolean send(List<Map<String, String>> batch) {
+        boolean reused = connection.isOpen();
+        int answered = attempt(batch);
+        if (answered == 0 && reused) {
+            closeConnection();
+            answered = attempt(batch);
+        }
+        if (answered < 0) {
+            return true; // Every request got a final answer.
+        }
+        // Retry the unanswered updates unless newer data for the same station has been queued.
+        for (Map<String, String> data : batch.subList(Math.min(answered, batch.size()), batch.size())) {
+            requeue(data);
+        }
+        return false;
+    }
+
+    // Writes the batch's requests back to back, then reads their responses in order. Returns -1 if
+    // every request was answered with a final status, otherwise the number of requests (from the
+    // start of the batch) that need not be retried.
+    private int attempt(List<Map<String, String>> batch) {
+        List<String> methods = new ArrayList<>();
+        StringBuilder requests = new StringBuilder();
+        if (batch.isEmpty()) {
+            requests.append(request("PUT", "")); // Keep-alive: no content, but refreshes our data on the server.
+            methods.add("PUT");
+        }
+        for (Map<String, String> data : batch) {
+            Map<String, String> previous = acknowledged.get(data.get("id"));
+            if (previous != null && data.keySet().containsAll(previous.keySet())) {
+                Map<String, String> changed = new LinkedHashMap<>();
+                changed.put("id", data.get("id"));
+                for (Map.Entry<String, String> field : data.entrySet()) {
+                    if (!field.getValue().equals(previous.get(field.getKey()))) {
+                        changed.put(field.getKey(), field.getValue());
+                    }
+                }
+                requests.append(request("PATCH", ContentServer.toJson(changed)));
+                methods.add("PATCH");
+            } else {
+                requests.append(request("PUT", ContentServer.toJson(data)));
+                methods.add("PUT");
+            }
+        }
+
+        int answered = 0;
+        boolean retry = false;
+        try {
+            connection.write(requests.toString());
+            for (; answered < methods.size(); answered++) {
+                PersistentConnection.Response response = connection.readResponse();
+                if (response == null) {
+                    closeConnection();
+                    return answered;
+                }
+                System.out.println("Server Response Header: " + response.statusLine);
+                String clock = response.headers.get("Lamport-Clock");
+                if (clock != null) {
+                    lamportClock.update(Long.parseLong(clock));
+                }
+
+                Map<String, String> data = batch.isEmpty() ? null : batch.get(answered);
+                int status = response.statusCode;
+                if (data == null) {
+                    // Keep-alive answered.
+                } else if (status >= 200 && status < 300) {
+                    acknowledged.put(data.get("id"), data);
+                    sentCount++;
+                } else if (status == 404 && methods.get(answered).equals("PATCH")) {
+                    // The server no longer has the station (it expired or restarted): send it in full.
+                    acknowledged.remove(data.get("id"));
+                    requeue(data);
+                } else if (status >= 500 || status == 0) {
+                    requeue(data);
+                    retry = true;
+                    retryAfterMillis = Math.max(retryAfterMillis, response.retryAfterMillis());
+                } else {
+                    System.out.println("Update for " + data.get("id") + " rejected: " + response.statusLine);
+                }
+                if (!response.isKeepAlive()) {
+                    closeConnection();
+                    return answered + 1;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not send updates: " + e.getMessage());
+            closeConnection();
+            return answered;
+        }
+        return retry ? answered : -1;
+    }
+
+    // Puts an update back in the queue unless newer data for the station is already waiting.
+    private synchronized void requeue(Map<String, String> data) {
+        if (!queued.containsKey(data.get("id"))) {
+            queued.put(data.get("id"), data);
+            retryCount++;
+        }
+        notifyAll();
+    }
+
+    // Builds one request with a JSON body (empty for a keep-alive).
+    private String request(String method, String jsonData) {
+        long requestClock = lamportClock.tickAndGet(); // Increment Lamport clock before sending to ensure concurrency control.
+        return method + " /weather.json HTTP/1.1\r\n"
+                + "Host: " + host + "\r\n"
+                + "User-Agent: ContentServer/1.0\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + jsonData.getBytes(StandardCharsets.UTF_8).length + "\r\n" // Length in bytes, not characters.
+                + "Connection: keep-alive\r\n" // Reuse the connection for the next update.
+                + "Lamport-Clock: " + requestClock + "\r\n"
+                + "\r\n"
+                + jsonData;
+    }
+
+    private void closeConnection() {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+
+    // Stops accepting updates and waits up to drainMillis for the queued ones to be sent. Returns
+    // the number of stations that could not be sent in time.
+    public int close(long drainMillis) {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        if (drainMillis > 0) {
+            try {
+                senderThread.join(drainMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        senderThread.interrupt();
+        try {
+            senderThread.join(1_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return getQueuedCount();
+    }
+
+    @Override
+    public void close() {
+        close(0);
+    }
+}
@@ -0,0 +1,476 @@
+// File: WeatherStore.java
+// This file contains the WeatherStore class, the map of weather data by station ID used by
+// the AggregationServer. Entries are held as compact Observations rather than JSON objects,
+// which are rebuilt when read through the Map interface. Next to each entry it keeps the
+// origin and timestamp so expiry and persistence need not look inside the JSON. Entries of a
+// binary snapshot are only taken from its mapped index when they are first needed, and stay
+// undecoded until they are first read. Every change bumps a version number that cached GET
+// responses are keyed on. An ExpiryIndex groups the entries by content server so expired
+// data can be found without scanning the whole store. The entries are split into shards by
+// station ID, each its own map, so every shard can be persisted on its own.
+
+package com.weather.app;
+
+import com.google.gson.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+public class WeatherStore extends AbstractMap<String, JsonObject> {
+    private final List<ConcurrentHashMap<String, StoredEntry>> shards;
+    private final Collection<StoredEntry> allEntries; // Live view of the entries of every shard.
+    private final AtomicLong version = new AtomicLong(); // Incremented after every change.
+    private final ReentrantReadWriteLock batchLock = new ReentrantReadWriteLock(); // Keeps batches whole for readConsistent.
+    private final ExpiryIndex expiry; // Last contact time of every content server (or origin-less entry).
+    private final List<BinarySnapshot.Index> snapshots = new CopyOnWriteArrayList<>(); // Loaded snapshots with entries not taken yet.
+
+    public WeatherStore() {
+        this(ExpiryIndex.DEFAULT_PRECISION_MILLIS);
+    }
+
+    public WeatherStore(long expiryPrecisionMillis) {
+        this(expiryPrecisionMillis, 1);
+    }
+
+    public WeatherStore(long expiryPrecisionMillis, int shardCount) {
+        this.expiry = new ExpiryIndex(expiryPrecisionMillis);
+        List<ConcurrentHashMap<String, StoredEntry>> maps = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            maps.add(new ConcurrentHashMap<>());
+        }
+        this.shards = List.copyOf(maps);
+        this.allEntries = shardCount == 1 ? shards.get(0).values() : new AllEntries();
+    }
+
+    // One station's data together with the metadata the server needs without decoding it.
+    public static class StoredEntry {
+        private final String id;
+        private final String origin; // Content server that sent the data, or null.
+        private final long timestamp; // Time the data was received, or -1 if unknown.
+        private final ByteBuffer source; // Snapshot the encoded JSON lives in, until decoded.
+        private final int offset;
+        private final int length;
+        private volatile Observation value;
+
+        StoredEntry(String id, JsonObject value) {
+            this.id = id;
+            this.value = Observation.of(value);
+            this.origin = stringOrNull(value.get("origin"));
+            JsonElement timestamp = value.get("timestamp");
+            this.timestamp = timestamp != null && timestamp.isJsonPrimitive() ? timestamp.getAsLong() : -1;
+            this.source = null;
+            this.offset = 0;
+            this.length = 0;
+        }
+
+        StoredEntry(String id, String origin, long timestamp, ByteBuffer source, int offset, int length) {
+            this.id = id;
+            this.origin = origin;
+            this.timestamp = timestamp;
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        // Returns true until a snapshot-backed entry has been read for the first time.
+        public boolean isDecoded() {
+            return value != null;
+        }
+
+        // Returns the entry as a new JSON object, decoding it from the snapshot on first access.
+        public JsonObject getValue() {
+            return getObservation().toJson();
+        }
+
+        // Returns the compact form of the entry, decoding it from the snapshot on first access.
+        public Observation getObservation() {
+            Observation decoded = value;
+            if (decoded == null) {
+                synchronized (this) {
+                    decoded = value;
+                    if (decoded == null) {
+                        decoded = Observation.of(JsonParser.parseString(new String(getEncoded(), StandardCharsets.UTF_8)).getAsJsonObject());
+                        value = decoded;
+                    }
+                }
+            }
+            return decoded;
+        }
+
+        // Returns the compact UTF-8 JSON encoding, copied straight from the snapshot when possible.
+        public byte[] getEncoded() {
+            if (source != null) {
+                byte[] bytes = new byte[length];
+                source.get(offset, bytes);
+                return bytes;
+            }
+            return value.encode();
+        }
+
+        private static String stringOrNull(JsonElement element) {
+            return element != null && element.isJsonPrimitive() ? element.getAsString() : null;
+        }
+    }
+
+    @Override
+    public JsonObject get(Object key) {
+        resolve(key);
+        StoredEntry entry = shardFor(key).get(key);
+        return entry == null ? null : entry.getValue();
+    }
+
+    @Override
+    public JsonObject put(String key, JsonObject value) {
+        resolve(key);
+        StoredEntry entry = new StoredEntry(key, value);
+        StoredEntry previous = shardFor(key).put(key, entry);
+        track(entry);
+        version.incrementAndGet();
+        return previous == null ? null : previous.getValue();
+    }
+
+    // Replaces an existing entry with a changed copy of it, atomically with respect to other
+    // updates of the same ID. Returns the new value, or null if there is no such entry.
+    public JsonObject update(String id, UnaryOperator<JsonObject> change) {
+        resolve(id);
+        JsonObject[] updated = new JsonObject[1];
+        StoredEntry entry = shardFor(id).computeIfPresent(id, (key, current) -> {
+            updated[0] = change.apply(current.getValue());
+            return new StoredEntry(key, updated[0]);
+        });
+        if (entry == null) {
+            return null;
+        }
+        track(entry);
+        version.incrementAndGet();
+        return updated[0];
+    }
+
+    // Adds several entries as one batch: a reader inside readConsistent sees all of them or none.
+    @Override
+    public void putAll(Map<? extends String, ? extends JsonObject> batch) {
+        batchLock.writeLock().lock();
+        try {
+            for (Map.Entry<? extends String, ? extends JsonObject> entry : batch.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            batchLock.writeLock().unlock();
+        }
+    }
+
+    // Runs a read that must not observe a batch half applied. Single puts do not wait for it.
+    public <T> T readConsistent(Supplier<T> reader) {
+        batchLock.readLock().lock();
+        try {
+            return reader.get();
+        } finally {
+            batchLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public JsonObject remove(Object key) {
+        resolve(key);
+        StoredEntry previous = shardFor(key).remove(key);
+        if (previous == null) {
+            return null;
+        }
+        version.incrementAndGet();
+        return previous.getValue();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        resolve(key);
+        return shardFor(key).containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<String, StoredEntry> shard : shards) {
+            size += shard.size();
+        }
+        for (BinarySnapshot.Index snapshot : snapshots) {
+            size += snapshot.getUnclaimedCount();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (ConcurrentHashMap<String, StoredEntry> shard : shards) {
+            if (!shard.isEmpty()) return false;
+        }
+        for (BinarySnapshot.Index snapshot : snapshots) {
+            if (snapshot.getUnclaimedCount() > 0) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        snapshots.clear();
+        for (ConcurrentHashMap<String, StoredEntry> shard : shards) {
+            shard.clear();
+        }
+        expiry.clear();
+        version.incrementAndGet();
+    }
+
+    // Returns the current version; it changes whenever an entry is added, replaced or removed.
+    public long getVersion() {
+        return version.get();
+    }
+
+    // Adds the entries of a loaded snapshot, which are taken from its index when first needed.
+    // The snapshot's content servers must be touched separately, so that they can expire.
+    void addSnapshot(BinarySnapshot.Index snapshot) {
+        snapshots.add(snapshot);
+        version.incrementAndGet();
+    }
+
+    // Returns the number of snapshot entries that have not been taken into the store yet.
+    int getUnresolvedCount() {
+        int count = 0;
+        for (BinarySnapshot.Index snapshot : snapshots) {
+            count += snapshot.getUnclaimedCount();
+        }
+        return count;
+    }
+
+    // Returns the stored entry with its metadata, or null.
+    public StoredEntry getEntry(String id) {
+        resolve(id);
+        return shardFor(id).get(id);
+    }
+
+    // Returns the content servers that entries are kept for, without reading any snapshot entries.
+    public List<String> origins() {
+        List<String> origins = new ArrayList<>();
+        for (String group : expiry.groupsStartingWith("origin ")) {
+            origins.add(group.substring("origin ".length()));
+        }
+        return origins;
+    }
+
+    // Returns a live view of the stored entries.
+    public Collection<StoredEntry> storedEntries() {
+        resolveAll();
+        return allEntries;
+    }
+
+    // Returns a live view of the entries in one shard.
+    public Collection<StoredEntry> storedEntries(int shard) {
+        resolveAll();
+        return shards.get(shard).values();
+    }
+
+    // Takes the entry with the given ID from the loaded snapshots, unless the store has it already.
+    private void resolve(Object key) {
+        if (snapshots.isEmpty() || !(key instanceof String)) {
+            return;
+        }
+        for (BinarySnapshot.Index snapshot : snapshots) {
+            synchronized (snapshot) {
+                StoredEntry entry = snapshot.claim((String) key);
+                if (entry != null) {
+                    take(snapshot, List.of(entry));
+                    return;
+                }
+            }
+        }
+    }
+
+    // Takes every remaining snapshot entry, before the entries are iterated over.
+    private void resolveAll() {
+        for (BinarySnapshot.Index snapshot : snapshots) {
+            synchronized (snapshot) {
+                take(snapshot, snapshot.claimAll());
+            }
+        }
+    }
+
+    // Adds claimed snapshot entries to the store. A snapshot entry never replaces a newer one,
+    // and a snapshot with nothing left is dropped.
+    private void take(BinarySnapshot.Index snapshot, List<StoredEntry> entries) {
+        for (StoredEntry entry : entries) {
+            if (shardFor(entry.getId()).putIfAbsent(entry.getId(), entry) == null) {
+                track(entry);
+            }
+        }
+        if (snapshot.getUnclaimedCount() == 0) {
+            snapshots.remove(snapshot);
+        }
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    // Returns the shard a station ID belongs to. The hash is mixed first, so that the entries of
+    // one shard still spread over all buckets of its map.
+    public int shardOf(String id) {
+        return shards.size() == 1 ? 0 : Math.floorMod(Integer.rotateLeft(id.hashCode() * 0x9E3779B9, 16), shards.size());
+    }
+
+    private ConcurrentHashMap<String, StoredEntry> shardFor(Object key) {
+        return shards.get(key instanceof String ? shardOf((String) key) : 0);
+    }
+
+    // Removes the entry only if it has not been replaced in the meantime.
+    public boolean remove(String id, StoredEntry expected) {
+        if (shardFor(id).remove(id, expected)) {
+            version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    // Records that a content server has been heard from, keeping all of its entries alive.
+    public void touch(String origin, long timestamp) {
+        expiry.touch(groupOf(origin, null), null, timestamp);
+    }
+
+    // Removes the entries of every content server not heard from since the cutoff, and every
+    // origin-less entry older than it, and returns the removed entries. Entries without a
+    // timestamp are always removed. Only content servers that are due are looked at.
+    public List<StoredEntry> removeExpired(long cutoff) {
+        List<StoredEntry> removed = new ArrayList<>();
+        for (Map.Entry<String, Set<String>> group : expiry.pollExpired(cutoff).entrySet()) {
+            if (group.getKey().startsWith("origin ")) {
+                // Entries of the server still in a snapshot go with it, without the rest being read.
+                String origin = group.getKey().substring("origin ".length());
+                for (BinarySnapshot.Index snapshot : snapshots) {
+                    synchronized (snapshot) {
+                        List<StoredEntry> kept = new ArrayList<>();
+                        for (StoredEntry entry : snapshot.claimOrigin(origin)) {
+                            if (entry.getTimestamp() >= cutoff) {
+                                kept.add(entry);
+                            } else if (shardFor(entry.getId()).get(entry.getId()) == null) {
+                                removed.add(entry);
+                                version.incrementAndGet();
+                            }
+                        }
+                        take(snapshot, kept);
+                    }
+                }
+            }
+            for (String id : group.getValue()) {
+                StoredEntry entry = getEntry(id);
+                // Skip entries that moved to another server or were stored after the cutoff.
+                if (entry != null && group.getKey().equals(groupOf(entry)) && entry.getTimestamp() < cutoff
+                        && remove(id, entry)) {
+                    removed.add(entry);
+                }
+            }
+        }
+        return removed;
+    }
+
+    // Adds an entry to the expiry group of its content server. An origin-less entry is its own
+    // group and expires by its own timestamp, even if that is older than the one it replaced.
+    private void track(StoredEntry entry) {
+        if (entry.getOrigin() != null) {
+            expiry.touch(groupOf(entry), entry.getId(), entry.getTimestamp());
+        } else {
+            expiry.set(groupOf(entry), entry.getId(), entry.getTimestamp());
+        }
+    }
+
+    private static String groupOf(StoredEntry entry) {
+        return groupOf(entry.getOrigin(), entry.getId());
+    }
+
+    private static String groupOf(String origin, String id) {
+        return origin != null ? "origin " + origin : "station " + id;
+    }
+
+    @Override
+    public Set<Map.Entry<String, JsonObject>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, JsonObject>> iterator() {
+                resolveAll();
+                Iterator<StoredEntry> iterator = allEntries.iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, JsonObject> next() {
+                        StoredEntry entry = iterator.next();
+                        return new SimpleImmutableEntry<>(entry.getId(), entry.getValue());
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                        version.incrementAndGet();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return WeatherStore.this.size();
+            }
+        };
+    }
+
+    // Iterates over the shards one after another.
+    private class AllEntries extends AbstractCollection<StoredEntry> {
+        @Override
+        public Iterator<StoredEntry> iterator() {
+            return new Iterator<>() {
+                private int shard;
+                private Iterator<StoredEntry> current = shards.get(0).values().iterator();
+
+                @Override
+                public boolean hasNext() {
+                    while (!current.hasNext() && shard < shards.size() - 1) {
+                        current = shards.get(++shard).values().iterator();
+                    }
+                    return current.hasNext();
+                }
+
+                @Override
+                public StoredEntry next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    return current.next();
+                }
+
+                @Override
+                public void remove() {
+                    current.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return WeatherStore.this.size();
+        }
+    }
+}
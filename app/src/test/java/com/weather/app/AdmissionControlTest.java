@@ -0,0 +1,67 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlTest {
+
+    @Test
+    void testConnectionLimit() {
+        AdmissionControl admission = new AdmissionControl(2, 0, 0, 1);
+        assertTrue(admission.tryOpenConnection());
+        assertTrue(admission.tryOpenConnection());
+        assertFalse(admission.tryOpenConnection());
+        admission.connectionClosed();
+        assertTrue(admission.tryOpenConnection());
+        assertEquals(2, admission.getOpenConnections());
+        assertEquals(1, admission.getRejectedConnections());
+    }
+
+    @Test
+    void testEachClientHasItsOwnRate() throws Exception {
+        AdmissionControl admission = new AdmissionControl(0, 2, 3, 1); // 2 requests/second, bursts of 3
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, admission.tryAcquire("/10.0.0.1"));
+        }
+        assertEquals(1, admission.tryAcquire("/10.0.0.1")); // Retry after one second
+        assertEquals(0, admission.tryAcquire("/10.0.0.2")); // Another client is not affected
+        assertEquals(1, admission.getRateLimitedRequests());
+
+        Thread.sleep(600); // Refills one token
+        assertEquals(0, admission.tryAcquire("/10.0.0.1"));
+        assertNotEquals(0, admission.tryAcquire("/10.0.0.1"));
+    }
+
+    @Test
+    void testRejectedConnectionGetsRetryAfter() throws Exception {
+        AdmissionControl admission = new AdmissionControl(1, 0, 0, 7);
+        try (ServerSocket server = new ServerSocket(0);
+             Socket client = new Socket("localhost", server.getLocalPort())) {
+            client.getOutputStream().write("GET /weather.json HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            admission.rejectConnection(server.accept());
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            assertEquals("HTTP/1.1 503 Service Unavailable", in.readLine());
+            assertEquals("Retry-After: 7", in.readLine());
+        }
+    }
+
+    @Test
+    void testIdleClientsAreForgotten() throws Exception {
+        AdmissionControl admission = new AdmissionControl(0, 1000, 1, 1); // Buckets refill within 1 ms
+        for (int i = 0; i <= 10_000; i++) {
+            admission.tryAcquire("/10.1." + (i / 256) + "." + (i % 256));
+        }
+        assertEquals(10_001, admission.getTrackedClients());
+
+        Thread.sleep(20);
+        assertEquals(0, admission.tryAcquire("/10.2.0.1"));
+        assertEquals(1, admission.getTrackedClients()); // Only the new client is left
+    }
+}
@@ -0,0 +1,238 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.*;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AggregationRouterTest {
+
+    private static Thread serverThread;
+
+    @BeforeAll
+    static void startServer() {
+        serverThread = new Thread(() -> {
+            try {
+                AggregationServer.main(new String[] { "4568" }); // The router listens on port 4568
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serverThread.start();
+
+        // Give the server time to start
+        try {
+            Thread.sleep(2000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    void testRequestsGoToTheOwningNodes() throws Exception {
+        List<String> nodes = List.of("localhost:4581", "localhost:4582");
+        HashRing ring = new HashRing(nodes, AggregationServer.VIRTUAL_NODES);
+        String first = null;
+        String second = null;
+        for (int i = 0; first == null || second == null; i++) {
+            if (ring.nodeFor("route" + i).equals(nodes.get(0))) {
+                first = first == null ? "route" + i : first;
+            } else {
+                second = second == null ? "route" + i : second;
+            }
+        }
+
+        try (StubNode node1 = new StubNode(4581); StubNode node2 = new StubNode(4582)) {
+            AggregationServer.startRouting(nodes);
+            try {
+                // A PUT is stored only on the owner, with the content server as its origin
+                assertTrue(sendRequest("PUT", "{ \"id\": \"" + first + "\", \"air_temp\": \"11.0\" }").startsWith("HTTP/1.1 201"));
+                assertEquals(Set.of(first), node1.stations.keySet());
+                assertTrue(node2.stations.isEmpty());
+                assertTrue(node1.requests.get(0).contains("X-Forwarded-For: /127.0.0.1"));
+
+                // A batch is split by owner and the statuses come back in request order
+                String batch = sendRequest("PUT", "[{ \"id\": \"" + second + "\" }, { \"name\": \"no id\" }, { \"id\": \"" + first + "\" }]");
+                assertTrue(batch.startsWith("HTTP/1.1 200"), batch);
+                JsonArray statuses = JsonParser.parseString(batch.substring(batch.indexOf("\n\n") + 2)).getAsJsonArray();
+                assertEquals(second, statuses.get(0).getAsJsonObject().get("id").getAsString());
+                assertEquals(500, statuses.get(1).getAsJsonObject().get("status").getAsInt());
+                assertEquals(first, statuses.get(2).getAsJsonObject().get("id").getAsString());
+                assertEquals(Set.of(second), node2.stations.keySet());
+
+                // A full GET merges every node; "?id=" asks only the owners
+                assertEquals(Set.of(first, second), ids(sendRequest("GET", null)));
+                node1.requests.clear();
+                node2.requests.clear();
+                assertEquals(Set.of(second), ids(sendRequest("GET /weather.json?id=" + second, null)));
+                assertTrue(node1.requests.isEmpty());
+                assertTrue(sendRequest("GET /weather.json?id=" + first + "-missing", null).startsWith("HTTP/1.1 404"));
+
+                // Keep-alive PUTs reach every node
+                node1.requests.clear();
+                node2.requests.clear();
+                assertTrue(sendRequest("PUT", "").startsWith("HTTP/1.1 204"));
+                assertEquals(1, node1.requests.size());
+                assertEquals(1, node2.requests.size());
+            } finally {
+                AggregationServer.stopRouting();
+            }
+        }
+
+        // A node that is down makes the request fail with 503, which content servers retry
+        AggregationServer.startRouting(List.of("localhost:4583"));
+        try {
+            assertTrue(sendRequest("PUT", "{ \"id\": \"" + first + "\" }").startsWith("HTTP/1.1 503"));
+        } finally {
+            AggregationServer.stopRouting();
+        }
+
+        // So does a router without nodes
+        AggregationServer.startRouting(List.of());
+        try {
+            assertTrue(sendRequest("PUT", "{ \"id\": \"" + first + "\" }").startsWith("HTTP/1.1 503"));
+            assertTrue(sendRequest("GET", null).startsWith("HTTP/1.1 503"));
+        } finally {
+            AggregationServer.stopRouting();
+        }
+    }
+
+    private static Set<String> ids(String response) {
+        assertTrue(response.startsWith("HTTP/1.1 200"), response);
+        Set<String> ids = new HashSet<>();
+        for (JsonElement station : JsonParser.parseString(response.substring(response.indexOf("\n\n") + 2)).getAsJsonArray()) {
+            ids.add(station.getAsJsonObject().get("id").getAsString());
+        }
+        return ids;
+    }
+
+    private static String sendRequest(String method, String json) throws IOException {
+        // Helper method to send a PUT (with json) or a GET and return the whole response
+        try (Socket socket = new Socket("localhost", 4568)) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String requestLine = method.contains(" ") ? method : method + " /weather.json";
+            out.print(requestLine + " HTTP/1.1\r\nLamport-Clock: 1\r\n");
+            if (json != null) {
+                out.print("Content-Type: application/json\r\nContent-Length: " + json.length() + "\r\n");
+            }
+            out.print("\r\n" + (json != null ? json : ""));
+            out.flush();
+
+            StringBuilder response = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                response.append(line).append("\n");
+            }
+            return response.toString();
+        }
+    }
+
+    // A minimal aggregation node that keeps its stations in memory and records every request.
+    private static class StubNode implements Closeable {
+        final ServerSocket serverSocket;
+        final Map<String, JsonObject> stations = Collections.synchronizedMap(new LinkedHashMap<>());
+        final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+        StubNode(int port) throws IOException {
+            serverSocket = new ServerSocket(port);
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        new Thread(() -> serve(socket)).start();
+                    }
+                } catch (IOException e) {
+                    // Closed.
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        // Answers keep-alive requests on one connection until the router closes it.
+        private void serve(Socket socket) {
+            try (socket) {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                String requestLine;
+                while ((requestLine = readLine(in)) != null) {
+                    StringBuilder request = new StringBuilder(requestLine).append("\n");
+                    int length = 0;
+                    String line;
+                    while (!(line = readLine(in)).isEmpty()) {
+                        request.append(line).append("\n");
+                        if (line.startsWith("Content-Length:")) length = Integer.parseInt(line.substring(15).trim());
+                    }
+                    String body = new String(in.readNBytes(length), StandardCharsets.UTF_8);
+                    requests.add(request + body);
+                    out.write(respond(requestLine, body).getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Connection closed.
+            }
+        }
+
+        private String respond(String requestLine, String body) {
+            String path = requestLine.split(" ")[1];
+            if (requestLine.startsWith("PUT") && body.isEmpty()) {
+                return response("204 No Content", null);
+            } else if (requestLine.startsWith("PUT") && body.startsWith("[")) {
+                JsonArray statuses = new JsonArray();
+                for (JsonElement element : JsonParser.parseString(body).getAsJsonArray()) {
+                    String id = element.getAsJsonObject().get("id").getAsString();
+                    stations.put(id, element.getAsJsonObject());
+                    JsonObject status = new JsonObject();
+                    status.addProperty("id", id);
+                    status.addProperty("status", 201);
+                    statuses.add(status);
+                }
+                return response("200 OK", statuses.toString());
+            } else if (requestLine.startsWith("PUT")) {
+                JsonObject station = JsonParser.parseString(body).getAsJsonObject();
+                stations.put(station.get("id").getAsString(), station);
+                return response("201 Created", null);
+            }
+            JsonArray found = new JsonArray();
+            if (path.contains("?id=")) {
+                for (String id : path.substring(path.indexOf("?id=") + 4).split(",")) {
+                    if (stations.containsKey(id)) found.add(stations.get(id));
+                }
+                if (found.isEmpty()) return response("404 Not Found", null);
+            } else {
+                stations.values().forEach(found::add);
+            }
+            return response("200 OK", found.toString());
+        }
+
+        private static String response(String status, String body) {
+            int length = body == null ? 0 : body.getBytes(StandardCharsets.UTF_8).length;
+            return "HTTP/1.1 " + status + "\r\nLamport-Clock: 5\r\nConnection: keep-alive\r\nContent-Type: application/json\r\nContent-Length: "
+                    + length + "\r\n\r\n" + (body == null ? "" : body);
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                if (b != '\r') line.write(b);
+            }
+            return b == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.weather.app;
 
 import org.junit.jupiter.api.*; 
 import com.google.gson.JsonObject; 
+import com.google.gson.JsonParser;
 
 import java.io.*; 
 import java.net.Socket;
@@ -181,6 +182,352 @@ class AggregationServerTest {
         socket.close(); // Close the socket
     }
 
+    @Test
+    void testKeepAlivePipelinedRequests() throws IOException {
+        // Prepare JSON data for the pipelined PUT request
+        String jsonData = "{ \"id\": \"005\", \"name\": \"Pipelined Station\", \"state\": \"Test State\" }";
+        Socket socket = new Socket("localhost", 4568);
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+        // Send a PUT and a GET back to back on the same connection before reading any response
+        out.print("PUT /weather.json HTTP/1.1\r\n");
+        out.print("Content-Length: " + jsonData.length() + "\r\n");
+        out.print("Connection: keep-alive\r\n");
+        out.print("Lamport-Clock: 1\r\n\r\n");
+        out.print(jsonData);
+        out.print("GET /weather.json HTTP/1.1\r\n");
+        out.print("Connection: close\r\n");
+        out.print("Lamport-Clock: 2\r\n\r\n");
+        out.flush();
+
+        // The PUT response keeps the connection open
+        String statusLine = in.readLine();
+        assertTrue(statusLine.contains("201") || statusLine.contains("200"));
+        String line;
+        boolean keepAlive = false;
+        while (!(line = in.readLine()).isEmpty()) {
+            keepAlive |= line.equalsIgnoreCase("Connection: keep-alive");
+        }
+        assertTrue(keepAlive);
+
+        // The GET response follows on the same socket and then the server closes it
+        statusLine = in.readLine();
+        assertTrue(statusLine.contains("200"));
+        StringBuilder responseBody = new StringBuilder();
+        while ((line = in.readLine()) != null) {
+            responseBody.append(line);
+        }
+        assertTrue(responseBody.toString().contains("Connection: close"));
+        assertTrue(responseBody.toString().contains("Pipelined Station"));
+
+        socket.close();
+    }
+
+    @Test
+    void testConditionalGetReturnsNotModified() throws IOException {
+        sendPutRequest("{ \"id\": \"006\", \"name\": \"Cached Station\" }", 1);
+
+        Socket socket = new Socket("localhost", 4568);
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+        // First GET returns the data with its version as ETag
+        out.print("GET /weather.json HTTP/1.1\r\nConnection: keep-alive\r\nLamport-Clock: 1\r\n\r\n");
+        out.flush();
+        assertTrue(in.readLine().contains("200"));
+        String etag = null;
+        int contentLength = 0;
+        String line;
+        while (!(line = in.readLine()).isEmpty()) {
+            if (line.startsWith("ETag:")) etag = line.substring("ETag:".length()).trim();
+            if (line.startsWith("Content-Length:")) contentLength = Integer.parseInt(line.substring("Content-Length:".length()).trim());
+        }
+        assertNotNull(etag);
+        in.skip(contentLength); // The test data is ASCII, so bytes and chars match
+
+        // Repeating the GET with that ETag returns 304 without a body
+        out.print("GET /weather.json HTTP/1.1\r\nIf-None-Match: " + etag + "\r\nLamport-Clock: 2\r\n\r\n");
+        out.flush();
+        assertTrue(in.readLine().contains("304"));
+        StringBuilder response = new StringBuilder();
+        while ((line = in.readLine()) != null) {
+            response.append(line).append("\n");
+        }
+        assertTrue(response.toString().contains("ETag: " + etag));
+        assertFalse(response.toString().contains("Cached Station"));
+
+        socket.close();
+    }
+
+    @Test
+    void testGetStationsById() throws IOException {
+        sendPutRequest("{ \"id\": \"007\", \"name\": \"Station 7\" }", 1);
+        sendPutRequest("{ \"id\": \"008\", \"name\": \"Station 8\" }", 2);
+
+        // A single ID returns only that station
+        String response = sendGetRequest("/weather.json?id=007");
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertTrue(response.contains("Station 7"));
+        assertFalse(response.contains("Station 8"));
+
+        // Several IDs return every station that exists
+        response = sendGetRequest("/weather.json?id=007,008,missing");
+        assertTrue(response.contains("Station 7"));
+        assertTrue(response.contains("Station 8"));
+
+        // Unknown IDs are not found
+        assertTrue(sendGetRequest("/weather.json?id=missing").startsWith("HTTP/1.1 404"));
+    }
+
+    @Test
+    void testCompactGzipGet() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            sendPutRequest("{ \"id\": \"gz" + i + "\", \"name\": \"Compressed Station " + i + "\" }", i + 1);
+        }
+
+        try (Socket socket = new Socket("localhost", 4568)) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.print("GET /weather.json HTTP/1.1\r\nLamport-Clock: 1\r\n"
+                    + "Accept: application/json; format=compact\r\nAccept-Encoding: gzip\r\n\r\n");
+            out.flush();
+
+            // Read the headers byte by byte, then exactly Content-Length bytes of body
+            assertTrue(readHeaderLine(in).startsWith("HTTP/1.1 200"));
+            boolean gzip = false;
+            int length = -1;
+            String line;
+            while (!(line = readHeaderLine(in)).isEmpty()) {
+                if (line.equalsIgnoreCase("Content-Encoding: gzip")) gzip = true;
+                if (line.startsWith("Content-Length:")) length = Integer.parseInt(line.substring(15).trim());
+            }
+            assertTrue(gzip);
+            byte[] body = new byte[length];
+            in.readFully(body);
+
+            String json = new String(new java.util.zip.GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes(), "UTF-8");
+            assertTrue(json.startsWith("[{"));
+            assertTrue(json.contains("Compressed Station 9"));
+            assertFalse(json.contains("\n")); // Compact JSON has no line breaks
+        }
+    }
+
+    private static String readHeaderLine(InputStream in) throws IOException {
+        // Helper method to read one CRLF-terminated header line from a byte stream
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    @Test
+    void testNonAsciiPutUsesByteLength() throws IOException {
+        String jsonData = "{ \"id\": \"utf8\", \"name\": \"Ngayirdapira \u00e9\u00e8 \u2603\" }";
+        byte[] body = jsonData.getBytes("UTF-8");
+        assertTrue(body.length > jsonData.length());
+
+        try (Socket socket = new Socket("localhost", 4568)) {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+
+            // A PUT whose Content-Length counts bytes, followed by a pipelined GET on the same connection
+            out.write(("PUT /weather.json HTTP/1.1\r\nConnection: keep-alive\r\nContent-Length: " + body.length
+                    + "\r\nLamport-Clock: 1\r\n\r\n").getBytes("UTF-8"));
+            out.write(body);
+            out.write("GET /weather.json?id=utf8 HTTP/1.1\r\nLamport-Clock: 2\r\n\r\n".getBytes("UTF-8"));
+            out.flush();
+
+            String status = in.readLine();
+            assertTrue(status.contains("200") || status.contains("201"));
+            StringBuilder rest = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                rest.append(line).append("\n");
+            }
+            assertTrue(rest.toString().contains("HTTP/1.1 200 OK"));
+            assertTrue(rest.toString().contains("Ngayirdapira \u00e9\u00e8 \u2603"));
+        }
+        assertEquals("Ngayirdapira \u00e9\u00e8 \u2603", AggregationServer.weatherData.get("utf8").get("name").getAsString());
+    }
+
+    @Test
+    void testBatchPutReportsEveryEntry() throws IOException {
+        String jsonData = "[{ \"id\": \"batch1\", \"name\": \"Batch 1\" }, { \"name\": \"No ID\" }, { \"id\": \"batch2\" }]";
+        String response = sendRawRequest("PUT /weather.json HTTP/1.1\r\nContent-Type: application/json\r\nContent-Length: "
+                + jsonData.length() + "\r\nLamport-Clock: 1\r\n\r\n" + jsonData);
+        assertTrue(response.startsWith("HTTP/1.1 200") || response.startsWith("HTTP/1.1 201"));
+        assertTrue(response.contains("{\"id\":\"batch1\",\"status\":201}"));
+        assertTrue(response.contains("{\"index\":1,\"status\":500,\"error\":\"Invalid JSON\"}"));
+        assertTrue(response.contains("{\"id\":\"batch2\",\"status\":201}"));
+        assertTrue(AggregationServer.weatherData.containsKey("batch1"));
+        assertTrue(AggregationServer.weatherData.containsKey("batch2"));
+
+        // NDJSON bodies are accepted as well; stations already stored are reported as 200
+        String lines = "{ \"id\": \"batch1\", \"name\": \"Batch 1 again\" }\n{ \"id\": \"batch3\" }\n";
+        response = sendRawRequest("PUT /weather.json HTTP/1.1\r\nContent-Type: application/x-ndjson\r\nContent-Length: "
+                + lines.length() + "\r\nLamport-Clock: 2\r\n\r\n" + lines);
+        assertTrue(response.contains("{\"id\":\"batch1\",\"status\":200}"));
+        assertTrue(response.contains("{\"id\":\"batch3\",\"status\":201}"));
+        assertEquals("Batch 1 again", AggregationServer.weatherData.get("batch1").get("name").getAsString());
+    }
+
+    @Test
+    void testForwardedForIsIgnoredFromUntrustedPeers() throws IOException {
+        // Only configured routers may name another origin; this client is not one
+        String jsonData = "{ \"id\": \"spoofed\", \"name\": \"Spoofed\" }";
+        String response = sendRawRequest("PUT /weather.json HTTP/1.1\r\nContent-Length: " + jsonData.length()
+                + "\r\nX-Forwarded-For: /10.9.9.9\r\nLamport-Clock: 1\r\n\r\n" + jsonData);
+        assertTrue(response.startsWith("HTTP/1.1 20"));
+        assertEquals("/127.0.0.1", AggregationServer.weatherData.get("spoofed").get("origin").getAsString());
+        assertFalse(AggregationServer.serverTimestamps.containsKey("/10.9.9.9"));
+    }
+
+    @Test
+    void testMalformedNumericHeadersAreRejected() throws IOException {
+        // The body cannot be found without a valid length, so the connection is not kept
+        String response = sendRawRequest("PUT /weather.json HTTP/1.1\r\nConnection: keep-alive\r\nContent-Length: ten\r\n\r\n{}");
+        assertTrue(response.startsWith("HTTP/1.1 400 Bad Request"));
+        assertTrue(response.contains("Connection: close"));
+
+        response = sendRawRequest("GET /weather.json HTTP/1.1\r\nLamport-Clock: soon\r\n\r\n");
+        assertTrue(response.startsWith("HTTP/1.1 400 Bad Request"));
+    }
+
+    @Test
+    void testOversizedBodyIsRefusedBeforeReading() throws IOException {
+        String response = sendRawRequest("PUT /weather.json HTTP/1.1\r\nConnection: keep-alive\r\nContent-Length: 2000000000\r\n\r\n{}");
+        assertTrue(response.startsWith("HTTP/1.1 413 Payload Too Large"));
+        assertTrue(response.contains("Connection: close"));
+    }
+
+    @Test
+    void testPatchMergesChangedFields() throws IOException {
+        sendPutRequest("{ \"id\": \"patch1\", \"name\": \"Patched\", \"air_temp\": \"10.0\", \"cloud\": \"Sunny\" }", 1);
+
+        String patch = "{ \"id\": \"patch1\", \"air_temp\": \"11.5\", \"cloud\": null }";
+        String response = sendRawRequest("PATCH /weather.json HTTP/1.1\r\nContent-Length: " + patch.length()
+                + "\r\nLamport-Clock: 2\r\n\r\n" + patch);
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        JsonObject stored = AggregationServer.weatherData.get("patch1");
+        assertEquals("Patched", stored.get("name").getAsString());
+        assertEquals("11.5", stored.get("air_temp").getAsString());
+        assertFalse(stored.has("cloud"));
+
+        // Unknown stations must be sent in full
+        patch = "{ \"id\": \"patch-missing\", \"air_temp\": \"1.0\" }";
+        response = sendRawRequest("PATCH /weather.json HTTP/1.1\r\nContent-Length: " + patch.length()
+                + "\r\nLamport-Clock: 3\r\n\r\n" + patch);
+        assertTrue(response.startsWith("HTTP/1.1 404"));
+    }
+
+    @Test
+    void testMetricsReportRequestPhases() throws IOException {
+        sendPutRequest("{ \"id\": \"metrics1\", \"name\": \"Measured\" }", 1);
+
+        String response = sendGetRequest("/metrics");
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertTrue(response.contains("Content-Type: text/plain; version=0.0.4"));
+        assertTrue(response.contains("# TYPE weather_request_phase_seconds histogram"));
+        for (String phase : new String[]{"header_parse", "body_read", "json_parse", "store_update", "persistence", "response_write"}) {
+            assertTrue(response.contains("weather_request_phase_seconds_bucket{phase=\"" + phase + "\",le=\"+Inf\"} "), phase);
+            assertFalse(response.contains("weather_request_phase_seconds_count{phase=\"" + phase + "\"} 0\n"), phase);
+        }
+        assertTrue(response.contains("weather_store_stations "));
+        assertTrue(response.contains("weather_connections_open "));
+        assertTrue(response.contains("weather_expiry_sweep_seconds_count "));
+    }
+
+    @Test
+    void testChangeFeedReturnsOnlyNewChanges() throws IOException {
+        // An unknown client starts with a full snapshot
+        JsonObject first = changesSince("since=0");
+        assertTrue(first.get("full").getAsBoolean());
+        long clock = first.get("clock").getAsLong();
+        long epoch = first.get("epoch").getAsLong();
+
+        sendPutRequest("{ \"id\": \"feed1\", \"name\": \"Feed\", \"air_temp\": \"12.0\" }", 1);
+        JsonObject delta = changesSince("since=" + clock + "&epoch=" + epoch);
+        assertFalse(delta.get("full").getAsBoolean());
+        assertEquals(1, delta.getAsJsonArray("updated").size());
+        assertEquals("feed1", delta.getAsJsonArray("updated").get(0).getAsJsonObject().get("id").getAsString());
+        assertTrue(delta.get("clock").getAsLong() > clock);
+
+        // Nothing changed since the last response, and a clock from another server run gets a snapshot
+        assertEquals(0, changesSince("since=" + delta.get("clock") + "&epoch=" + epoch).getAsJsonArray("updated").size());
+        assertTrue(changesSince("since=" + delta.get("clock") + "&epoch=" + (epoch - 1)).get("full").getAsBoolean());
+        assertTrue(sendGetRequest("/weather.json?since=abc").startsWith("HTTP/1.1 400"));
+    }
+
+    @Test
+    void testEventStreamPushesSubscribedStations() throws IOException {
+        try (Socket socket = new Socket("localhost", 4568)) {
+            socket.setSoTimeout(5_000);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.print("GET /weather.json?id=push1 HTTP/1.1\r\nAccept: text/event-stream\r\nLamport-Clock: 1\r\n\r\n");
+            out.flush();
+            assertTrue(in.readLine().startsWith("HTTP/1.1 200"));
+            String line;
+            boolean eventStream = false;
+            while (!(line = in.readLine()).isEmpty()) {
+                eventStream |= line.equals("Content-Type: text/event-stream");
+            }
+            assertTrue(eventStream);
+
+            // Only the subscribed station is pushed
+            sendPutRequest("{ \"id\": \"push-other\", \"air_temp\": \"1.0\" }", 1);
+            sendPutRequest("{ \"id\": \"push1\", \"air_temp\": \"15.5\" }", 2);
+            assertTrue(in.readLine().startsWith("id: "));
+            assertEquals("event: update", in.readLine());
+            line = in.readLine();
+            assertTrue(line.startsWith("data: {\"id\":\"push1\""), line);
+            assertTrue(line.contains("\"air_temp\":\"15.5\""));
+        }
+    }
+
+    private JsonObject changesSince(String query) throws IOException {
+        String response = sendGetRequest("/weather.json?" + query);
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        return JsonParser.parseString(response.substring(response.indexOf("\n\n") + 2)).getAsJsonObject();
+    }
+
+    private String sendRawRequest(String request) throws IOException {
+        // Helper method to send a complete request and return the whole response
+        try (Socket socket = new Socket("localhost", 4568)) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.print(request);
+            out.flush();
+
+            StringBuilder response = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                response.append(line).append("\n");
+            }
+            return response.toString();
+        }
+    }
+
+    private String sendGetRequest(String path) throws IOException {
+        // Helper method to send a GET request and return the whole response
+        try (Socket socket = new Socket("localhost", 4568)) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.print("GET " + path + " HTTP/1.1\r\nLamport-Clock: 1\r\n\r\n");
+            out.flush();
+
+            StringBuilder response = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                response.append(line).append("\n");
+            }
+            return response.toString();
+        }
+    }
+
     private void sendPutRequest(String jsonData, int clockValue) throws IOException {
         // Helper method to send a PUT request
         Socket socket = new Socket("localhost", 4568);
@@ -262,4 +609,20 @@ class AggregationServerTest {
         assertTrue(AggregationServer.weatherData.containsKey("station2")); // Valid entry should remain
         assertFalse(AggregationServer.weatherData.containsKey("station3"));  // Invalid timestamp entry should be removed
     }
+
+    @Test
+    void testRecoveredOriginsGetAGracePeriod() {
+        // Data from a content server whose last full PUT was 35 seconds ago; since then it has
+        // only sent keep-alives, which are not persisted
+        JsonObject quiet = new JsonObject();
+        quiet.addProperty("id", "recovered1");
+        quiet.addProperty("origin", "/10.4.4.4");
+        quiet.addProperty("timestamp", Instant.now().toEpochMilli() - 35_000);
+        AggregationServer.weatherData.put("recovered1", quiet);
+
+        AggregationServer.renewContacts(); // As done after recovery
+        AggregationServer.cleanExpiredData();
+        assertTrue(AggregationServer.weatherData.containsKey("recovered1"));
+        assertTrue(AggregationServer.serverTimestamps.get("/10.4.4.4") > Instant.now().toEpochMilli() - 1_000);
+    }
 }
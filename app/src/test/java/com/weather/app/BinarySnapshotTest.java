@@ -0,0 +1,115 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.*;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinarySnapshotTest {
+
+    private File snapshotFile;
+
+    @BeforeEach
+    void createFile() throws IOException {
+        snapshotFile = File.createTempFile("weather", ".snapshot");
+    }
+
+    @AfterEach
+    void deleteFile() {
+        snapshotFile.delete();
+    }
+
+    @Test
+    void testWriteAndLoadLazily() throws IOException {
+        WeatherStore store = new WeatherStore();
+        JsonObject adelaide = new JsonObject();
+        adelaide.addProperty("id", "IDS60901");
+        adelaide.addProperty("name", "Adelaide (West Terrace /  ngayirdapira)");
+        adelaide.addProperty("air_temp", "13.3");
+        adelaide.addProperty("origin", "/127.0.0.1");
+        adelaide.addProperty("timestamp", 1728018709849L);
+        store.put("IDS60901", adelaide);
+        JsonObject noOrigin = new JsonObject();
+        noOrigin.addProperty("id", "station2");
+        store.put("station2", noOrigin);
+
+        BinarySnapshot.write(store, snapshotFile.getPath());
+
+        WeatherStore loaded = new WeatherStore();
+        assertEquals(2, BinarySnapshot.load(snapshotFile.getPath(), loaded));
+
+        // Metadata is available without decoding the entry
+        WeatherStore.StoredEntry entry = loaded.getEntry("IDS60901");
+        assertFalse(entry.isDecoded());
+        assertEquals("/127.0.0.1", entry.getOrigin());
+        assertEquals(1728018709849L, entry.getTimestamp());
+        assertNull(loaded.getEntry("station2").getOrigin());
+        assertEquals(-1, loaded.getEntry("station2").getTimestamp());
+
+        // The entry is decoded on first access
+        assertEquals(adelaide, loaded.get("IDS60901"));
+        assertTrue(entry.isDecoded());
+        assertEquals(noOrigin, loaded.get("station2"));
+    }
+
+    @Test
+    void testEntriesAreTakenFromTheIndexWhenNeeded() throws IOException {
+        WeatherStore store = new WeatherStore();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            JsonObject entry = new JsonObject();
+            entry.addProperty("id", "station" + i);
+            entry.addProperty("origin", i < 10 ? "/10.0.0.1" : "/10.0.0.2");
+            entry.addProperty("timestamp", i < 10 ? now - 60_000 : now);
+            store.put("station" + i, entry);
+        }
+        BinarySnapshot.write(store, snapshotFile.getPath());
+
+        WeatherStore loaded = new WeatherStore();
+        assertEquals(20, BinarySnapshot.load(snapshotFile.getPath(), loaded));
+        assertEquals(20, loaded.getUnresolvedCount()); // Nothing was read from the index yet
+        assertEquals(20, loaded.size());
+        assertEquals(Set.of("/10.0.0.1", "/10.0.0.2"), new HashSet<>(loaded.origins()));
+
+        // Lookups take single entries; a missing ID takes nothing
+        assertEquals(store.get("station15"), loaded.get("station15"));
+        assertNull(loaded.get("station99"));
+        assertEquals(19, loaded.getUnresolvedCount());
+
+        // A newer entry is not replaced by the snapshot, and a removed one does not come back
+        JsonObject replaced = new JsonObject();
+        replaced.addProperty("id", "station16");
+        replaced.addProperty("origin", "/10.0.0.2");
+        replaced.addProperty("timestamp", now);
+        loaded.put("station16", replaced);
+        loaded.remove("station17");
+        assertEquals(replaced, loaded.get("station16"));
+        assertFalse(loaded.containsKey("station17"));
+        assertEquals(19, loaded.size());
+
+        // An expired content server takes its entries with it, without reading the others
+        List<WeatherStore.StoredEntry> removed = loaded.removeExpired(now - 30_000);
+        assertEquals(10, removed.size());
+        assertEquals(9, loaded.size());
+        assertEquals(7, loaded.getUnresolvedCount());
+
+        // Iterating takes everything that is left
+        assertEquals(9, new ArrayList<>(loaded.keySet()).size());
+        assertEquals(0, loaded.getUnresolvedCount());
+    }
+
+    @Test
+    void testRejectsOtherFiles() throws IOException {
+        Files.write(snapshotFile.toPath(), "[{\"id\":\"a\"}]".getBytes());
+        assertThrows(IOException.class, () -> BinarySnapshot.load(snapshotFile.getPath(), new WeatherStore()));
+
+        // A snapshot of an unknown version is not guessed at
+        Files.write(snapshotFile.toPath(), java.nio.ByteBuffer.allocate(20).putInt(0x5758534E).putInt(7).array());
+        assertThrows(IOException.class, () -> BinarySnapshot.load(snapshotFile.getPath(), new WeatherStore()));
+    }
+}
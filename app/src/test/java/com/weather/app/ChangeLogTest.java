@@ -0,0 +1,53 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeLogTest {
+
+    @Test
+    void testChangesAfterClockKeepLastOperation() {
+        LamportClock clock = new LamportClock();
+        ChangeLog log = new ChangeLog(clock, 16);
+        long start = log.recordUpdate("a");
+        log.recordUpdate("b");
+        log.recordRemoval("a");
+        log.recordUpdate("c");
+        log.recordUpdate("b");
+
+        ChangeLog.Changes changes = log.since(start, log.getEpoch());
+        assertFalse(changes.full);
+        assertEquals(clock.getClock(), changes.clock);
+        assertEquals(List.of("a", "c", "b"), new ArrayList<>(changes.stations.keySet())); // Order of last change
+        assertTrue(changes.stations.get("a"));
+        assertFalse(changes.stations.get("b"));
+        assertTrue(log.since(changes.clock, log.getEpoch()).stations.isEmpty());
+    }
+
+    @Test
+    void testClientBehindTheLogGetsFullSnapshot() {
+        ChangeLog log = new ChangeLog(new LamportClock(), 4);
+        assertTrue(log.since(0, null).full); // Data from before the log started is not in it
+
+        long first = log.recordUpdate("a");
+        long second = log.recordUpdate("b");
+        for (int i = 0; i < 3; i++) {
+            log.recordUpdate("x" + i);
+        }
+        assertEquals(4, log.size());
+        assertTrue(log.since(first, null).full); // The change after "first" was dropped
+        assertFalse(log.since(second, null).full);
+        assertEquals(3, log.since(second, null).stations.size());
+    }
+
+    @Test
+    void testClockFromAnotherRunGetsFullSnapshot() {
+        ChangeLog log = new ChangeLog(new LamportClock(), 4);
+        long clock = log.recordUpdate("a");
+        assertTrue(log.since(clock + 100, null).full); // Newer than anything logged here
+        assertTrue(log.since(clock, log.getEpoch() + 1).full);
+    }
+}
@@ -0,0 +1,90 @@
+package com.weather.app;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Compares the connection engines by opening one connection per GET request from many
+// concurrent clients. Run after mvn test-compile with:
+//   java -cp target/classes:target/test-classes:<gson.jar> com.weather.app.ConnectionBenchmark [clients] [requests]
+public class ConnectionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64; // Concurrent client threads.
+        int requestsPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 200; // Connections opened per client.
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Silence per-request server logging.
+
+        int port = 4600;
+        for (String engineName : new String[] { ConnectionEngine.THREAD, ConnectionEngine.VIRTUAL, ConnectionEngine.NIO }) {
+            ConnectionEngine engine = ConnectionEngine.create(engineName, AggregationServer.WORKER_THREADS);
+            int enginePort = port++;
+            Thread serverThread = new Thread(() -> {
+                try {
+                    engine.serve(enginePort);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+            Thread.sleep(500); // Give the engine time to bind.
+
+            run(enginePort, clients, requestsPerClient / 4); // Warm up the JIT.
+            long[] latencies = new long[clients * requestsPerClient];
+            long elapsed = run(enginePort, clients, requestsPerClient, latencies);
+            engine.close();
+
+            Arrays.sort(latencies);
+            report.printf("%-8s %8.0f conn/s   p50 %7.2f ms   p99 %7.2f ms%n",
+                    engineName,
+                    latencies.length / (elapsed / 1e9),
+                    latencies[latencies.length / 2] / 1e6,
+                    latencies[(int) (latencies.length * 0.99)] / 1e6);
+        }
+        System.setOut(report);
+    }
+
+    private static long run(int port, int clients, int requestsPerClient) throws Exception {
+        return run(port, clients, requestsPerClient, new long[clients * requestsPerClient]);
+    }
+
+    // Runs the load and returns the total wall-clock time in nanoseconds.
+    private static long run(int port, int clients, int requestsPerClient, long[] latencies) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int offset = c * requestsPerClient;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < requestsPerClient; i++) {
+                    long begin = System.nanoTime();
+                    get(port);
+                    latencies[offset + i] = System.nanoTime() - begin;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return elapsed;
+    }
+
+    // Sends a single GET request on a fresh connection and reads the response to the end.
+    private static void get(int port) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /weather.json HTTP/1.1\r\nHost: localhost\r\nLamport-Clock: 1\r\n\r\n".getBytes());
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1) {
+                // Drain the response.
+            }
+        }
+    }
+}
@@ -112,6 +112,45 @@ class ContentServerTest {
         assertNotNull(jsonData);
         assertTrue(jsonData.contains("\"id\": \"station1\""));
     }
+
+    @Test
+    void testWatchModeSendsChangesAndKeepAlives() throws Exception {
+        File dir = java.nio.file.Files.createTempDirectory("watch").toFile();
+        File dataFile = new File(dir, "station.txt");
+        try (FileWriter writer = new FileWriter(dataFile)) {
+            writer.write("id: watched1\nname: Watched Station\nair_temp: 10.0\n");
+        }
+
+        Thread watcher = new Thread(() -> ContentServer.main(new String[] { "localhost:4568", dataFile.getPath(), "--watch", "1" }));
+        watcher.start();
+        try {
+            waitFor(() -> AggregationServer.weatherData.containsKey("watched1"));
+
+            // Changing one field updates the stored entry and keeps the others
+            try (FileWriter writer = new FileWriter(dataFile)) {
+                writer.write("id: watched1\nname: Watched Station\nair_temp: 12.5\n");
+            }
+            waitFor(() -> "12.5".equals(AggregationServer.weatherData.get("watched1").get("air_temp").getAsString()));
+            assertEquals("Watched Station", AggregationServer.weatherData.get("watched1").get("name").getAsString());
+
+            // Keep-alives refresh the sender's contact time while the file is unchanged
+            long before = AggregationServer.serverTimestamps.get("/127.0.0.1");
+            waitFor(() -> AggregationServer.serverTimestamps.get("/127.0.0.1") > before);
+        } finally {
+            watcher.interrupt();
+            watcher.join(5_000);
+            dataFile.delete();
+            dir.delete();
+        }
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        // Helper method to wait up to 10 seconds for a condition
+        for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
     
    
 }
@@ -0,0 +1,69 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+import com.google.gson.JsonObject;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiryIndexTest {
+
+    @Test
+    void testOnlyDueGroupsExpire() {
+        ExpiryIndex index = new ExpiryIndex(100);
+        index.touch("server A", "a1", 1_000);
+        index.touch("server A", "a2", 1_050);
+        index.touch("server B", "b1", 5_000);
+
+        assertTrue(index.pollExpired(900).isEmpty()); // Nothing is due yet
+
+        Map<String, Set<String>> expired = index.pollExpired(1_200);
+        assertEquals(Set.of("server A"), expired.keySet());
+        assertEquals(Set.of("a1", "a2"), expired.get("server A"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void testContactKeepsGroupAlive() {
+        ExpiryIndex index = new ExpiryIndex(100);
+        index.touch("server A", "a1", 1_000);
+        index.touch("server A", null, 3_000); // Contact without new data
+        index.touch("server A", "a2", 2_000); // Older contact does not move the group back
+
+        assertTrue(index.pollExpired(2_500).isEmpty());
+        assertEquals(3_000L, index.getLastContact("server A"));
+        assertEquals(Set.of("a1", "a2"), index.pollExpired(3_100).get("server A"));
+    }
+
+    @Test
+    void testStoreRemovesEntriesOfSilentServers() {
+        WeatherStore store = new WeatherStore(100);
+        store.put("a1", entry("a1", "server A", 1_000));
+        store.put("a2", entry("a2", "server A", 1_000));
+        store.put("b1", entry("b1", "server B", 1_000));
+        store.put("c1", entry("c1", null, 1_000));
+        store.touch("server B", 4_000); // Server B is still sending
+
+        List<String> removed = new ArrayList<>();
+        for (WeatherStore.StoredEntry entry : store.removeExpired(3_000)) {
+            removed.add(entry.getId());
+        }
+        Collections.sort(removed);
+        assertEquals(List.of("a1", "a2", "c1"), removed);
+        assertTrue(store.containsKey("b1"));
+
+        // A station taken over by another server is not removed with its old server
+        store.put("b1", entry("b1", "server C", 6_000));
+        assertTrue(store.removeExpired(5_000).isEmpty());
+        assertTrue(store.containsKey("b1"));
+    }
+
+    private static JsonObject entry(String id, String origin, long timestamp) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("id", id);
+        if (origin != null) entry.addProperty("origin", origin);
+        entry.addProperty("timestamp", timestamp);
+        return entry;
+    }
+}
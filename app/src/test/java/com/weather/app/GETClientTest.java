@@ -81,6 +81,157 @@ class GETClientTest {
         mockServerThread.interrupt();
     }
     
+    @Test
+    void testValuesWithCommasAndColonsAreDisplayedWhole() throws Exception {
+        // A body with punctuation inside values, sent in two parts to check that the client decodes it as it arrives
+        String jsonResponse = "[{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace /  ngayirdapira)\","
+                + "\"local_date_time\":\"15/04:00pm\",\"air_temp\":13.3},"
+                + "{\"id\":\"IDS60902\",\"name\":\"Glenelg, \\\"Patawalonga\\\"\",\"rel_hum\":60}]";
+        byte[] body = jsonResponse.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        ServerSocket serverSocket = new ServerSocket(8082);
+        Thread mockServerThread = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                while (!in.readLine().isEmpty()) {
+                    // Just read the request
+                }
+                java.io.OutputStream out = socket.getOutputStream();
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length + "\r\n\r\n")
+                        .getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                out.write(body, 0, body.length / 2);
+                out.flush();
+                Thread.sleep(200);
+                out.write(body, body.length / 2, body.length - body.length / 2);
+                out.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        mockServerThread.start();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(outputStream));
+        try {
+            GETClient.main(new String[] { "localhost:8082" });
+        } finally {
+            System.setOut(originalOut);
+            serverSocket.close();
+        }
+
+        String output = outputStream.toString();
+        assertTrue(output.contains("name: Adelaide (West Terrace /  ngayirdapira)\n"));
+        assertTrue(output.contains("local_date_time: 15/04:00pm\n"));
+        assertTrue(output.contains("air_temp: 13.3\n"));
+        assertTrue(output.contains("name: Glenelg, \"Patawalonga\"\n"));
+        assertTrue(output.contains("rel_hum: 60\n"));
+        assertFalse(output.contains("Invalid weather data"));
+    }
+
+    @Test
+    void testBusyServerIsRetriedAfterRetryAfter() throws Exception {
+        // The first connection is refused with 503 and Retry-After: 1, the second gets the data
+        String jsonResponse = "[{\"id\":\"IDS60901\",\"air_temp\":13.3}]";
+        long[] answeredAt = new long[2];
+        ServerSocket serverSocket = new ServerSocket(8084);
+        Thread mockServerThread = new Thread(() -> {
+            try {
+                for (int i = 0; i < 2; i++) {
+                    try (Socket socket = serverSocket.accept()) {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                        while (!in.readLine().isEmpty()) {
+                            // Just read the request
+                        }
+                        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                        answeredAt[i] = System.currentTimeMillis();
+                        if (i == 0) {
+                            out.print("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+                        } else {
+                            out.print("HTTP/1.1 200 OK\r\nContent-Length: " + jsonResponse.length() + "\r\n\r\n" + jsonResponse);
+                        }
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        mockServerThread.start();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(outputStream));
+        try {
+            GETClient.main(new String[] { "localhost:8084" });
+        } finally {
+            System.setOut(originalOut);
+            serverSocket.close();
+        }
+
+        String output = outputStream.toString();
+        assertTrue(output.contains("Server is busy"));
+        assertTrue(output.contains("air_temp: 13.3"));
+        assertTrue(answeredAt[1] - answeredAt[0] >= 900, "Retried after " + (answeredAt[1] - answeredAt[0]) + " ms");
+    }
+
+    @Test
+    void testPollingUsesConditionalRequestsAndShowsOnlyChanges() throws Exception {
+        // Responses for four polls on one keep-alive connection: initial data, unchanged, one station changed, one removed
+        String[] bodies = {
+                "[{\"id\":\"A\",\"air_temp\":10.5},{\"id\":\"B\",\"air_temp\":20.5}]",
+                null,
+                "[{\"id\":\"A\",\"air_temp\":10.5},{\"id\":\"B\",\"air_temp\":21.0}]",
+                "[{\"id\":\"B\",\"air_temp\":21.0}]"
+        };
+        java.util.List<String> conditions = new java.util.ArrayList<>();
+        ServerSocket serverSocket = new ServerSocket(8083);
+        Thread mockServerThread = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                java.io.OutputStream out = socket.getOutputStream();
+                for (int i = 0; i < bodies.length; i++) {
+                    String line;
+                    String condition = "";
+                    while (!(line = in.readLine()).isEmpty()) {
+                        if (line.startsWith("If-None-Match:")) condition = line.substring(14).trim();
+                    }
+                    conditions.add(condition);
+                    String response = bodies[i] == null
+                            ? "HTTP/1.1 304 Not Modified\r\nConnection: keep-alive\r\nETag: \"v1\"\r\n\r\n"
+                            : "HTTP/1.1 200 OK\r\nConnection: keep-alive\r\nETag: \"v" + i + "\"\r\nContent-Length: "
+                                    + bodies[i].length() + "\r\n\r\n" + bodies[i];
+                    out.write(response.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        mockServerThread.start();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(outputStream, true));
+        Thread client = new Thread(() -> GETClient.main(new String[] { "localhost:8083", "--poll", "0" }));
+        try {
+            client.start();
+            mockServerThread.join(5_000);
+            client.interrupt();
+            client.join(5_000);
+        } finally {
+            System.setOut(originalOut);
+            serverSocket.close();
+        }
+
+        assertEquals(java.util.List.of("", "\"v0\"", "\"v0\"", "\"v2\""), conditions);
+        String output = outputStream.toString();
+        assertEquals(1, output.split("id: A\n", -1).length - 1); // Shown once, not again while unchanged
+        assertTrue(output.contains("air_temp: 20.5\n"));
+        assertTrue(output.contains("air_temp: 21.0\n"));
+        assertTrue(output.contains("Removed: A\n"));
+        assertFalse(client.isAlive());
+    }
+
     @Test
     void testInvalidServerResponse() throws IOException {
         // Setup a local server to return an invalid response
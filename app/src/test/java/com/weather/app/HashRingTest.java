@@ -0,0 +1,61 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashRingTest {
+
+    private static final int STATIONS = 20_000;
+
+    @Test
+    void testStationsAreSpreadEvenly() {
+        HashRing ring = new HashRing(List.of("node1:4567", "node2:4567", "node3:4567", "node4:4567"), HashRing.DEFAULT_VIRTUAL_NODES);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < STATIONS; i++) {
+            counts.merge(ring.nodeFor("IDS" + i), 1, Integer::sum);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue(Math.abs(count - STATIONS / 4) < STATIONS / 4 * 0.2, "Unbalanced ring: " + counts); // Within 20% of a fair share
+        }
+    }
+
+    @Test
+    void testAddingANodeMovesAboutOneNthOfTheStations() {
+        HashRing ring = new HashRing(List.of("node1:4567", "node2:4567", "node3:4567", "node4:4567"), HashRing.DEFAULT_VIRTUAL_NODES);
+        Map<String, String> before = new HashMap<>();
+        for (int i = 0; i < STATIONS; i++) {
+            before.put("IDS" + i, ring.nodeFor("IDS" + i));
+        }
+
+        ring.addNode("node5:4567");
+        int moved = 0;
+        for (Map.Entry<String, String> station : before.entrySet()) {
+            String owner = ring.nodeFor(station.getKey());
+            if (!owner.equals(station.getValue())) {
+                assertEquals("node5:4567", owner); // Stations only move to the new node
+                moved++;
+            }
+        }
+        assertTrue(Math.abs(moved - STATIONS / 5) < STATIONS / 5 * 0.2, "Moved " + moved + " of " + STATIONS);
+
+        // Removing the node again restores the old assignment
+        ring.removeNode("node5:4567");
+        for (Map.Entry<String, String> station : before.entrySet()) {
+            assertEquals(station.getValue(), ring.nodeFor(station.getKey()));
+        }
+    }
+
+    @Test
+    void testAssignmentDoesNotDependOnNodeOrder() {
+        HashRing ring = new HashRing(List.of("a:1", "b:2", "c:3"), 50);
+        HashRing reversed = new HashRing(List.of("c:3", "b:2", "a:1"), 50);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.nodeFor("station" + i), reversed.nodeFor("station" + i));
+        }
+        assertNull(new HashRing(List.of(), 50).nodeFor("station"));
+    }
+}
@@ -0,0 +1,83 @@
+package com.weather.app;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Compares the throughput of the lock-free LamportClock with the previous synchronized version
+// under contention. Each simulated request merges a client clock, ticks for the handler and
+// reads the value for the response header. Run after mvn test-compile with:
+//   java -cp target/classes:target/test-classes com.weather.app.LamportClockBenchmark [threads] [seconds]
+public class LamportClockBenchmark {
+
+    // The synchronized int clock the server used before, kept here as the baseline.
+    static class SynchronizedLamportClock {
+        private int clock;
+
+        public synchronized void tick() {
+            clock++;
+        }
+
+        public synchronized void update(int receivedClock) {
+            clock = Math.max(clock, receivedClock);
+            clock++;
+        }
+
+        public synchronized int getClock() {
+            return clock;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+
+        System.out.printf("%-8s %22s %22s %22s%n", "threads", "synchronized (req/s)", "atomic 3 ops (req/s)", "updateAndTick (req/s)");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            SynchronizedLamportClock locked = new SynchronizedLamportClock();
+            LamportClock atomic = new LamportClock();
+            LamportClock fused = new LamportClock();
+            double lockedRate = run(threads, seconds, () -> {
+                locked.update(ThreadLocalRandom.current().nextInt(1_000));
+                locked.tick();
+                return (long) locked.getClock();
+            });
+            double atomicRate = run(threads, seconds, () -> {
+                atomic.update(ThreadLocalRandom.current().nextInt(1_000));
+                atomic.tick();
+                return atomic.getClock();
+            });
+            double fusedRate = run(threads, seconds, () -> fused.updateAndTick(ThreadLocalRandom.current().nextInt(1_000)));
+            System.out.printf("%-8d %22.0f %22.0f %22.0f%n", threads, lockedRate, atomicRate, fusedRate);
+        }
+    }
+
+    // Runs the request on the given number of threads and returns requests per second.
+    private static double run(int threads, double seconds, Callable<Long> request) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        LongAdder completed = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long runNanos = (long) (seconds * 1_000_000_000L);
+        long[] sink = new long[threads];
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            pool.execute(() -> {
+                try {
+                    start.await();
+                    long deadline = System.nanoTime() + runNanos;
+                    long count = 0;
+                    while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                        sink[index] += request.call();
+                        count++;
+                    }
+                    completed.add(count);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        return completed.sum() / seconds;
+    }
+}
@@ -32,4 +32,35 @@ class LamportClockTest {
         clock.update(1);
         assertEquals(4, clock.getClock()); // Clock shouldn't decrease
     }
+
+    @Test
+    void testUpdateAndTickMatchesUpdateThenTick() {
+        LamportClock separate = new LamportClock();
+        separate.update(7);
+        separate.tick();
+        LamportClock fused = new LamportClock();
+        assertEquals(separate.getClock(), fused.updateAndTick(7));
+        assertEquals(1, new LamportClock().tickAndGet());
+    }
+
+    @Test
+    void testClockDoesNotOverflowInt() {
+        LamportClock clock = new LamportClock();
+        clock.update(Integer.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE + 1L, clock.getClock());
+    }
+
+    @Test
+    void testConcurrentTicksAreNotLost() throws InterruptedException {
+        LamportClock clock = new LamportClock();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10_000; j++) clock.tickAndGet();
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(80_000, clock.getClock());
+    }
 }
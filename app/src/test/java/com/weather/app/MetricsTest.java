@@ -0,0 +1,51 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+
+    @Test
+    void testHistogramBucketsAreCumulative() {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram histogram = metrics.histogram("test_seconds", "Test latency.", "phase=\"a\"");
+        histogram.record(5_000); // 5 us
+        histogram.record(300_000); // 0.3 ms
+        histogram.record(300_000);
+        histogram.record(20_000_000_000L); // 20 s, beyond the last bound
+
+        assertEquals(4, histogram.getCount());
+        assertEquals(1, histogram.getCountAtMost(0.00001));
+        assertEquals(3, histogram.getCountAtMost(0.0005));
+
+        String text = metrics.render();
+        assertTrue(text.contains("# HELP test_seconds Test latency.\n# TYPE test_seconds histogram\n"));
+        assertTrue(text.contains("test_seconds_bucket{phase=\"a\",le=\"0.00001\"} 1\n"));
+        assertTrue(text.contains("test_seconds_bucket{phase=\"a\",le=\"0.0005\"} 3\n"));
+        assertTrue(text.contains("test_seconds_bucket{phase=\"a\",le=\"10\"} 3\n"));
+        assertTrue(text.contains("test_seconds_bucket{phase=\"a\",le=\"+Inf\"} 4\n"));
+        assertTrue(text.contains("test_seconds_sum{phase=\"a\"} 20.000605\n"));
+        assertTrue(text.contains("test_seconds_count{phase=\"a\"} 4\n"));
+    }
+
+    @Test
+    void testCountersAndGaugesShareOneHeaderPerName() {
+        Metrics metrics = new Metrics();
+        LongAdder requests = metrics.counter("test_total", "Requests.", "lane=\"read\"");
+        assertSame(requests, metrics.counter("test_total", "Requests.", "lane=\"read\""));
+        metrics.counter("test_total", "Requests.", "lane=\"write\"").add(2);
+        requests.increment();
+        metrics.gauge("test_size", "Size.", "", () -> 1.5);
+
+        String text = metrics.render();
+        assertEquals(text.indexOf("# TYPE test_total"), text.lastIndexOf("# TYPE test_total"));
+        assertTrue(text.contains("test_total{lane=\"read\"} 1\ntest_total{lane=\"write\"} 2\n"));
+        assertTrue(text.contains("# TYPE test_size gauge\ntest_size 1.5\n"));
+
+        // A name cannot change its type
+        assertThrows(IllegalArgumentException.class, () -> metrics.gauge("test_total", "Requests.", "", () -> 0));
+    }
+}
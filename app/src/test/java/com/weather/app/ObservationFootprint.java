@@ -0,0 +1,79 @@
+package com.weather.app;
+
+import com.google.gson.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Measures the heap used by 100k stations held as Gson JsonObjects (as the server stored them
+// before) and as Observations in a WeatherStore. Run after mvn test-compile with:
+//   java -cp target/classes:target/test-classes:<gson.jar> com.weather.app.ObservationFootprint [stations]
+public class ObservationFootprint {
+    private static final String[] STATES = { "SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT" };
+    private static final String[] ZONES = { "CST", "EST", "WST" };
+    private static final String[] CLOUDS = { "Sunny", "Partly cloudy", "Cloudy", "Showers" };
+    private static final String[] DIRECTIONS = { "N", "NE", "E", "SE", "S", "SW", "W", "NW" };
+
+    public static void main(String[] args) {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+
+        long before = usedHeap();
+        Map<String, JsonObject> json = new ConcurrentHashMap<>();
+        for (int i = 0; i < stations; i++) {
+            JsonObject station = station(i);
+            json.put(station.get("id").getAsString(), station);
+        }
+        long jsonBytes = usedHeap() - before;
+        System.out.println("JsonObject map:       " + jsonBytes / stations + " bytes/station, "
+                + jsonBytes / (1024 * 1024) + " MiB per " + stations);
+
+        Map<String, JsonObject> kept = json; // Keep the first map alive until measured, then drop it.
+        json = null;
+        kept.clear();
+
+        before = usedHeap();
+        WeatherStore store = new WeatherStore();
+        for (int i = 0; i < stations; i++) {
+            JsonObject station = station(i);
+            store.put(station.get("id").getAsString(), station);
+        }
+        long storeBytes = usedHeap() - before;
+        System.out.println("Observation store:    " + storeBytes / stations + " bytes/station, "
+                + storeBytes / (1024 * 1024) + " MiB per " + stations);
+        System.out.println(store.size() + " stations kept");
+    }
+
+    // Builds a station the way a PUT stores it: string values from the ContentServer plus origin and timestamp.
+    private static JsonObject station(int i) {
+        Random random = new Random(i);
+        JsonObject station = new JsonObject();
+        station.addProperty("id", "IDS" + (10000 + i));
+        station.addProperty("name", "Station " + i);
+        station.addProperty("state", STATES[i % STATES.length]);
+        station.addProperty("time_zone", ZONES[i % ZONES.length]);
+        station.addProperty("lat", String.valueOf(Math.round(random.nextDouble() * -400) / 10.0));
+        station.addProperty("lon", String.valueOf(Math.round(random.nextDouble() * 1500) / 10.0));
+        station.addProperty("local_date_time", "15/04:00pm");
+        station.addProperty("local_date_time_full", "20230715160000");
+        station.addProperty("air_temp", String.valueOf(Math.round(random.nextDouble() * 400) / 10.0));
+        station.addProperty("apparent_t", String.valueOf(Math.round(random.nextDouble() * 400) / 10.0));
+        station.addProperty("cloud", CLOUDS[i % CLOUDS.length]);
+        station.addProperty("dewpt", String.valueOf(Math.round(random.nextDouble() * 200) / 10.0));
+        station.addProperty("press", String.valueOf(Math.round(9800 + random.nextDouble() * 600) / 10.0));
+        station.addProperty("rel_hum", String.valueOf(random.nextInt(100)));
+        station.addProperty("wind_dir", DIRECTIONS[i % DIRECTIONS.length]);
+        station.addProperty("wind_spd_kmh", String.valueOf(random.nextInt(60)));
+        station.addProperty("wind_spd_kt", String.valueOf(random.nextInt(30)));
+        station.addProperty("origin", "/10.0.0." + (i % 16));
+        station.addProperty("timestamp", System.currentTimeMillis());
+        return station;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
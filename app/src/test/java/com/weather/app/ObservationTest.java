@@ -0,0 +1,52 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+import com.google.gson.*;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ObservationTest {
+
+    private static final String ADELAIDE = "{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace /  ngayirdapira)\","
+            + "\"state\":\"SA\",\"time_zone\":\"CST\",\"lat\":\"-34.9\",\"lon\":\"138.6\",\"local_date_time\":\"15/04:00pm\","
+            + "\"local_date_time_full\":\"20230715160000\",\"air_temp\":\"13.3\",\"apparent_t\":\"9.5\",\"cloud\":\"Partly cloudy\","
+            + "\"dewpt\":\"5.7\",\"press\":\"1023.9\",\"rel_hum\":\"60\",\"wind_dir\":\"S\",\"wind_spd_kmh\":\"15\","
+            + "\"wind_spd_kt\":\"8\",\"origin\":\"/127.0.0.1\",\"timestamp\":1728018709849}";
+
+    @Test
+    void testKnownSchemaRoundTripsExactly() {
+        JsonObject json = JsonParser.parseString(ADELAIDE).getAsJsonObject();
+        Observation observation = Observation.of(json);
+        assertEquals(json, observation.toJson());
+        assertEquals(ADELAIDE, new String(observation.encode(), StandardCharsets.UTF_8)); // Same order, same quoting
+        assertEquals("IDS60901", observation.getId());
+    }
+
+    @Test
+    void testValuesThatWouldChangeAreKeptAsReceived() {
+        // Non-canonical numbers, wrong types and unknown keys all go to the overflow map
+        String text = "{\"id\":\"x\",\"air_temp\":\"13.30\",\"press\":1e3,\"rel_hum\":\"60.5\",\"lat\":-0.0,"
+                + "\"wind_spd_kmh\":15,\"dewpt\":\"7\",\"state\":12,\"uv_index\":[1,2],\"cloud\":null,\"flag\":true}";
+        JsonObject json = JsonParser.parseString(text).getAsJsonObject();
+        Observation observation = Observation.of(json);
+        JsonObject rebuilt = observation.toJson();
+        assertEquals(json, rebuilt);
+        for (String key : json.keySet()) {
+            assertEquals(json.get(key).toString(), rebuilt.get(key).toString(), key);
+        }
+        assertEquals(rebuilt.toString(), new String(observation.encode(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testStoreReturnsEqualCopies() {
+        WeatherStore store = new WeatherStore();
+        JsonObject json = JsonParser.parseString(ADELAIDE).getAsJsonObject();
+        store.put("IDS60901", json);
+        JsonObject read = store.get("IDS60901");
+        assertEquals(json, read);
+        read.addProperty("air_temp", "99.9"); // Changing the copy does not change the store
+        assertEquals("13.3", store.get("IDS60901").get("air_temp").getAsString());
+    }
+}
@@ -0,0 +1,261 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.*;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistenceWriterTest {
+
+    private File dataFile;
+    private File tempFile;
+    private File walFile;
+
+    @BeforeEach
+    void createFiles() throws Exception {
+        dataFile = File.createTempFile("weather", ".json");
+        dataFile.delete(); // Start without a snapshot
+        tempFile = new File(dataFile.getPath() + ".tmp");
+        walFile = new File(PersistenceWriter.walFileFor(dataFile.getPath()));
+    }
+
+    @AfterEach
+    void deleteFiles() {
+        dataFile.delete();
+        tempFile.delete();
+        walFile.delete();
+        new File(walFile.getPath() + ".old").delete();
+    }
+
+    private static JsonObject entry(String id) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("id", id);
+        entry.addProperty("timestamp", System.currentTimeMillis());
+        return entry;
+    }
+
+    private PersistenceWriter newWriter(WeatherStore data, long delay, long compactBytes) {
+        return new PersistenceWriter(data, dataFile.getPath(), false, tempFile.getPath(), walFile.getPath(), delay, compactBytes, 60_000);
+    }
+
+    @Test
+    void testConcurrentCommitsAreGrouped() throws Exception {
+        WeatherStore data = new WeatherStore();
+        try (PersistenceWriter writer = newWriter(data, 50, Long.MAX_VALUE)) {
+            // Many writers apply their update and then wait for a commit at the same time
+            int writers = 20;
+            ExecutorService pool = Executors.newFixedThreadPool(writers);
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                String id = "station" + i;
+                results.add(pool.submit(() -> {
+                    JsonObject entry = entry(id);
+                    data.put(id, entry);
+                    return writer.commitPut(entry);
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get()); // Every update is acknowledged as durable
+            }
+            pool.shutdown();
+
+            // Far fewer log commits than requests were written
+            assertTrue(writer.getCommitCount() < writers);
+
+            // The log holds every update
+            String content = new String(Files.readAllBytes(walFile.toPath()));
+            for (int i = 0; i < writers; i++) {
+                assertTrue(content.contains("\"station" + i + "\""));
+            }
+        }
+    }
+
+    @Test
+    void testRecoverReplaysSnapshotAndLog() throws Exception {
+        WeatherStore data = new WeatherStore();
+        try (PersistenceWriter writer = newWriter(data, 0, Long.MAX_VALUE)) {
+            data.put("a", entry("a"));
+            assertTrue(writer.commitPut(data.get("a")));
+            data.put("b", entry("b"));
+            assertTrue(writer.commitPut(data.get("b")));
+            data.remove("a");
+            writer.logExpire("a");
+            assertTrue(writer.commit());
+        }
+        // Simulate a crash in the middle of an append
+        Files.write(walFile.toPath(), "{\"op\":\"put\",\"entry\":{\"id\":".getBytes(), java.nio.file.StandardOpenOption.APPEND);
+
+        WeatherStore recovered = new WeatherStore();
+        try (PersistenceWriter writer = newWriter(recovered, 0, Long.MAX_VALUE)) {
+            assertEquals(3, writer.recover());
+        }
+        assertEquals(Set.of("b"), recovered.keySet());
+    }
+
+    @Test
+    void testTornRecordIsCutOffBeforeNewCommits() throws Exception {
+        try (PersistenceWriter writer = newWriter(new WeatherStore(), 0, Long.MAX_VALUE)) {
+            assertTrue(writer.commitPut(entry("a")));
+        }
+        Files.write(walFile.toPath(), "{\"op\":\"put\",\"entry\":{\"id\":".getBytes(), java.nio.file.StandardOpenOption.APPEND);
+
+        // A commit made after recovering must not end up behind the torn record
+        try (PersistenceWriter writer = newWriter(new WeatherStore(), 0, Long.MAX_VALUE)) {
+            assertEquals(1, writer.recover());
+            assertTrue(writer.commitPut(entry("b")));
+        }
+        WeatherStore recovered = new WeatherStore();
+        try (PersistenceWriter writer = newWriter(recovered, 0, Long.MAX_VALUE)) {
+            assertEquals(2, writer.recover());
+        }
+        assertEquals(Set.of("a", "b"), recovered.keySet());
+    }
+
+    @Test
+    void testBatchIsRecoveredWholeOrNotAtAll() throws Exception {
+        WeatherStore data = new WeatherStore();
+        try (PersistenceWriter writer = newWriter(data, 0, Long.MAX_VALUE)) {
+            assertTrue(writer.commitPuts(List.of(entry("a"), entry("b"))));
+        }
+        // A batch torn by a crash is dropped entirely
+        Files.write(walFile.toPath(), "{\"op\":\"batch\",\"entries\":[{\"id\":\"c\"},{\"id\":".getBytes(), java.nio.file.StandardOpenOption.APPEND);
+
+        WeatherStore recovered = new WeatherStore();
+        try (PersistenceWriter writer = newWriter(recovered, 0, Long.MAX_VALUE)) {
+            assertEquals(1, writer.recover());
+        }
+        assertEquals(Set.of("a", "b"), recovered.keySet());
+    }
+
+    @Test
+    void testCompactionWritesSnapshotAndEmptiesLog() throws Exception {
+        WeatherStore data = new WeatherStore();
+        try (PersistenceWriter writer = newWriter(data, 0, 1)) { // Compact after every commit
+            data.put("a", entry("a"));
+            assertTrue(writer.commitPut(data.get("a")));
+            // Compaction starts right after the commit and runs on the compactor thread
+            for (int i = 0; i < 50 && writer.getCompactionCount() == 0; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, writer.getCompactionCount());
+            assertEquals(0, walFile.length());
+            assertFalse(new File(walFile.getPath() + ".old").exists()); // The compacted segment is gone
+            assertTrue(new String(Files.readAllBytes(dataFile.toPath())).contains("\"a\""));
+        }
+
+        WeatherStore recovered = new WeatherStore();
+        try (PersistenceWriter writer = newWriter(recovered, 0, Long.MAX_VALUE)) {
+            assertEquals(0, writer.recover());
+        }
+        assertTrue(recovered.containsKey("a"));
+    }
+
+    @Test
+    void testBinaryCompactionWritesNewGeneration() throws Exception {
+        File first = new File(PersistenceWriter.generationFile(dataFile.getPath(), 1));
+        File second = new File(PersistenceWriter.generationFile(dataFile.getPath(), 2));
+        try {
+            WeatherStore data = new WeatherStore();
+            try (PersistenceWriter writer = newBinaryWriter(data, 1)) {
+                data.put("a", entry("a"));
+                assertTrue(writer.commitPut(data.get("a")));
+                awaitCompaction(writer);
+            }
+            assertTrue(first.exists());
+
+            // The recovered store keeps the first generation mapped while the next one is written
+            WeatherStore recovered = new WeatherStore();
+            try (PersistenceWriter writer = newBinaryWriter(recovered, 1)) {
+                assertEquals(0, writer.recover());
+                JsonObject large = entry("b");
+                large.addProperty("notes", "x".repeat(2_000)); // The log must outgrow the snapshot
+                recovered.put("b", large);
+                assertTrue(writer.commitPut(recovered.get("b")));
+                awaitCompaction(writer);
+            }
+            assertTrue(second.exists());
+            assertFalse(first.exists()); // Older generations are removed once the log is emptied
+
+            WeatherStore reloaded = new WeatherStore();
+            try (PersistenceWriter writer = newBinaryWriter(reloaded, Long.MAX_VALUE)) {
+                assertTrue(writer.hasPersistedData());
+                writer.recover();
+            }
+            assertEquals(Set.of("a", "b"), reloaded.keySet());
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
+    private PersistenceWriter newBinaryWriter(WeatherStore data, long compactBytes) {
+        return new PersistenceWriter(data, dataFile.getPath(), true, tempFile.getPath(), walFile.getPath(), 0, compactBytes, 60_000);
+    }
+
+    private static void awaitCompaction(PersistenceWriter writer) throws InterruptedException {
+        for (int i = 0; i < 50 && writer.getCompactionCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, writer.getCompactionCount());
+    }
+
+    @Test
+    void testCompactionWaitsForTheLogToOutgrowTheSnapshot() throws Exception {
+        List<JsonObject> entries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            entries.add(entry("s" + i));
+        }
+        WeatherStore data = new WeatherStore();
+        try (PersistenceWriter writer = newWriter(data, 0, 1)) {
+            entries.forEach(entry -> data.put(entry.get("id").getAsString(), entry));
+            assertTrue(writer.commitPuts(entries));
+            awaitCompaction(writer);
+        }
+
+        WeatherStore recovered = new WeatherStore();
+        try (PersistenceWriter writer = newWriter(recovered, 0, 1)) {
+            writer.recover();
+            recovered.put("s0", entry("s0"));
+            assertTrue(writer.commitPut(recovered.get("s0")));
+            Thread.sleep(100);
+            assertEquals(0, writer.getCompactionCount()); // A small log is not worth rewriting the snapshot for
+
+            entries.forEach(entry -> recovered.put(entry.get("id").getAsString(), entry));
+            assertTrue(writer.commitPuts(entries));
+            awaitCompaction(writer);
+        }
+    }
+
+    @Test
+    void testFailedCompactionIsRetriedWithBackoff() throws Exception {
+        // A non-empty directory where the snapshot belongs cannot be replaced
+        assertTrue(dataFile.mkdir());
+        File blocker = new File(dataFile, "blocker");
+        assertTrue(blocker.createNewFile());
+        WeatherStore data = new WeatherStore();
+        try (PersistenceWriter writer = newWriter(data, 0, 1)) { // Compact after every commit
+            for (int i = 0; i < 5; i++) {
+                data.put("s" + i, entry("s" + i));
+                assertTrue(writer.commitPut(data.get("s" + i))); // Commits still succeed
+            }
+            Thread.sleep(100);
+            assertEquals(1, writer.getFailedCompactionCount()); // Not retried on every commit
+            assertEquals(0, writer.getCompactionCount());
+            assertTrue(new String(Files.readAllBytes(walFile.toPath())).contains("\"s4\"")); // The log is kept
+        } finally {
+            blocker.delete();
+        }
+    }
+
+    @Test
+    void testCommitAfterCloseFails() {
+        PersistenceWriter writer = newWriter(new WeatherStore(), 0, Long.MAX_VALUE);
+        writer.close();
+        assertFalse(writer.commitPut(entry("a")));
+    }
+}
@@ -0,0 +1,140 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationFollowerTest {
+
+    private static Thread serverThread;
+
+    @BeforeAll
+    static void startServer() {
+        serverThread = new Thread(() -> {
+            try {
+                AggregationServer.main(new String[] { "4568" }); // The primary listens on port 4568
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serverThread.start();
+
+        // Give the server time to start
+        try {
+            Thread.sleep(2000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    void testFollowerReceivesPutsAndExpiries() throws Exception {
+        WeatherStore replica = new WeatherStore();
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        sendRequest("PUT", "{ \"id\": \"repl-before\", \"air_temp\": \"9.0\" }");
+
+        try (ReplicationFollower follower = new ReplicationFollower("localhost", 4568, replica, new LamportClock(),
+                (id, value) -> applied.add(id), 100)) {
+            follower.start();
+
+            // Data stored before the follower started arrives through the catch-up
+            waitFor(() -> replica.containsKey("repl-before") && follower.isStreaming());
+
+            // New PUTs are streamed
+            assertTrue(sendRequest("PUT", "{ \"id\": \"repl1\", \"air_temp\": \"21.5\" }").contains(" 20"));
+            waitFor(() -> replica.containsKey("repl1"));
+            assertEquals("21.5", replica.get("repl1").get("air_temp").getAsString());
+            assertTrue(applied.contains("repl1"));
+
+            // An expiry on the primary removes the station on the follower too
+            JsonObject stale = AggregationServer.weatherData.get("repl1");
+            stale.remove("origin");
+            stale.addProperty("timestamp", 0);
+            AggregationServer.weatherData.put("repl1", stale);
+            AggregationServer.cleanExpiredData();
+            waitFor(() -> !replica.containsKey("repl1"));
+            assertTrue(follower.getLastPrimaryClock() > 0);
+        }
+    }
+
+    @Test
+    void testFullSnapshotReplacesLocalData() {
+        WeatherStore replica = new WeatherStore();
+        JsonObject old = new JsonObject();
+        old.addProperty("id", "gone");
+        replica.put("gone", old);
+        List<String> removed = new ArrayList<>();
+        ReplicationFollower follower = new ReplicationFollower("localhost", 4568, replica, new LamportClock(),
+                (id, value) -> { if (value == null) removed.add(id); }, 100);
+
+        follower.apply(JsonParser.parseString("{\"epoch\":5,\"clock\":40,\"full\":true,"
+                + "\"updated\":[{\"id\":\"kept\",\"air_temp\":\"3.0\"}],\"removed\":[]}").getAsJsonObject());
+        assertTrue(replica.containsKey("kept"));
+        assertFalse(replica.containsKey("gone"));
+        assertEquals(List.of("gone"), removed);
+        assertEquals(40, follower.getLastPrimaryClock());
+    }
+
+    @Test
+    void testBackupRefusesWritesUntilPromoted() throws Exception {
+        AggregationServer.startFollowing("localhost:1"); // A primary that is not running
+        try {
+            String refused = sendRequest("PUT", "{ \"id\": \"repl-backup\", \"air_temp\": \"5.0\" }");
+            assertTrue(refused.startsWith("HTTP/1.1 503"), refused);
+            assertTrue(refused.contains("Primary: localhost:1"));
+            assertFalse(AggregationServer.weatherData.containsKey("repl-backup"));
+
+            // Replicated data whose content server has only sent keep-alives (to the old primary)
+            // since its last PUT 35 seconds ago
+            JsonObject quiet = new JsonObject();
+            quiet.addProperty("id", "repl-quiet");
+            quiet.addProperty("origin", "/10.5.5.5");
+            quiet.addProperty("timestamp", System.currentTimeMillis() - 35_000);
+            AggregationServer.weatherData.put("repl-quiet", quiet);
+        } finally {
+            assertTrue(sendRequest("POST /promote", null).startsWith("HTTP/1.1 200"));
+        }
+        AggregationServer.cleanExpiredData();
+        assertTrue(AggregationServer.weatherData.containsKey("repl-quiet")); // Kept for one expiry window after promotion
+        assertTrue(sendRequest("PUT", "{ \"id\": \"repl-backup\", \"air_temp\": \"5.0\" }").contains(" 20"));
+        assertTrue(AggregationServer.weatherData.containsKey("repl-backup"));
+        assertTrue(sendRequest("POST /promote", null).startsWith("HTTP/1.1 409")); // Already the primary
+    }
+
+    private static String sendRequest(String method, String json) throws IOException {
+        // Helper method to send a PUT (with json) or a bodyless request and return the whole response
+        try (Socket socket = new Socket("localhost", 4568)) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            if (json != null) {
+                out.print(method + " /weather.json HTTP/1.1\r\nContent-Type: application/json\r\nContent-Length: "
+                        + json.length() + "\r\nLamport-Clock: 1\r\n\r\n" + json);
+            } else {
+                out.print(method + " HTTP/1.1\r\nLamport-Clock: 1\r\n\r\n");
+            }
+            out.flush();
+
+            StringBuilder response = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                response.append(line).append("\n");
+            }
+            return response.toString();
+        }
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        // Helper method to wait up to 10 seconds for a condition
+        for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,75 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestLanesTest {
+
+    @Test
+    void testBlockedWritesDoNotDelayReads() throws Exception {
+        RequestLanes lanes = new RequestLanes(2, 4, 1, 1);
+        ExecutorService clients = Executors.newFixedThreadPool(2);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            assertSame(lanes.getReadLane(), lanes.laneFor("GET"));
+            assertSame(lanes.getWriteLane(), lanes.laneFor("PUT"));
+            assertSame(lanes.getWriteLane(), lanes.laneFor("PATCH"));
+
+            // One write occupies the only write thread and a second one waits in its queue
+            Future<String> first = clients.submit(() -> lanes.run(lanes.getWriteLane(), () -> {
+                release.await();
+                return "first";
+            }));
+            waitFor(() -> lanes.getWriteLane().getActiveCount() == 1);
+            Future<String> second = clients.submit(() -> lanes.run(lanes.getWriteLane(), () -> "second"));
+            waitFor(() -> lanes.getWriteLane().getQueueDepth() == 1);
+
+            // A third write is turned away, but reads still run straight away
+            assertNull(lanes.run(lanes.getWriteLane(), () -> "third"));
+            assertEquals(1, lanes.getWriteLane().getRejectedCount());
+            long start = System.nanoTime();
+            assertEquals("read", lanes.run(lanes.getReadLane(), () -> "read"));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+            release.countDown();
+            assertEquals("first", first.get(5, TimeUnit.SECONDS));
+            assertEquals("second", second.get(5, TimeUnit.SECONDS));
+            assertEquals(2, lanes.getWriteLane().getCompletedCount());
+            assertEquals(1, lanes.getWriteLane().getMaxQueueDepth());
+            assertTrue(lanes.getWriteLane().getMaxWaitMillis() > 0); // The second write waited for the first
+            assertEquals(1, lanes.getReadLane().getCompletedCount());
+        } finally {
+            release.countDown();
+            clients.shutdown();
+            lanes.close();
+        }
+    }
+
+    @Test
+    void testTaskExceptionsAreRethrown() {
+        RequestLanes lanes = new RequestLanes(1, 1, 1, 1);
+        try {
+            IOException error = assertThrows(IOException.class, () -> lanes.run(lanes.getReadLane(), () -> {
+                throw new IOException("closed");
+            }));
+            assertEquals("closed", error.getMessage());
+            assertThrows(IllegalStateException.class, () -> lanes.run(lanes.getWriteLane(), () -> {
+                throw new IllegalStateException();
+            }));
+        } finally {
+            lanes.close();
+        }
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        // Helper method to wait up to 10 seconds for a condition
+        for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,53 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheTest {
+
+    @Test
+    void testBodyIsReusedUntilStoreChanges() {
+        WeatherStore store = new WeatherStore();
+        ResponseCache cache = new ResponseCache();
+        AtomicInteger encodings = new AtomicInteger();
+
+        JsonObject entry = new JsonObject();
+        entry.addProperty("id", "a");
+        store.put("a", entry);
+
+        long version = store.getVersion();
+        byte[] first = cache.get("pretty", version, () -> { encodings.incrementAndGet(); return new byte[] { 1 }; }).body;
+        byte[] second = cache.get("pretty", store.getVersion(), () -> { encodings.incrementAndGet(); return new byte[] { 2 }; }).body;
+        assertSame(first, second);
+        assertEquals(1, encodings.get());
+
+        // Removing an entry bumps the version and forces a new encoding
+        store.remove("a");
+        assertTrue(store.getVersion() > version);
+        cache.get("pretty", store.getVersion(), () -> { encodings.incrementAndGet(); return new byte[] { 3 }; });
+        assertEquals(2, encodings.get());
+    }
+
+    @Test
+    void testVariantsAreCachedSeparately() {
+        ResponseCache cache = new ResponseCache();
+        byte[] pretty = cache.get("pretty", 1, () -> new byte[] { 1 }).body;
+        byte[] gzip = cache.get("pretty+gzip", 1, () -> new byte[] { 2 }).body;
+        assertNotSame(pretty, gzip);
+        assertSame(pretty, cache.get("pretty", 1, () -> new byte[] { 3 }).body);
+        assertNotEquals(ResponseCache.etag(1, "pretty"), ResponseCache.etag(1, "pretty+gzip"));
+    }
+
+    @Test
+    void testRemovingMissingEntryKeepsVersion() {
+        WeatherStore store = new WeatherStore();
+        long version = store.getVersion();
+        store.remove("missing");
+        assertEquals(version, store.getVersion());
+        assertEquals("\"" + version + "\"", ResponseCache.etag(version));
+    }
+}
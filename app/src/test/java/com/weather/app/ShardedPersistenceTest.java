@@ -0,0 +1,100 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.*;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedPersistenceTest {
+
+    private File directory;
+
+    @BeforeEach
+    void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("weather-shards").toFile();
+    }
+
+    @AfterEach
+    void deleteDirectory() {
+        for (File file : Objects.requireNonNull(directory.listFiles())) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static JsonObject entry(String id) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("id", id);
+        entry.addProperty("timestamp", System.currentTimeMillis());
+        return entry;
+    }
+
+    private ShardedPersistence newPersistence(WeatherStore data, long compactBytes) {
+        return new ShardedPersistence(data, "weatherData.json", false, "weatherData.commit.tmp", "weatherData.wal",
+                List.of(directory.getPath()), 1, compactBytes, 60_000);
+    }
+
+    @Test
+    void testShardFileNames() {
+        assertEquals("weatherData.json", ShardedPersistence.shardFile("weatherData.json", 0, 1, null));
+        assertEquals("weatherData-3.commit.tmp", ShardedPersistence.shardFile("weatherData.commit.tmp", 3, 4, null));
+        assertEquals(new File("disk2", "weatherData-1.wal").getPath(), ShardedPersistence.shardFile("weatherData.wal", 1, 4, "disk2"));
+    }
+
+    @Test
+    void testEachShardPersistsOnlyItsStations() throws Exception {
+        WeatherStore data = new WeatherStore(100, 4);
+        try (ShardedPersistence persistence = newPersistence(data, 1)) { // Compact after the first commit
+            // The store is complete before anything is logged, so every snapshot holds all of it
+            Map<String, JsonObject> batch = new LinkedHashMap<>();
+            for (int i = 0; i < 40; i++) {
+                batch.put("station" + i, entry("station" + i));
+            }
+            data.putAll(batch);
+            JsonObject single = entry("single");
+            data.put("single", single);
+            data.remove("station0");
+            assertTrue(persistence.commitPuts(batch.values()));
+            assertTrue(persistence.commitPut(single));
+            persistence.logExpire("station0");
+            assertTrue(persistence.commit());
+            waitForCompactions(persistence, 4);
+        }
+
+        // Every shard's snapshot holds exactly the stations that hash to it
+        int total = 0;
+        for (int shard = 0; shard < 4; shard++) {
+            File snapshot = new File(directory, "weatherData-" + shard + ".json");
+            JsonArray entries = JsonParser.parseString(Files.readString(snapshot.toPath())).getAsJsonArray();
+            for (JsonElement element : entries) {
+                assertEquals(shard, data.shardOf(element.getAsJsonObject().get("id").getAsString()));
+            }
+            total += entries.size();
+        }
+        assertEquals(40, total);
+        assertEquals(40, new ArrayList<>(data.storedEntries()).size()); // The view covers every shard
+
+        // A new store recovers all shards
+        WeatherStore recovered = new WeatherStore(100, 4);
+        try (ShardedPersistence persistence = newPersistence(recovered, Long.MAX_VALUE)) {
+            persistence.recover();
+        }
+        assertEquals(data.keySet(), recovered.keySet());
+        assertFalse(recovered.containsKey("station0"));
+    }
+
+    // Waits until the given number of compactions has finished, e.g. one per shard.
+    private static void waitForCompactions(ShardedPersistence persistence, int compactions) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (persistence.getCompactionCount() < compactions && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SubscriptionDispatcherTest {
+
+    @Test
+    void testSlowSubscriberDoesNotDelayOthers() throws Exception {
+        Map<String, String> store = new ConcurrentHashMap<>();
+        try (SubscriptionDispatcher dispatcher = new SubscriptionDispatcher(
+                id -> store.containsKey(id) ? store.get(id).getBytes(StandardCharsets.UTF_8) : null, 10, 4, 2, 60_000, 60_000)) {
+            CountDownLatch release = new CountDownLatch(1);
+            OutputStream stuck = new OutputStream() { // A client that stopped reading
+                @Override
+                public void write(int b) throws IOException {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    throw new IOException("Closed");
+                }
+            };
+            SubscriptionDispatcher.Subscriber slow = dispatcher.subscribe(stuck, release::countDown, null);
+            ByteArrayOutputStream fastOut = new ByteArrayOutputStream();
+            dispatcher.subscribe(fastOut, () -> { }, Set.of("s1", "s9"));
+
+            store.put("s1", "{\"id\":\"s1\"}");
+            dispatcher.publish("s1", 1);
+            for (int i = 2; i <= 8; i++) {
+                store.put("s" + i, "{\"id\":\"s" + i + "\"}");
+                dispatcher.publish("s" + i, i); // The slow subscriber falls more than 4 stations behind
+                Thread.sleep(10);
+            }
+            dispatcher.publish("s9", 9); // Not in the store: pushed as a removal
+
+            waitFor(() -> slow.isClosed() && fastOut.toString().contains("event: remove"));
+            String events;
+            synchronized (fastOut) {
+                events = fastOut.toString(StandardCharsets.UTF_8);
+            }
+            assertTrue(events.contains("id: 1\nevent: update\ndata: {\"id\":\"s1\"}\n\n"));
+            assertTrue(events.contains("id: 9\nevent: remove\ndata: {\"id\":\"s9\"}\n\n"));
+            assertFalse(events.contains("s2")); // Not subscribed
+            assertEquals(1, dispatcher.getSubscriberCount());
+        }
+    }
+
+    @Test
+    void testStalledSocketIsDroppedAfterWriteTimeout() throws Exception {
+        String large = "x".repeat(100_000);
+        try (ServerSocket listener = new ServerSocket(0);
+             SubscriptionDispatcher dispatcher = new SubscriptionDispatcher(
+                     id -> ("{\"id\":\"" + id + "\",\"data\":\"" + large + "\"}").getBytes(StandardCharsets.UTF_8),
+                     10, 1024, 1, 60_000, 300)) { // One writer thread, so a blocked write would stop every stream
+            Socket stalledClient = new Socket();
+            stalledClient.setReceiveBufferSize(4096);
+            stalledClient.connect(listener.getLocalSocketAddress());
+            Socket stalled = listener.accept();
+            stalled.setSendBufferSize(4096);
+            Socket readingClient = new Socket("localhost", listener.getLocalPort());
+            Socket reading = listener.accept();
+
+            // The reading client drains its stream in the background; the stalled one never reads
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            Thread reader = new Thread(() -> {
+                try (InputStream in = readingClient.getInputStream()) {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        synchronized (received) {
+                            received.write(buffer, 0, read);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed.
+                }
+            });
+            reader.start();
+
+            SubscriptionDispatcher.Subscriber slow = dispatcher.subscribe(stalled.getOutputStream(), stalled, null);
+            dispatcher.subscribe(reading.getOutputStream(), reading, null);
+            for (int i = 1; i <= 40; i++) {
+                dispatcher.publish("s" + i, i); // Far more than the stalled client's socket buffers hold
+                Thread.sleep(5);
+            }
+
+            waitFor(slow::isClosed);
+            waitFor(() -> {
+                synchronized (received) {
+                    return received.toString(StandardCharsets.UTF_8).contains("id: 40\nevent: update");
+                }
+            });
+            assertEquals(1, dispatcher.getSubscriberCount());
+            stalledClient.close();
+            readingClient.close();
+            reader.join(5_000);
+        }
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,171 @@
+package com.weather.app;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpdateSenderTest {
+
+    private ServerSocket server;
+    private final List<String> requests = new CopyOnWriteArrayList<>(); // "METHOD body" of every request received
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger unavailable = new AtomicInteger(); // Number of 503 answers still to give
+    private volatile String retryAfter; // Retry-After sent with 503 answers, if set
+    private volatile long unavailableAt; // When the last 503 was sent
+
+    @AfterEach
+    void stopServer() throws IOException {
+        if (server != null) server.close();
+    }
+
+    @Test
+    void testRetriesCoalescedUpdatesUntilServerIsUp() throws Exception {
+        int port = freePort();
+        UpdateSender sender = new UpdateSender(new PersistentConnection("localhost", port), new LamportClock(), "localhost",
+                16, 8, 0, 20, 100);
+        try {
+            // The server is down: updates wait, and a newer one for the same station replaces the older
+            sender.submit(station("a", "1"));
+            sender.submit(station("b", "1"));
+            sender.submit(station("a", "2"));
+            Thread.sleep(100);
+            assertTrue(sender.getQueuedCount() <= 2);
+
+            unavailable.set(1); // The first answer once it is up is 503 Service Unavailable
+            startServer(port);
+            waitFor(() -> sender.getSentCount() == 2);
+            assertTrue(sender.getRetryCount() > 0);
+            assertTrue(requests.stream().noneMatch(r -> r.contains("\"a\"") && r.contains("\"v\": \"1\"")));
+            assertTrue(requests.stream().anyMatch(r -> r.startsWith("PUT") && r.contains("\"v\": \"2\"")));
+
+            // Once the server has a station, only changed fields are sent
+            sender.submit(station("a", "3"));
+            waitFor(() -> sender.getSentCount() == 3);
+            String last = requests.get(requests.size() - 1);
+            assertTrue(last.startsWith("PATCH"));
+            assertTrue(last.contains("\"v\": \"3\""));
+            assertFalse(last.contains("name"));
+        } finally {
+            assertEquals(0, sender.close(1_000));
+        }
+    }
+
+    @Test
+    void testWaitsAsLongAsRetryAfterAsks() throws Exception {
+        int port = freePort();
+        unavailable.set(1);
+        retryAfter = "1";
+        startServer(port);
+        UpdateSender sender = new UpdateSender(new PersistentConnection("localhost", port), new LamportClock(), "localhost",
+                16, 8, 0, 20, 100); // Backoff alone would retry within 100 ms
+        try {
+            sender.submit(station("busy", "1"));
+            waitFor(() -> sender.getSentCount() == 1);
+            long waited = System.currentTimeMillis() - unavailableAt;
+            assertTrue(waited >= 900, "Retried after " + waited + " ms");
+        } finally {
+            assertEquals(0, sender.close(1_000));
+        }
+    }
+
+    @Test
+    void testQueuedUpdatesArePipelinedOnOneConnection() throws Exception {
+        int port = freePort();
+        startServer(port);
+        UpdateSender sender = new UpdateSender(new PersistentConnection("localhost", port), new LamportClock(), "localhost",
+                100, 16, 0, 20, 100);
+        for (int i = 0; i < 50; i++) {
+            sender.submit(station("s" + i, "1"));
+        }
+        assertEquals(0, sender.close(5_000)); // Closing waits for the queue to drain
+        assertEquals(50, sender.getSentCount());
+        assertEquals(1, connections.get());
+    }
+
+    private static Map<String, String> station(String id, String value) {
+        Map<String, String> data = new LinkedHashMap<>();
+        data.put("id", id);
+        data.put("name", "Station " + id);
+        data.put("v", value);
+        return data;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        // Helper method to wait up to 10 seconds for a condition
+        for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    // Starts a minimal keep-alive server that records requests and answers 201, or 503 while unavailable is positive.
+    private void startServer(int port) throws IOException {
+        server = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    Thread handler = new Thread(() -> serve(socket));
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                if (requestLine.isEmpty()) continue;
+                int length = 0;
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    if (line.startsWith("Content-Length:")) length = Integer.parseInt(line.substring(15).trim());
+                }
+                String body = new String(in.readNBytes(length), StandardCharsets.UTF_8);
+                String status = unavailable.getAndDecrement() > 0 ? "503 Service Unavailable" : "201 Created";
+                if (status.startsWith("201")) requests.add(requestLine.split(" ")[0] + " " + body);
+                String extra = "";
+                if (status.startsWith("503")) {
+                    unavailableAt = System.currentTimeMillis();
+                    extra = retryAfter != null ? "Retry-After: " + retryAfter + "\r\n" : "";
+                }
+                out.write(("HTTP/1.1 " + status + "\r\nLamport-Clock: 1\r\nConnection: keep-alive\r\n" + extra + "Content-Length: 0\r\n\r\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Connection closed by the client.
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') line.append((char) b);
+        }
+        return b == -1 && line.length() == 0 ? null : line.toString();
+    }
+}